@@ -327,9 +327,6 @@ interpret_CSA_move( tree_t * restrict ptree, unsigned int *pmove,
 {
   int ifrom_file, ifrom_rank, ito_file, ito_rank, ipiece;
   int ifrom, ito;
-  unsigned int move;
-  unsigned int *pmove_last;
-  unsigned int *p;
 
   ifrom_file = str[0]-'0';
   ifrom_rank = str[1]-'0';
@@ -342,19 +339,53 @@ interpret_CSA_move( tree_t * restrict ptree, unsigned int *pmove,
   ipiece     = str2piece( str+4 );
   if ( ipiece < 0 )
     {
+      *pmove    = 0;
       str_error = str_illegal_move;
       return -2;
     }
 
-  if ( ! ifrom_file && ! ifrom_rank )
-    {
-      move  = To2Move(ito) | Drop2Move(ipiece);
-      ifrom = nsquare;
-    }
+  if ( ! ifrom_file && ! ifrom_rank ) { ifrom = nsquare; }
   else {
     ifrom_file = 9 - ifrom_file;
     ifrom_rank = ifrom_rank - 1;
     ifrom      = ifrom_rank * 9 + ifrom_file;
+  }
+
+  return interpret_move( ptree, pmove, ifrom, ito, ipiece );
+}
+
+
+/* Build the move of ipiece (the piece type after the move) from ifrom to ito,
+   or the drop of ipiece to ito if ifrom == nsquare, and check that it is legal
+   in the root position. */
+int
+interpret_move( tree_t * restrict ptree, unsigned int *pmove,
+		int ifrom, int ito, int ipiece )
+{
+  int ito_file;
+  unsigned int move;
+  unsigned int *pmove_last;
+  unsigned int *p;
+
+  *pmove = 0;
+  if ( ifrom < 0 || ifrom > nsquare || ito < 0 || ito >= nsquare
+       || ipiece <= 0 || ipiece > dragon )
+    {
+      str_error = str_illegal_move;
+      return -2;
+    }
+  ito_file = aifile[ito];
+
+  if ( ifrom == nsquare )
+    {
+      if ( ipiece > rook )
+	{
+	  str_error = str_illegal_move;
+	  return -2;
+	}
+      move  = To2Move(ito) | Drop2Move(ipiece);
+    }
+  else {
     if ( abs(BOARD[ifrom]) + promote == ipiece )
       {
 	ipiece -= promote;
@@ -366,7 +397,6 @@ interpret_CSA_move( tree_t * restrict ptree, unsigned int *pmove,
 	      | Piece2Move(ipiece) );
   }
 
-  *pmove = 0;
   pmove_last = ptree->amove;
   pmove_last = GenCaptures(root_turn, pmove_last );
   pmove_last = GenNoCaptures(root_turn, pmove_last );
@@ -1070,6 +1070,8 @@ int CONV get_cputime( unsigned int *ptime );
 int CONV get_elapsed( unsigned int *ptime );
 int interpret_CSA_move( tree_t * restrict ptree, unsigned int *pmove,
 			const char *str );
+int interpret_move( tree_t * restrict ptree, unsigned int *pmove,
+		    int ifrom, int ito, int ipiece );
 int in_CSA( tree_t * restrict ptree, record_t *pr, unsigned int *pmove,
 	    int do_history );
 int in_CSA_record( FILE * restrict pf, tree_t * restrict ptree );
@@ -33,6 +33,17 @@
 #define H_HI_KAKU_KYO 6
 #define H_HI_KAKU_KEI_KYO 7
 
+// Layout of the moves packed into an int by Move.java.
+//
+// CAUTION: these values must match Move.java
+#define PACKED_SQUARE_MASK 0x7f
+#define PACKED_FROM_SHIFT 7
+#define PACKED_PIECE_SHIFT 14
+#define PACKED_PIECE_MASK 0x1f
+#define PACKED_PIECE_BIAS 16
+#define PACKED_PROMOTE (1 << 19)
+#define PACKED_DROP (1 << 20)
+
 static pthread_mutex_t g_lock = PTHREAD_MUTEX_INITIALIZER;
 static int g_instance_id = 0;
 static int g_initialized = 0;
@@ -182,6 +193,39 @@ static void FillMoveResult(JNIEnv *env,
     FillIntField(env, move, move_class, move_result, "cookie");
 }
 
+// Convert "move", just made in "ptree", to the packed format of Move.java. Bonanza and
+// the Java side number the squares (file + rank * 9 from the upper left corner) and the
+// piece types (pawn=1 .. dragon=15) the same way, so only the bit layout changes. The
+// owner of the piece now at the destination is the player who made the move.
+static int PackMove(tree_t *ptree, unsigned int move) {
+    const int to = (int)I2To(move);
+    const int from = (int)I2From(move);
+    const int sign = (BOARD[to] < 0 ? -1 : 1);
+    if (from >= nsquare) {
+        return to | ((sign * From2Drop(from) + PACKED_PIECE_BIAS) << PACKED_PIECE_SHIFT)
+                | PACKED_DROP;
+    }
+    int packed = to | (from << PACKED_FROM_SHIFT);
+    int piece = (int)I2PieceMove(move);
+    if (I2IsPromote(move)) {
+        piece += promote;
+        packed |= PACKED_PROMOTE;
+    }
+    return packed | ((sign * piece + PACKED_PIECE_BIAS) << PACKED_PIECE_SHIFT);
+}
+
+// Convert a move packed as in Move.java to Bonanza's format and check that it is legal
+// in the current position. Returns a negative value on error, like interpret_CSA_move().
+static int InterpretPackedMove(tree_t *ptree, int packed, unsigned int *move) {
+    const int to = packed & PACKED_SQUARE_MASK;
+    const int from = ((packed & PACKED_DROP) != 0
+                      ? nsquare
+                      : (packed >> PACKED_FROM_SHIFT) & PACKED_SQUARE_MASK);
+    const int piece = abs(((packed >> PACKED_PIECE_SHIFT) & PACKED_PIECE_MASK)
+                          - PACKED_PIECE_BIAS);
+    return interpret_move(ptree, move, from, to, piece);
+}
+
 static void FillResult(const char *label,
                        JNIEnv *env,
                        int iret,
@@ -207,6 +251,9 @@ static void FillResult(const char *label,
                                (*env)->NewStringUTF(env, move_str));
     }
     FillIntField(env, move_cookie, result_class, result, "moveCookie");
+    FillIntField(env,
+                 (move_cookie != 0 && ptree != NULL) ? PackMove(ptree, move_cookie) : 0,
+                 result_class, result, "packedMove");
 
     // Fill the board
     if (ptree != NULL) {
@@ -417,26 +464,21 @@ static int AnotherInstanceStarted(JNIEnv *env,
     return 0;
 }
 
-void Java_mobi_omegacentauri_shogi_BonanzaJNI_humanMove(
-        JNIEnv *env,
-        jclass unused_bonanza_class,
-        jint instance_id,
-        jstring jmove_str,
-        jobject result) {
-    pthread_mutex_lock(&g_lock);
-    if (AnotherInstanceStarted(env, instance_id, result)) {
-        pthread_mutex_unlock(&g_lock);
-        return;
-    }
-
-    MoveBuf move_str_buf;
-    char *move_str = NULL;
-    unsigned int move = 0;
+// Make the human move "move", interpreted by the caller with return value "r", and fill
+// "result". "move_str" is the move in CSA format, or NULL if the caller passed a packed
+// move; the result then carries only the packed move. REQUIRES: g_lock is held.
+static void MakeHumanMove(JNIEnv *env,
+                          int r,
+                          unsigned int move,
+                          const char *move_str,
+                          jobject result) {
     int status = R_OK;
     const char *error = NULL;
-    int r = ParseCsaMove(env, jmove_str, &move, move_str_buf);
     if (r < 0) {
-        LOG_DEBUG("Failed to parse move: %s: %s", move_str, str_error);
+        LOG_DEBUG("Failed to parse move: %s: %s",
+                  move_str != NULL ? move_str : "(packed)", str_error);
+        move = 0;
+        move_str = NULL;
         status = R_ILLEGAL_MOVE;
         error = str_error;
     } else {
@@ -446,19 +488,54 @@ void Java_mobi_omegacentauri_shogi_BonanzaJNI_humanMove(
                         | flag_rejections */));
                         
         if (r < 0) {
-            LOG_DEBUG("Failed to make move: %s: %s", move_str_buf, str_error);
+            LOG_DEBUG("Failed to make move: %x: %s", move, str_error);
             move_str = NULL;
             move = 0;
             status = R_ILLEGAL_MOVE;
             error = str_error;
         } else {
-            LOG_DEBUG("Human: %s", move_str_buf);
-            move_str = move_str_buf;
+            LOG_DEBUG("Human: %x %s", move, move_str != NULL ? move_str : "");
             status = GameStatusToReturnCode();
             error = NULL;
         }
     }
     FillResult("Human", env, status, error, move_str, move, g_tree, result);
+}
+
+void Java_mobi_omegacentauri_shogi_BonanzaJNI_humanMove(
+        JNIEnv *env,
+        jclass unused_bonanza_class,
+        jint instance_id,
+        jstring jmove_str,
+        jobject result) {
+    pthread_mutex_lock(&g_lock);
+    if (AnotherInstanceStarted(env, instance_id, result)) {
+        pthread_mutex_unlock(&g_lock);
+        return;
+    }
+
+    MoveBuf move_str_buf;
+    unsigned int move = 0;
+    int r = ParseCsaMove(env, jmove_str, &move, move_str_buf);
+    MakeHumanMove(env, r, move, move_str_buf, result);
+    pthread_mutex_unlock(&g_lock);
+}
+
+void Java_mobi_omegacentauri_shogi_BonanzaJNI_humanMovePacked(
+        JNIEnv *env,
+        jclass unused_bonanza_class,
+        jint instance_id,
+        jint packed_move,
+        jobject result) {
+    pthread_mutex_lock(&g_lock);
+    if (AnotherInstanceStarted(env, instance_id, result)) {
+        pthread_mutex_unlock(&g_lock);
+        return;
+    }
+
+    unsigned int move = 0;
+    int r = InterpretPackedMove(g_tree, packed_move, &move);
+    MakeHumanMove(env, r, move, NULL, result);
     pthread_mutex_unlock(&g_lock);
 }
 
@@ -1,7 +1,11 @@
 package mobi.omegacentauri.shogi;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Store the state of a Shogi board.
@@ -11,40 +15,62 @@ public class Board implements Serializable {
   // X and Y dimensions of a board
   public static final int DIM = 9; 
 
-  public static class CapturedPiece implements Serializable {
-    public CapturedPiece(int p, int _n) { piece = p; n = _n; }
-    public final int piece;  // one of Piece.*
-    public final int n;      // number of pieces of the same type
-  }
-  
+  private static final int NUM_TYPES = Piece.NUM_TYPES;
+  private static final int NUM_BITBOARDS = NUM_TYPES * 2;
+
   public Board() {
     mSquares = new int[DIM * DIM];  // initialized to zero
-    mCapturedBlackList = new ArrayList<CapturedPiece>();
-    mCapturedWhiteList = new ArrayList<CapturedPiece>();
+    mBits = new long[NUM_BITBOARDS * 2];
+    mAttacks = new long[2 * DIM * DIM * 2];
+    mPinned = new long[4];
+    mUndo = new int[INITIAL_UNDO_CAPACITY];
   }
 
   public Board(Board src) {
     mSquares = src.mSquares.clone();
+    mBits = src.mBits.clone();
+    mAttacks = src.mAttacks.clone();
+    mPinned = src.mPinned.clone();
+    mPinnedValid = src.mPinnedValid;
     mCapturedBlack = src.mCapturedBlack;
     mCapturedWhite = src.mCapturedWhite;
-    mLastReadCapturedBlack = src.mLastReadCapturedBlack; 
-    mLastReadCapturedWhite = src.mLastReadCapturedWhite; 
-    
-    mCapturedBlackList = new ArrayList<CapturedPiece>(src.mCapturedBlackList);
-    mCapturedWhiteList = new ArrayList<CapturedPiece>(src.mCapturedWhiteList);
+    mWhiteToMove = src.mWhiteToMove;
+    mHash = src.mHash;
+    mUndo = Arrays.copyOf(src.mUndo, Math.max(src.mUndoSize, INITIAL_UNDO_CAPACITY));
+    mUndoSize = src.mUndoSize;
+  }
+
+  /**
+   * Make this board identical to "src", including the undo history. Unlike the copy
+   * constructor, this reuses the arrays of this object.
+   */
+  public final void copyFrom(Board src) {
+    System.arraycopy(src.mSquares, 0, mSquares, 0, mSquares.length);
+    System.arraycopy(src.mBits, 0, mBits, 0, mBits.length);
+    System.arraycopy(src.mAttacks, 0, mAttacks, 0, mAttacks.length);
+    System.arraycopy(src.mPinned, 0, mPinned, 0, mPinned.length);
+    mPinnedValid = src.mPinnedValid;
+    mCapturedBlack = src.mCapturedBlack;
+    mCapturedWhite = src.mCapturedWhite;
+    mWhiteToMove = src.mWhiteToMove;
+    mHash = src.mHash;
+    if (mUndo.length < src.mUndoSize) mUndo = new int[src.mUndo.length];
+    System.arraycopy(src.mUndo, 0, mUndo, 0, src.mUndoSize);
+    mUndoSize = src.mUndoSize;
   }
 
   public final void initialize(Handicap h) {
-    mCapturedBlackList.clear();
-    mCapturedWhiteList.clear();
-    mCapturedBlack = mLastReadCapturedBlack = 0;
-    mCapturedWhite = mLastReadCapturedWhite = 0;
+    mCapturedBlack = 0;
+    mCapturedWhite = 0;
+    mWhiteToMove = false;
+    mUndoSize = 0;
     
     for (int y = 0; y < Board.DIM; ++y) {
       for (int x = 0; x < Board.DIM; ++x) {
         setPiece(x, y, Piece.EMPTY);
       }
     }
+    mHash = 0;  // the hands and the side to move were reset above
     
     for (int x = 0; x < Board.DIM; ++x) {
       setPiece(x, 2, -Piece.FU);
@@ -115,7 +141,31 @@ public class Board implements Serializable {
     Assert.lt(x, Board.DIM);
     Assert.ge(y, 0);
     Assert.lt(y, Board.DIM);
-    mSquares[x + y * DIM] = piece;
+    setSquare(x + y * DIM, piece);
+  }
+
+  private final void setSquare(int sq, int piece) {
+    final int oldPiece = mSquares[sq];
+    if (oldPiece != piece) {
+      if (oldPiece != Piece.EMPTY) {
+        toggleBit(oldPiece, sq);
+        toggleAttacks(oldPiece, sq);
+      }
+      if (piece != Piece.EMPTY) {
+        toggleBit(piece, sq);
+        toggleAttacks(piece, sq);
+      }
+      if (oldPiece == Piece.EMPTY || piece == Piece.EMPTY) {
+        // The square is opened or blocked, so the pieces sliding through it reach more or
+        // fewer squares beyond it.
+        toggleSlidesThrough(0, sq);
+        toggleSlidesThrough(1, sq);
+      }
+      mPinnedValid = 0;
+      mHash ^= ZOBRIST_SQUARE[(oldPiece + NUM_TYPES) * (DIM * DIM) + sq]
+          ^ ZOBRIST_SQUARE[(piece + NUM_TYPES) * (DIM * DIM) + sq];
+      mSquares[sq] = piece;
+    }
   }
 
   public final int getPiece(int x, int y) {
@@ -126,6 +176,600 @@ public class Board implements Serializable {
     return mSquares[x + y * DIM];
   }
 
+  /**
+   * Recompute the state derived from mSquares, mCapturedBlack and mCapturedWhite.
+   * The JNI code writes these fields directly, so this method must be called
+   * after each BonanzaJNI call that fills a Board.
+   */
+  public final void syncFromSquares() {
+    mUndoSize = 0;
+    mPinnedValid = 0;
+    for (int i = 0; i < mBits.length; ++i) mBits[i] = 0;
+    for (int i = 0; i < mAttacks.length; ++i) mAttacks[i] = 0;
+    long hash = 0;
+    for (int sq = 0; sq < DIM * DIM; ++sq) {
+      final int piece = mSquares[sq];
+      if (piece != Piece.EMPTY) {
+        toggleBit(piece, sq);
+        toggleAttacks(piece, sq);
+        hash ^= ZOBRIST_SQUARE[(piece + NUM_TYPES) * (DIM * DIM) + sq];
+      }
+    }
+    hash ^= handHash(0, mCapturedBlack) ^ handHash(1, mCapturedWhite);
+    if (mWhiteToMove) hash ^= ZOBRIST_WHITE_TO_MOVE;
+    mHash = hash;
+  }
+
+  /** The player that makes the next move. Player.BLACK after initialize(). */
+  public final Player nextPlayer() {
+    return mWhiteToMove ? Player.WHITE : Player.BLACK;
+  }
+
+  public final void setNextPlayer(Player p) {
+    final boolean white = (p == Player.WHITE);
+    if (white != mWhiteToMove) {
+      mWhiteToMove = white;
+      mHash ^= ZOBRIST_WHITE_TO_MOVE;
+    }
+  }
+
+  /**
+   * A 64-bit Zobrist key of the position: the squares, the captured pieces of both
+   * players, and the side to move. Boards that are equal() have the same key.
+   * The key is maintained incrementally by setPiece(), applyPly(), etc.
+   */
+  public final long hashKey() { return mHash; }
+
+  @Override public boolean equals(Object o) {
+    if (o instanceof Board) {
+      Board b = (Board)o;
+      return b.mHash == mHash &&
+          b.mCapturedBlack == mCapturedBlack &&
+          b.mCapturedWhite == mCapturedWhite &&
+          b.mWhiteToMove == mWhiteToMove &&
+          Arrays.equals(b.mSquares, mSquares);
+    }
+    return false;
+  }
+
+  @Override public int hashCode() {
+    return (int)(mHash ^ (mHash >>> 32));
+  }
+
+  //
+  // Bitboard queries. Squares are identified by x + y * DIM; see SquareSet.
+  //
+
+  /** Store the squares occupied by "piece" (e.g., -Piece.FU for white pawns) in "out". */
+  public final void getPieces(int piece, SquareSet out) {
+    final int i = bitIndex(piece);
+    out.set(mBits[i], mBits[i + 1]);
+  }
+
+  /** Store the squares occupied by pieces of player "p" in "out". */
+  public final void getOccupied(Player p, SquareSet out) {
+    final int i = (p == Player.BLACK ? 0 : NUM_TYPES * 2);
+    out.set(mBits[i], mBits[i + 1]);
+  }
+
+  /** Store the squares occupied by any piece in "out". */
+  public final void getOccupied(SquareSet out) {
+    out.set(mBits[0] | mBits[NUM_TYPES * 2], mBits[1] | mBits[NUM_TYPES * 2 + 1]);
+  }
+
+  /** Return true if there is at least one "piece" on the board. */
+  public final boolean hasPiece(int piece) {
+    final int i = bitIndex(piece);
+    return (mBits[i] | mBits[i + 1]) != 0;
+  }
+
+  /**
+   * Store in "out" the squares of the pieces equal to "piece" that can move to <toX, toY>.
+   * Like possibleMoveDestinations, a square occupied by the mover's own piece is never
+   * reachable.
+   */
+  public final void getSources(int piece, int toX, int toY, SquareSet out) {
+    out.clear();
+    final int to = toX + toY * DIM;
+    if (player(mSquares[to]) == player(piece)) return;
+    final int a = attackIndex(player(piece), to);
+    final int i = bitIndex(piece);
+    out.set(mAttacks[a] & mBits[i], mAttacks[a + 1] & mBits[i + 1]);
+  }
+
+  /**
+   * Store in "out" the squares of the pieces owned by "p" that attack <x, y>, i.e., could
+   * capture a piece placed there. The square may be occupied by p's own piece.
+   */
+  public final void getAttackers(int x, int y, Player p, SquareSet out) {
+    final int a = attackIndex(p, x + y * DIM);
+    out.set(mAttacks[a], mAttacks[a + 1]);
+  }
+
+  /** Return true if any piece owned by "p" attacks <x, y>. See getAttackers(). */
+  public final boolean isAttacked(int x, int y, Player p) {
+    final int a = attackIndex(p, x + y * DIM);
+    return (mAttacks[a] | mAttacks[a + 1]) != 0;
+  }
+
+  /** Return the number of pieces owned by "p" that attack square "sq" (x + y * DIM). */
+  public final int numAttackers(int sq, Player p) {
+    final int a = attackIndex(p, sq);
+    return Long.bitCount(mAttacks[a]) + Long.bitCount(mAttacks[a + 1]);
+  }
+
+  /** Return true if the king of player "p" is attacked. */
+  public final boolean isInCheck(Player p) {
+    final int king = kingSquare(p);
+    if (king < 0) return false;
+    final int a = attackIndex(p.opponent(), king);
+    return (mAttacks[a] | mAttacks[a + 1]) != 0;
+  }
+
+  /** Return the square of the king of player "p", or -1 if there is none. */
+  public final int kingSquare(Player p) {
+    final int i = bitIndex(p == Player.BLACK ? Piece.OU : -Piece.OU);
+    if (mBits[i] != 0) return Long.numberOfTrailingZeros(mBits[i]);
+    if (mBits[i + 1] != 0) return 64 + Long.numberOfTrailingZeros(mBits[i + 1]);
+    return -1;
+  }
+
+  /**
+   * Store in "out" the squares of p's pieces that are pinned to p's king, i.e., that stand
+   * alone between the king and an opponent's piece sliding toward it. The result is
+   * cached until the board changes.
+   */
+  public final void getPinned(Player p, SquareSet out) {
+    final int i = updatePinned(p);
+    out.set(mPinned[i], mPinned[i + 1]);
+  }
+
+  /** Return true if the piece at square "sq" is pinned to its owner's king. See getPinned(). */
+  public final boolean isPinned(int sq) {
+    final int piece = mSquares[sq];
+    if (piece == Piece.EMPTY) return false;
+    final int i = updatePinned(player(piece));
+    return sq < 64 ? (mPinned[i] & (1L << sq)) != 0 : (mPinned[i + 1] & (1L << (sq - 64))) != 0;
+  }
+
+  // Make sure that the cached pinned pieces of "p" are up to date, and return their index
+  // in mPinned.
+  private final int updatePinned(Player p) {
+    final int index = (p == Player.BLACK ? 0 : 1);
+    if ((mPinnedValid & (1 << index)) != 0) return index * 2;
+
+    long lo = 0, hi = 0;
+    final int king = kingSquare(p);
+    if (king >= 0) {
+      // Look from the king in each direction for an own piece followed by an opponent's
+      // piece that slides in the opposite direction.
+      for (int d = 0; d < 8; ++d) {
+        final int[] ray = RAYS[d * DIM * DIM + king];
+        int candidate = -1;
+        for (int k = 0; k < ray.length; ++k) {
+          final int piece = mSquares[ray[k]];
+          if (piece == Piece.EMPTY) continue;
+          if (player(piece) == p) {
+            if (candidate >= 0) break;
+            candidate = ray[k];
+            continue;
+          }
+          if (candidate >= 0 && (SLIDE_MASK[moveTableIndex(piece)] & (1 << (d ^ 1))) != 0) {
+            if (candidate < 64) {
+              lo |= 1L << candidate;
+            } else {
+              hi |= 1L << (candidate - 64);
+            }
+          }
+          break;
+        }
+      }
+    }
+    mPinned[index * 2] = lo;
+    mPinned[index * 2 + 1] = hi;
+    mPinnedValid |= 1 << index;
+    return index * 2;
+  }
+
+  // Index of the bitboard of "piece" in mBits. The bitboards for a player are stored
+  // consecutively, one per piece type. Slot 0 of each player (Piece.EMPTY) holds the
+  // union of all the player's pieces.
+  private static final int bitIndex(int piece) {
+    return piece > 0 ? piece * 2 : (NUM_TYPES - piece) * 2;
+  }
+
+  private final void toggleBit(int piece, int sq) {
+    final int i = bitIndex(piece);
+    final int occ = (piece > 0 ? 0 : NUM_TYPES * 2);
+    if (sq < 64) {
+      final long b = 1L << sq;
+      mBits[i] ^= b;
+      mBits[occ] ^= b;
+    } else {
+      final long b = 1L << (sq - 64);
+      mBits[i + 1] ^= b;
+      mBits[occ + 1] ^= b;
+    }
+  }
+
+  // Index of the attackers of square "sq" owned by "p" in mAttacks.
+  private static final int attackIndex(Player p, int sq) {
+    return ((p == Player.BLACK ? 0 : DIM * DIM) + sq) * 2;
+  }
+
+  // Add the attacks of "piece" standing at "sq" to mAttacks, or remove them if they are
+  // already there. A sliding piece attacks up to and including the first occupied square.
+  private final void toggleAttacks(int piece, int sq) {
+    final int base = (piece > 0 ? 0 : DIM * DIM * 2);
+    final long lo = (sq < 64 ? 1L << sq : 0);
+    final long hi = (sq < 64 ? 0 : 1L << (sq - 64));
+    final int table = moveTableIndex(piece);
+    final int step = (table * DIM * DIM + sq) * 2;
+    for (long b = STEP_TARGETS[step]; b != 0; b &= b - 1) {
+      final int a = base + Long.numberOfTrailingZeros(b) * 2;
+      mAttacks[a] ^= lo;
+      mAttacks[a + 1] ^= hi;
+    }
+    for (long b = STEP_TARGETS[step + 1]; b != 0; b &= b - 1) {
+      final int a = base + (64 + Long.numberOfTrailingZeros(b)) * 2;
+      mAttacks[a] ^= lo;
+      mAttacks[a + 1] ^= hi;
+    }
+    final int[] dirs = SLIDE_DIRECTIONS[table];
+    for (int d = 0; d < dirs.length; ++d) {
+      toggleRay(base, lo, hi, RAYS[dirs[d] * DIM * DIM + sq]);
+    }
+  }
+
+  // For each piece of the player with the given index that slides through square "sq",
+  // toggle its attacks on the squares beyond "sq". Called when "sq" becomes empty or
+  // occupied.
+  private final void toggleSlidesThrough(int playerIndex, int sq) {
+    final int base = playerIndex * DIM * DIM * 2;
+    for (int w = 0; w < 2; ++w) {
+      for (long b = mAttacks[base + sq * 2 + w]; b != 0; b &= b - 1) {
+        final int from = w * 64 + Long.numberOfTrailingZeros(b);
+        final int d = DIRECTION_BETWEEN[from * DIM * DIM + sq];
+        if (d < 0 || (SLIDE_MASK[moveTableIndex(mSquares[from])] & (1 << d)) == 0) continue;
+        toggleRay(base, from < 64 ? 1L << from : 0, from < 64 ? 0 : 1L << (from - 64),
+            RAYS[d * DIM * DIM + sq]);
+      }
+    }
+  }
+
+  // Toggle the (lo, hi) bit in the attack sets at "base" of the squares of "ray", up to and
+  // including the first occupied square.
+  private final void toggleRay(int base, long lo, long hi, int[] ray) {
+    for (int k = 0; k < ray.length; ++k) {
+      final int a = base + ray[k] * 2;
+      mAttacks[a] ^= lo;
+      mAttacks[a + 1] ^= hi;
+      if (mSquares[ray[k]] != Piece.EMPTY) break;
+    }
+  }
+
+  //
+  // Zobrist hashing
+  //
+
+  // Random keys, indexed by (piece + NUM_TYPES) * 81 + square. The entries for
+  // Piece.EMPTY are zero so that setPiece() can xor out the old piece unconditionally.
+  private static final long[] ZOBRIST_SQUARE = new long[NUM_TYPES * 2 * DIM * DIM];
+
+  // Random keys for captured pieces, indexed by
+  // ((player index * NUM_TYPES) + piece type) * MAX_CAPTURED + count.
+  private static final int MAX_CAPTURED = 19;  // 18 FUs + 1
+  private static final long[] ZOBRIST_HAND = new long[2 * NUM_TYPES * MAX_CAPTURED];
+
+  private static final long ZOBRIST_WHITE_TO_MOVE;
+
+  static {
+    // The keys must be identical across runs so that they can be persisted, so use
+    // a fixed-seed splitmix64 sequence rather than java.util.Random.
+    long seed = 0x53484f4749424f41L;
+    for (int i = 0; i < ZOBRIST_SQUARE.length; ++i) {
+      seed += 0x9E3779B97F4A7C15L;
+      ZOBRIST_SQUARE[i] = (i / (DIM * DIM) == NUM_TYPES) ? 0 : mix64(seed);
+    }
+    for (int i = 0; i < ZOBRIST_HAND.length; ++i) {
+      seed += 0x9E3779B97F4A7C15L;
+      ZOBRIST_HAND[i] = (i % MAX_CAPTURED == 0) ? 0 : mix64(seed);
+    }
+    seed += 0x9E3779B97F4A7C15L;
+    ZOBRIST_WHITE_TO_MOVE = mix64(seed);
+  }
+
+  private static final long mix64(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  // Return the hash of the captured pieces "bits" (in the mCapturedBlack format) of
+  // the player with the given index.
+  private static final long handHash(int playerIndex, int bits) {
+    if (bits == 0) return 0;
+    final int base = playerIndex * NUM_TYPES * MAX_CAPTURED;
+    long h = 0;
+    for (int type = Piece.FU; type <= Piece.HI; ++type) {
+      h ^= ZOBRIST_HAND[base + type * MAX_CAPTURED + ((bits >> HAND_SHIFT[type]) & HAND_MASK[type])];
+    }
+    return h;
+  }
+
+  //
+  // Snapshot codec. A snapshot is a fixed-size byte string that fully describes the
+  // position (pieces, hands, side to move), but not the undo history:
+  //
+  //   bits [0, 405)   5 bits per square, in mSquares order; the piece in two's complement
+  //   bit  405        1 if Player.WHITE moves next
+  //   bytes [51, 54)  mCapturedBlack, little endian
+  //   bytes [54, 57)  mCapturedWhite, little endian
+  //
+  // Bits are numbered from the LSB of byte 0. Two boards have the same snapshot iff they
+  // are equal().
+  //
+  public static final int SNAPSHOT_SIZE = 57;
+
+  private static final int SNAPSHOT_SQUARE_BITS = 5;
+  private static final int SNAPSHOT_WHITE_TO_MOVE_BIT = DIM * DIM * SNAPSHOT_SQUARE_BITS;
+  private static final int SNAPSHOT_HANDS = 51;
+
+  /** Write the snapshot of this board to out[offset, offset + SNAPSHOT_SIZE). */
+  public final void writeSnapshot(byte[] out, int offset) {
+    long acc = 0;  // bits not yet written to "out"
+    int numBits = 0;
+    int pos = offset;
+    for (int sq = 0; sq < DIM * DIM; ++sq) {
+      acc |= (long)(mSquares[sq] & 0x1f) << numBits;
+      numBits += SNAPSHOT_SQUARE_BITS;
+      while (numBits >= 8) {
+        out[pos++] = (byte)acc;
+        acc >>>= 8;
+        numBits -= 8;
+      }
+    }
+    // numBits == SNAPSHOT_WHITE_TO_MOVE_BIT % 8 here.
+    if (mWhiteToMove) acc |= 1L << numBits;
+    out[pos++] = (byte)acc;
+    Assert.isTrue(pos == offset + SNAPSHOT_HANDS);
+    writeHand(mCapturedBlack, out, pos);
+    writeHand(mCapturedWhite, out, pos + 3);
+  }
+
+  /**
+   * Set this board to the position of the snapshot at in[offset, offset + SNAPSHOT_SIZE).
+   * The undo history is cleared.
+   */
+  public final void readSnapshot(byte[] in, int offset) {
+    long acc = 0;  // bits read from "in" but not consumed yet
+    int numBits = 0;
+    int pos = offset;
+    for (int sq = 0; sq < DIM * DIM; ++sq) {
+      if (numBits < SNAPSHOT_SQUARE_BITS) {
+        acc |= (long)(in[pos++] & 0xff) << numBits;
+        numBits += 8;
+      }
+      // Sign-extend the 5-bit value.
+      mSquares[sq] = ((int)acc << (32 - SNAPSHOT_SQUARE_BITS)) >> (32 - SNAPSHOT_SQUARE_BITS);
+      acc >>>= SNAPSHOT_SQUARE_BITS;
+      numBits -= SNAPSHOT_SQUARE_BITS;
+    }
+    mWhiteToMove = (acc & 1) != 0;
+    mCapturedBlack = readHand(in, offset + SNAPSHOT_HANDS);
+    mCapturedWhite = readHand(in, offset + SNAPSHOT_HANDS + 3);
+    syncFromSquares();
+  }
+
+  /** Return a new array containing the snapshot of this board. */
+  public final byte[] toSnapshot() {
+    byte[] b = new byte[SNAPSHOT_SIZE];
+    writeSnapshot(b, 0);
+    return b;
+  }
+
+  /**
+   * Create a board from the snapshot returned by toSnapshot(). Returns null if
+   * "snapshot" is null.
+   */
+  public static final Board fromSnapshot(byte[] snapshot) {
+    if (snapshot == null) return null;
+    Board b = new Board();
+    b.readSnapshot(snapshot, 0);
+    return b;
+  }
+
+  private static final void writeHand(int bits, byte[] out, int pos) {
+    out[pos] = (byte)bits;
+    out[pos + 1] = (byte)(bits >> 8);
+    out[pos + 2] = (byte)(bits >> 16);
+  }
+
+  private static final int readHand(byte[] in, int pos) {
+    return (in[pos] & 0xff) | ((in[pos + 1] & 0xff) << 8) | ((in[pos + 2] & 0xff) << 16);
+  }
+
+  //
+  // SFEN, the position format of USI: "<board> <side> <hands> [<move number>]", e.g.,
+  // "lnsgkgsnl/1r5b1/ppppppppp/9/9/9/PPPPPPPPP/1B5R1/LNSGKGSNL b - 1".
+  // Ranks are listed from the top (y = 0), each from left (x = 0) to right, so the
+  // squares appear in mSquares order. Upper case letters are Player.BLACK's pieces.
+  //
+
+  // Order of the pieces in the hands field.
+  private static final int[] SFEN_HAND_ORDER = {
+    Piece.HI, Piece.KAKU, Piece.KIN, Piece.GIN, Piece.KEI, Piece.KYO, Piece.FU };
+
+  // Max number of pieces of each type in a hand.
+  private static final int[] MAX_IN_HAND = { 0, 18, 4, 4, 4, 4, 2, 2 };
+
+  /** Return the SFEN string for this board, with the given move number. */
+  public final String toSfen(int moveNumber) {
+    StringBuilder b = new StringBuilder(96);
+    for (int y = 0; y < DIM; ++y) {
+      if (y > 0) b.append('/');
+      int empty = 0;
+      for (int x = 0; x < DIM; ++x) {
+        final int piece = mSquares[x + y * DIM];
+        if (piece == Piece.EMPTY) {
+          ++empty;
+          continue;
+        }
+        if (empty > 0) {
+          b.append((char)('0' + empty));
+          empty = 0;
+        }
+        int t = type(piece);
+        if (t > Piece.OU) {
+          b.append('+');
+          t -= 8;
+        }
+        final char c = Piece.sfenLetters[t];
+        b.append(piece > 0 ? c : Character.toLowerCase(c));
+      }
+      if (empty > 0) b.append((char)('0' + empty));
+    }
+    b.append(mWhiteToMove ? " w " : " b ");
+
+    final int start = b.length();
+    appendSfenHand(b, Player.BLACK);
+    appendSfenHand(b, Player.WHITE);
+    if (b.length() == start) b.append('-');
+    b.append(' ').append(moveNumber);
+    return b.toString();
+  }
+
+  private final void appendSfenHand(StringBuilder b, Player p) {
+    for (int i = 0; i < SFEN_HAND_ORDER.length; ++i) {
+      final int t = SFEN_HAND_ORDER[i];
+      final int n = numCaptured(p, t);
+      if (n == 0) continue;
+      if (n > 1) b.append(n);
+      final char c = Piece.sfenLetters[t];
+      b.append(p == Player.BLACK ? c : Character.toLowerCase(c));
+    }
+  }
+
+  /**
+   * Set this board to the position of an SFEN string. A leading "sfen " is allowed.
+   * Returns the move number, or 1 if the string doesn't have one. The board is left
+   * unchanged on error. The undo history is cleared.
+   */
+  public final int parseSfen(String sfen) throws ParseException {
+    final int[] squares = new int[DIM * DIM];
+    final int len = sfen.length();
+    int i = skipSpaces(sfen, 0);
+    if (sfen.startsWith("sfen ", i)) i = skipSpaces(sfen, i + 5);
+
+    // Board
+    int x = 0, y = 0;
+    for (; i < len && sfen.charAt(i) != ' '; ++i) {
+      char c = sfen.charAt(i);
+      if (c == '/') {
+        if (x != DIM || ++y >= DIM) throw sfenError(sfen, "bad rank " + (y + 1));
+        x = 0;
+      } else if (c >= '1' && c <= '9') {
+        x += c - '0';
+        if (x > DIM) throw sfenError(sfen, "bad rank " + (y + 1));
+      } else {
+        boolean promoted = false;
+        if (c == '+') {
+          promoted = true;
+          if (++i >= len) break;
+          c = sfen.charAt(i);
+        }
+        int t = Piece.fromSfenLetter(Character.toUpperCase(c));
+        if (t == Piece.EMPTY || x >= DIM || (promoted && (t == Piece.KIN || t == Piece.OU))) {
+          throw sfenError(sfen, "bad piece at " + i);
+        }
+        if (promoted) t += 8;
+        squares[x++ + y * DIM] = Character.isUpperCase(c) ? t : -t;
+      }
+    }
+    if (x != DIM || y != DIM - 1) throw sfenError(sfen, "incomplete board");
+
+    // Side to move
+    i = skipSpaces(sfen, i);
+    if (i >= len) throw sfenError(sfen, "missing side to move");
+    final char side = sfen.charAt(i++);
+    if (side != 'b' && side != 'w') throw sfenError(sfen, "bad side to move");
+
+    // Hands
+    i = skipSpaces(sfen, i);
+    if (i >= len) throw sfenError(sfen, "missing hands");
+    int black = 0, white = 0;
+    if (sfen.charAt(i) == '-') {
+      ++i;
+    } else {
+      for (; i < len && sfen.charAt(i) != ' '; ++i) {
+        int n = 0;
+        char c;
+        while ((c = sfen.charAt(i)) >= '0' && c <= '9') {
+          n = n * 10 + (c - '0');
+          if (++i >= len || n > MAX_IN_HAND[Piece.FU]) throw sfenError(sfen, "bad hands");
+        }
+        if (n == 0) n = 1;
+        final int t = Piece.fromSfenLetter(Character.toUpperCase(c));
+        if (t == Piece.EMPTY || t == Piece.OU) throw sfenError(sfen, "bad piece in hands: " + c);
+        final boolean isBlack = Character.isUpperCase(c);
+        final int total = n + ((isBlack ? black : white) >> HAND_SHIFT[t] & HAND_MASK[t]);
+        if (total > MAX_IN_HAND[t]) throw sfenError(sfen, "too many pieces in hands: " + c);
+        if (isBlack) {
+          black += n << HAND_SHIFT[t];
+        } else {
+          white += n << HAND_SHIFT[t];
+        }
+      }
+    }
+
+    // Move number
+    i = skipSpaces(sfen, i);
+    int moveNumber = 1;
+    if (i < len) {
+      moveNumber = 0;
+      for (; i < len && sfen.charAt(i) != ' '; ++i) {
+        final char c = sfen.charAt(i);
+        if (c < '0' || c > '9' || moveNumber > 100000) throw sfenError(sfen, "bad move number");
+        moveNumber = moveNumber * 10 + (c - '0');
+      }
+      if (skipSpaces(sfen, i) < len) throw sfenError(sfen, "trailing garbage");
+    }
+
+    System.arraycopy(squares, 0, mSquares, 0, squares.length);
+    mCapturedBlack = black;
+    mCapturedWhite = white;
+    mWhiteToMove = (side == 'w');
+    syncFromSquares();
+    return moveNumber;
+  }
+
+  private static final int skipSpaces(String s, int i) {
+    while (i < s.length() && s.charAt(i) == ' ') ++i;
+    return i;
+  }
+
+  private static final ParseException sfenError(String sfen, String message) {
+    return new ParseException("Invalid SFEN \"" + sfen + "\": " + message);
+  }
+
+  // Java serialization writes the snapshot instead of the fields.
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    out.write(toSnapshot());
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    mSquares = new int[DIM * DIM];
+    mBits = new long[NUM_BITBOARDS * 2];
+    mAttacks = new long[2 * DIM * DIM * 2];
+    mPinned = new long[4];
+    mUndo = new int[INITIAL_UNDO_CAPACITY];
+    byte[] snapshot = new byte[SNAPSHOT_SIZE];
+    in.readFully(snapshot);
+    readSnapshot(snapshot, 0);
+  }
+
   // Given a piece returned by getPiece(), return its type, e.g., Piece.FU, etc.
   public static final int type(int piece) { 
     return (piece < 0 ? -piece: piece); 
@@ -161,60 +805,41 @@ public class Board implements Serializable {
     }
   }
 
-  // Get the list of piece type and its count captured by player p.
-  // For Player.WHITE, the values of CapturedPiece.piece will be still
-  // positive.
-  public final ArrayList<CapturedPiece> getCapturedPieces(Player p) {
-    // Note: The JNI code will update mCapturedBlack and mCapturedWhite.
-    // Translate them to a list.
-    if (p == Player.BLACK) {
-      if (mLastReadCapturedBlack != mCapturedBlack) {
-        mLastReadCapturedBlack = mCapturedBlack;
-        mCapturedBlackList = listCapturedPieces(Player.BLACK, mCapturedBlack);
-      }
-      return mCapturedBlackList;
-    } else if (p == Player.WHITE) {
-      if (mLastReadCapturedWhite != mCapturedWhite) {
-        mLastReadCapturedWhite = mCapturedWhite;
-        mCapturedWhiteList = listCapturedPieces(Player.WHITE, mCapturedWhite);
-      }
-      return mCapturedWhiteList;
-    } else {
-      throw new AssertionError("Invalid player");
+  /**
+   * Return the number of different piece types captured by "p", i.e., the number of
+   * slots used to display the hand.
+   */
+  public final int numCapturedTypes(Player p) {
+    final int bits = (p == Player.BLACK ? mCapturedBlack : mCapturedWhite);
+    int n = 0;
+    for (int type = Piece.FU; type <= Piece.HI; ++type) {
+      if (((bits >> HAND_SHIFT[type]) & HAND_MASK[type]) != 0) ++n;
     }
+    return n;
   }
-  
-  public void setCapturedPieces(Player player, ArrayList<Board.CapturedPiece> pieces) {
-    int bits = 0;
-    for (Board.CapturedPiece p: pieces) {
-      final int piece = Board.type(p.piece);
-      if (piece == Piece.FU) {
-        bits |= p.n;
-      } else if (piece == Piece.KYO) {
-        bits |= (p.n << 5);
-      } else if (piece == Piece.KEI) {
-        bits |= (p.n << 8);
-      } else if (piece == Piece.GIN) {
-        bits |= (p.n << 11);
-      } else if (piece == Piece.KIN) {
-        bits |= (p.n << 14);
-      } else if (piece == Piece.KAKU) {
-        bits |= (p.n << 17);
-      } else if (piece == Piece.HI) {
-        bits |= (p.n << 19);
-      } else {
-        throw new AssertionError("Invalid piece: " + piece);
+
+  /**
+   * Return the piece in the "index"th slot of the hand of "p", counting the captured piece
+   * types in the order FU, KYO, ..., HI. The piece is negative for Player.WHITE.
+   * Return Piece.EMPTY if there is no such slot. See numCaptured() for the count.
+   */
+  public final int capturedPieceAt(Player p, int index) {
+    final int bits = (p == Player.BLACK ? mCapturedBlack : mCapturedWhite);
+    for (int type = Piece.FU; type <= Piece.HI; ++type) {
+      if (((bits >> HAND_SHIFT[type]) & HAND_MASK[type]) != 0 && index-- == 0) {
+        return p == Player.BLACK ? type : -type;
       }
     }
-    if (player == Player.BLACK) {
-      mCapturedBlackList = new ArrayList<Board.CapturedPiece>(pieces);
-      mCapturedBlack = mLastReadCapturedBlack = bits;
-    } else {
-      mCapturedWhiteList = new ArrayList<Board.CapturedPiece>(pieces);
-      mCapturedWhite = mLastReadCapturedWhite = bits;
-    }
+    return Piece.EMPTY;
   }
-  
+
+  /** Set the number of pieces of "type" (Piece.FU to Piece.HI) captured by "p". */
+  public final void setNumCaptured(Player p, int type, int n) {
+    Assert.isTrue(n >= 0 && n <= HAND_MASK[type]);
+    final int bits = (p == Player.BLACK ? mCapturedBlack : mCapturedWhite);
+    setCapturedBits(p, (bits & ~(HAND_MASK[type] << HAND_SHIFT[type])) | (n << HAND_SHIFT[type]));
+  }
+
   // Absolute position on a Board.
   public static class Position {
     public Position(int tx, int ty) { x = tx; y = ty; }
@@ -233,90 +858,102 @@ public class Board implements Serializable {
     public final boolean multi;
   }
 
-  private static final ArrayList<CapturedPiece> listCapturedPieces(
-      Player player, int bits) {
-    int sign = (player == Player.BLACK ? 1 : -1);
-    
-    ArrayList<CapturedPiece> pieces = new ArrayList<CapturedPiece>();
-    int n = Board.numCapturedFu(bits);
-    if (n > 0) {
-      pieces.add(new CapturedPiece(Piece.FU * sign, n));
-    }
-    n = Board.numCapturedKyo(bits);
-    if (n > 0) {
-      pieces.add(new CapturedPiece(Piece.KYO * sign, n));
-    }
-    n = Board.numCapturedKei(bits);
-    if (n > 0) {
-      pieces.add(new CapturedPiece(Piece.KEI * sign, n));
-    }
-    n = Board.numCapturedGin(bits);
-    if (n > 0) {
-      pieces.add(new CapturedPiece(Piece.GIN * sign, n));
-    }
-    n = Board.numCapturedKin(bits);
-    if (n > 0) {
-      pieces.add(new CapturedPiece(Piece.KIN * sign, n));
-    }
-    n = Board.numCapturedKaku(bits);
-    if (n > 0) {
-      pieces.add(new CapturedPiece(Piece.KAKU * sign, n));
-    }
-    n = Board.numCapturedHi(bits);
-    if (n > 0) {
-      pieces.add(new CapturedPiece(Piece.HI * sign, n));
-    }
-    return pieces;
-  }
-
   /**
    *  Apply the move "m" by player "p" to the board. Does not check if the move is legal. 
    */
   public final void applyPly(Player p, Play m) {
-    int oldPiece = Piece.EMPTY;
-    boolean capturedChanged = false;
-    ArrayList<CapturedPiece> captured = getCapturedPieces(p);
-
-    if (m.isDroppingPiece()) {
-      setPiece(m.toX(), m.toY(), m.piece());
-      capturedChanged = true;
-      for (int i = 0; i < captured.size(); ++i) {
-        Board.CapturedPiece c = captured.get(i);
-        if (c.piece == m.piece()) {
-          if (c.n == 1) {
-            captured.remove(i);
-          } else {
-            captured.set(i, new Board.CapturedPiece(c.piece, c.n - 1));
-          }
-          break;
-        }
-      }
+    final int to = m.toX() + m.toY() * DIM;
+    final int from = m.isDroppingPiece() ? UNDO_DROP : m.fromX() + m.fromY() * DIM;
+    doMove(p, from, to, m.piece());
+  }
+
+  /**
+   * Apply the packed move (see Move) to the board. The player is the owner of Move.piece(move). 
+   * Does not check if the move is legal. The move can be reverted by undoPly().
+   */
+  public final void applyMove(int move) {
+    final int from = Move.from(move);
+    doMove(Move.player(move), from < 0 ? UNDO_DROP : from, Move.to(move), Move.piece(move));
+  }
+
+  private final void doMove(Player p, int from, int to, int piece) {
+    pushUndo(from, to, from == UNDO_DROP ? piece : mSquares[from], mSquares[to], p);
+    int captured = (p == Player.WHITE ? mCapturedWhite : mCapturedBlack);
+    if (from == UNDO_DROP) {
+      final int shift = HAND_SHIFT[type(piece)];
+      if (((captured >> shift) & HAND_MASK[type(piece)]) > 0) captured -= 1 << shift;
     } else {
-      setPiece(m.fromX(), m.fromY(), Piece.EMPTY);
-      oldPiece = getPiece(m.toX(), m.toY());
-      setPiece(m.toX(), m.toY(), m.piece());
-    }
-    if (oldPiece != Piece.EMPTY) {
-      capturedChanged = true;
-      oldPiece = -oldPiece; // now the piece is owned by the opponent
-      if (Board.isPromoted(oldPiece)) {
-        oldPiece = Board.unpromote(oldPiece);
-      }
-      boolean found = false; 
-      for (int i = 0; i < captured.size(); ++i) {
-        Board.CapturedPiece c = captured.get(i);
-        if (c.piece == oldPiece) {
-          Board.CapturedPiece nc = new Board.CapturedPiece(oldPiece, c.n + 1);
-          captured.set(i, nc);
-          found = true;
-          break;
-        }
-      }
-      if (!found) {
-        captured.add(new Board.CapturedPiece(oldPiece, 1));
+      final int oldPiece = mSquares[to];
+      setSquare(from, Piece.EMPTY);
+      if (oldPiece != Piece.EMPTY) {
+        int t = type(oldPiece);
+        if (t >= Piece.TO) t -= 8;  // unpromote
+        if (t == Piece.OU) throw new AssertionError("Invalid piece: " + t);
+        captured += 1 << HAND_SHIFT[t];
       }
     }
-    if (capturedChanged) setCapturedPieces(p, captured);
+    setSquare(to, piece);
+    setCapturedBits(p, captured);
+    setNextPlayer(p.opponent());
+  }
+
+  /**
+   * Revert the last applyPly() or applyMove() that hasn't been undone yet: restore the moved
+   * piece (including its promotion state), the captured piece, the hands and the side to move.
+   * Returns false if there is no such ply. The history is cleared by initialize() and
+   * syncFromSquares(), and is not serialized.
+   */
+  public final boolean undoPly() {
+    if (mUndoSize == 0) return false;
+    mUndoSize -= UNDO_RECORD_SIZE;
+    final int rec = mUndo[mUndoSize];
+    final int from = rec & 0x7f;
+    final int to = (rec >> 7) & 0x7f;
+    setSquare(to, mUndo[mUndoSize + 2]);
+    if (from != UNDO_DROP) setSquare(from, mUndo[mUndoSize + 1]);
+    setCapturedBits((rec & UNDO_WHITE_MOVED) != 0 ? Player.WHITE : Player.BLACK, 
+        mUndo[mUndoSize + 3]);
+    setNextPlayer((rec & UNDO_WHITE_TO_MOVE) != 0 ? Player.WHITE : Player.BLACK);
+    return true;
+  }
+
+  /** The number of plies that undoPly() can revert. */
+  public final int undoDepth() { return mUndoSize / UNDO_RECORD_SIZE; }
+
+  // Each applyPly() or applyMove() pushes UNDO_RECORD_SIZE ints to mUndo:
+  //   [0] source square (UNDO_DROP when dropping) | destination square << 7 | UNDO_* flags
+  //   [1] the piece at the source square before the move (the dropped piece when dropping)
+  //   [2] the piece at the destination square before the move
+  //   [3] the mover's captured pieces before the move, in the mCapturedBlack format
+  private static final int UNDO_RECORD_SIZE = 4;
+  private static final int INITIAL_UNDO_CAPACITY = UNDO_RECORD_SIZE * 32;
+  private static final int UNDO_DROP = 0x7f;
+  private static final int UNDO_WHITE_MOVED = 1 << 14;
+  private static final int UNDO_WHITE_TO_MOVE = 1 << 15;
+
+  private final void pushUndo(int from, int to, int fromPiece, int toPiece, Player p) {
+    if (mUndoSize + UNDO_RECORD_SIZE > mUndo.length) {
+      mUndo = Arrays.copyOf(mUndo, mUndo.length * 2);
+    }
+    int rec = from | (to << 7);
+    if (p == Player.WHITE) rec |= UNDO_WHITE_MOVED;
+    if (mWhiteToMove) rec |= UNDO_WHITE_TO_MOVE;
+    mUndo[mUndoSize] = rec;
+    mUndo[mUndoSize + 1] = fromPiece;
+    mUndo[mUndoSize + 2] = toPiece;
+    mUndo[mUndoSize + 3] = (p == Player.WHITE ? mCapturedWhite : mCapturedBlack);
+    mUndoSize += UNDO_RECORD_SIZE;
+  }
+
+  // Set the captured pieces of "player" in the mCapturedBlack format.
+  private final void setCapturedBits(Player player, int bits) {
+    if (player == Player.BLACK) {
+      mHash ^= handHash(0, mCapturedBlack) ^ handHash(0, bits);
+      mCapturedBlack = bits;
+    } else {
+      mHash ^= handHash(1, mCapturedWhite) ^ handHash(1, bits);
+      mCapturedWhite = bits;
+    }
   }
   
   /**
@@ -324,77 +961,85 @@ public class Board implements Serializable {
    * move to. It takes other pieces on the board into account, but it may
    * still generate illegal moves -- e.g., this method doesn't check for
    * sennichite, uchi-fu zume aren't by this method.
+   * 
+   * This is a convenience wrapper around getMoveDestinations(), which doesn't
+   * allocate.
    */
   ArrayList<Position> possibleMoveDestinations(int fromX, int fromY) {
-    int piece = getPiece(fromX, fromY);
-    MoveTargetsLister lister = new MoveTargetsLister(
-        this, player(piece), fromX, fromY);
-    for (MoveDelta m: possibleMoves(type(piece))) {
-      lister.tryMove(m);
+    int[] squares = new int[DIM * DIM];
+    final int n = getMoveDestinations(fromX, fromY, squares);
+    ArrayList<Position> targets = new ArrayList<Position>(n);
+    for (int i = 0; i < n; ++i) {
+      targets.add(new Position(squares[i] % DIM, squares[i] / DIM));
     }
-    return lister.getTargets();
+    return targets;
   }
-  
-  // Helper class for listing possible positions a piece can move to
-  private static final class MoveTargetsLister {
-    // <cur_x, cur_y> is the current board position of the piece.
-    // Both are in range [0, Board.DIM).
-    public MoveTargetsLister(Board board, Player player, int cur_x, int cur_y) {
-      mBoard = board;
-      mPlayer = player;
-      mCurX = cur_x;
-      mCurY = cur_y;
-    }
-
-    // If the piece can be moved to <curX+m.deltaX, curY+m.deltaY>, add it to
-    // mTargets.
-    public final void tryMove(MoveDelta m) {
-      mSeenOpponentPiece = false;
-      int dy = m.deltaY;
-      if (mPlayer == Player.WHITE) dy = -dy;
-      if (!m.multi) {
-        tryMoveTo(mCurX + m.deltaX, mCurY + dy);
-      } else {
-        int x = mCurX;
-        int y = mCurY;
-        for (;;) {
-          x += m.deltaX;
-          y += dy;
-          if (!tryMoveTo(x, y)) break;
+
+  /**
+   * Store the squares that the piece at <fromX, fromY> can move to in "out". 
+   * The same caveats as possibleMoveDestinations() apply.
+   */
+  public final void getMoveDestinations(int fromX, int fromY, SquareSet out) {
+    out.clear();
+    final int from = fromX + fromY * DIM;
+    final int piece = mSquares[from];
+    if (piece == Piece.EMPTY) return;
+    final int table = moveTableIndex(piece);
+    final int own = (piece > 0 ? 0 : NUM_TYPES * 2);
+    final int step = (table * DIM * DIM + from) * 2;
+    out.lo = STEP_TARGETS[step] & ~mBits[own];
+    out.hi = STEP_TARGETS[step + 1] & ~mBits[own + 1];
+
+    final int[] dirs = SLIDE_DIRECTIONS[table];
+    for (int d = 0; d < dirs.length; ++d) {
+      final int[] ray = RAYS[dirs[d] * DIM * DIM + from];
+      for (int k = 0; k < ray.length; ++k) {
+        final int existing = mSquares[ray[k]];
+        if (existing == Piece.EMPTY) {
+          out.add(ray[k]);
+          continue;
         }
+        if ((existing ^ piece) < 0) out.add(ray[k]);  // opponent's piece
+        break;
       }
     }
+  }
 
-    // Return the computed list of move targets.
-    public final ArrayList<Position> getTargets() { return mTargets; }
+  /**
+   * Store the squares that the piece at <fromX, fromY> can move to in
+   * "out[0..n)", where n is the return value. Each square is x + y * DIM.
+   * "out" must have room for at least DIM * DIM entries. 
+   * The same caveats as possibleMoveDestinations() apply.
+   */
+  public final int getMoveDestinations(int fromX, int fromY, int[] out) {
+    final int from = fromX + fromY * DIM;
+    final int piece = mSquares[from];
+    if (piece == Piece.EMPTY) return 0;
+    final int table = moveTableIndex(piece);
+    final int own = (piece > 0 ? 0 : NUM_TYPES * 2);
+    final int step = (table * DIM * DIM + from) * 2;
+    int n = 0;
+    for (long b = STEP_TARGETS[step] & ~mBits[own]; b != 0; b &= b - 1) {
+      out[n++] = Long.numberOfTrailingZeros(b);
+    }
+    for (long b = STEP_TARGETS[step + 1] & ~mBits[own + 1]; b != 0; b &= b - 1) {
+      out[n++] = 64 + Long.numberOfTrailingZeros(b);
+    }
 
-    private final boolean tryMoveTo(int x, int y) {
-      // Disallow moving outside the board
-      if (x < 0 || x >= Board.DIM || y < 0 || y >= Board.DIM) {
-        return false;
-      }
-      // Disallow skipping over an opponent piece
-      if (mSeenOpponentPiece) return false;
-
-      // Disallow occuping the same square twice
-      int existing = mBoard.getPiece(x, y);
-      if (existing != 0) {
-        if (Board.player(existing) == mPlayer) return false;
-        mSeenOpponentPiece = true;
-        mTargets.add(new Position(x, y));
-        return true;
+    final int[] dirs = SLIDE_DIRECTIONS[table];
+    for (int d = 0; d < dirs.length; ++d) {
+      final int[] ray = RAYS[dirs[d] * DIM * DIM + from];
+      for (int k = 0; k < ray.length; ++k) {
+        final int existing = mSquares[ray[k]];
+        if (existing == Piece.EMPTY) {
+          out[n++] = ray[k];
+          continue;
+        }
+        if ((existing ^ piece) < 0) out[n++] = ray[k];  // opponent's piece
+        break;
       }
-
-      mTargets.add(new Position(x, y));
-      return true;
     }
-
-    private final ArrayList<Position> mTargets = new ArrayList<Position>();
-    private final Board mBoard;
-    private final Player mPlayer;
-    private final int mCurX;
-    private final int mCurY;
-    private boolean mSeenOpponentPiece;
+    return n;
   }
 
   private static MoveDelta[] possibleMoves(int piece) {
@@ -480,34 +1125,158 @@ public class Board implements Serializable {
     new MoveDelta(1, 1, false),
   };
   
-  // Helper functions to parse the value of mCapturedBlack or mCapturedWhite.
-  private static final int numCapturedFu(int c) { return c & 0x1f; }
-  private static final int numCapturedKyo(int c) { return (c >> 5) & 7; }
-  private static final int numCapturedKei(int c) { return (c >>  8) & 0x07; }
-  private static final int numCapturedGin(int c) { return (c >> 11) & 0x07; }
-  private static final int numCapturedKin(int c) { return (c >> 14) & 0x07; }
-  private static final int numCapturedKaku(int c) { return (c >> 17) & 3; }
-  private static final int numCapturedHi(int c) { return (c >> 19); }
-  
+  //
+  // Precomputed move tables, derived from the MoveDelta arrays above. 
+  // The tables are indexed by moveTableIndex(piece), which distinguishes the owner of
+  // the piece since a WHITE piece moves in the opposite y direction.
+  //
+
+  // The eight directions a piece can slide to. Direction d^1 is the opposite of d.
+  private static final int[] DIRECTION_X = { 0, 0, -1, 1, -1, 1, 1, -1 };
+  private static final int[] DIRECTION_Y = { -1, 1, 0, 0, -1, 1, -1, 1 };
+
+  // For each <moveTableIndex, square>, the (lo, hi) mask of the squares reachable by
+  // a single, non-sliding step. Entry ((table * 81) + square) * 2.
+  private static final long[] STEP_TARGETS = new long[NUM_TYPES * 2 * DIM * DIM * 2];
+
+  // For each moveTableIndex, the list of directions the piece can slide to, and the
+  // same as a bit mask (bit d is set iff the piece slides in direction d).
+  private static final int[][] SLIDE_DIRECTIONS = new int[NUM_TYPES * 2][];
+  private static final int[] SLIDE_MASK = new int[NUM_TYPES * 2];
+
+  // For each pair of squares <from, to>, the direction from "from" to "to", or -1 if they
+  // aren't on the same rank, file or diagonal. Entry from * 81 + to.
+  private static final byte[] DIRECTION_BETWEEN = new byte[DIM * DIM * DIM * DIM];
+
+  // For each <direction, square>, the squares from the square (exclusive) to the
+  // edge of the board in that direction. Entry (direction * 81) + square.
+  private static final int[][] RAYS = new int[8 * DIM * DIM][];
+
+  private static final int moveTableIndex(int piece) {
+    return piece > 0 ? piece : NUM_TYPES - piece;
+  }
+
+  private static final int direction(int dx, int dy) {
+    for (int d = 0; d < 8; ++d) {
+      if (DIRECTION_X[d] == dx && DIRECTION_Y[d] == dy) return d;
+    }
+    throw new AssertionError("Invalid direction " + dx + "," + dy);
+  }
+
+  static {
+    for (int d = 0; d < 8; ++d) {
+      for (int sq = 0; sq < DIM * DIM; ++sq) {
+        int n = 0;
+        int[] tmp = new int[DIM];
+        int x = sq % DIM + DIRECTION_X[d];
+        int y = sq / DIM + DIRECTION_Y[d];
+        while (x >= 0 && x < DIM && y >= 0 && y < DIM) {
+          tmp[n++] = x + y * DIM;
+          x += DIRECTION_X[d];
+          y += DIRECTION_Y[d];
+        }
+        RAYS[d * DIM * DIM + sq] = Arrays.copyOf(tmp, n);
+      }
+    }
+    Arrays.fill(DIRECTION_BETWEEN, (byte)-1);
+    for (int d = 0; d < 8; ++d) {
+      for (int sq = 0; sq < DIM * DIM; ++sq) {
+        for (int to : RAYS[d * DIM * DIM + sq]) DIRECTION_BETWEEN[sq * DIM * DIM + to] = (byte)d;
+      }
+    }
+    for (int table = 0; table < NUM_TYPES * 2; ++table) {
+      final int piece = (table < NUM_TYPES ? table : NUM_TYPES - table);
+      final int type = type(piece);
+      if (type == Piece.EMPTY || type == 13) {
+        SLIDE_DIRECTIONS[table] = new int[0];
+        continue;
+      }
+      final int sign = (piece > 0 ? 1 : -1);
+      final MoveDelta[] moves = possibleMoves(type);
+      int numSlides = 0;
+      for (MoveDelta m : moves) if (m.multi) ++numSlides;
+      SLIDE_DIRECTIONS[table] = new int[numSlides];
+      numSlides = 0;
+      for (MoveDelta m : moves) {
+        if (m.multi) {
+          SLIDE_DIRECTIONS[table][numSlides] = direction(m.deltaX, m.deltaY * sign);
+          SLIDE_MASK[table] |= 1 << SLIDE_DIRECTIONS[table][numSlides++];
+          continue;
+        }
+        for (int sq = 0; sq < DIM * DIM; ++sq) {
+          final int x = sq % DIM + m.deltaX;
+          final int y = sq / DIM + m.deltaY * sign;
+          if (x < 0 || x >= DIM || y < 0 || y >= DIM) continue;
+          final int to = x + y * DIM;
+          final int i = (table * DIM * DIM + sq) * 2;
+          if (to < 64) {
+            STEP_TARGETS[i] |= 1L << to;
+          } else {
+            STEP_TARGETS[i + 1] |= 1L << (to - 64);
+          }
+        }
+      }
+    }
+  }
+
+  // Bit offset and mask of the count of each piece type in mCapturedBlack or mCapturedWhite.
+  private static final int[] HAND_SHIFT = { 0, 0, 5, 8, 11, 14, 17, 19 };
+  private static final int[] HAND_MASK = { 0, 0x1f, 7, 7, 7, 7, 3, 3 };
+
+  /**
+   * Return the number of pieces of "type" (Piece.FU to Piece.HI) captured by "p".
+   */
+  public final int numCaptured(Player p, int type) {
+    final int bits = (p == Player.BLACK ? mCapturedBlack : mCapturedWhite);
+    return (bits >> HAND_SHIFT[type]) & HAND_MASK[type];
+  }
+
+  /**
+   * Return the pieces captured by "p", packed in the format shared with the JNI code.
+   * Zero if "p" has no captured piece.
+   */
+  public final int getCapturedBits(Player p) {
+    return (p == Player.BLACK ? mCapturedBlack : mCapturedWhite);
+  }
+
+  /** Return the piece at square "sq" (x + y * DIM). */
+  public final int pieceAt(int sq) { return mSquares[sq]; }
+
   // mSquares is a 81-entry array. mSquares[X + 9 * Y] stores the piece at coordinate <X, Y>. 
   // <0, 0> is at the upper left corner of the board. 
   // 
   // The sign of the value describes the owner of the piece. A positive (negative) value means that the piece
   // is owned by Player.BLACK (Player.WHITE). The absolute value describes the piece type as defined in the Piece class.
-  private int mSquares[];    
-  
-  // The following two fields are set directly by the JNI C code.
-  private int mCapturedBlack;
-  private int mCapturedWhite;
-  
-  // Encode the set of pieces captured by the BLACK player. 
-  private ArrayList<CapturedPiece> mCapturedBlackList;
-  // Encode the set of pieces captured by the WHITE player. 
-  private ArrayList<CapturedPiece> mCapturedWhiteList;
+  private transient int mSquares[];    
+
+  // Bitboards derived from mSquares, one (lo, hi) pair of longs per <player, piece type>.
+  // See bitIndex() for the layout. setPiece() keeps them up to date; syncFromSquares()
+  // rebuilds them after the JNI code fills mSquares.
+  private transient long mBits[];
 
-  // The values of mCaptured{Black,White} used when computing the above lists.
-  // That is, if mLastReadCapturefX != mCaptuturedX, then we need to recompute mCapturedXList.
-  private int mLastReadCapturedBlack;
-  private int mLastReadCapturedWhite;
+  // Attack maps derived from mSquares: for each <player, square>, the (lo, hi) set of the
+  // squares of the player's pieces that attack the square. See attackIndex() for the
+  // layout. setSquare() updates them incrementally; syncFromSquares() rebuilds them.
+  private transient long mAttacks[];
 
+  // Cache of getPinned(): the (lo, hi) set of the pinned pieces of BLACK, then WHITE.
+  // Bit i of mPinnedValid is set if entry i is up to date.
+  private transient long mPinned[];
+  private transient int mPinnedValid;
+
+  // True if Player.WHITE makes the next move.
+  private transient boolean mWhiteToMove;
+
+  // Zobrist key of the position. See hashKey().
+  private transient long mHash;
+
+  // Undo records pushed by applyPly(). mUndo[0, mUndoSize) is valid.
+  private transient int mUndo[];
+  private transient int mUndoSize;
+  
+  // Pieces captured by each player. The count of each piece type is packed into bit
+  // fields; see HAND_SHIFT and HAND_MASK. The JNI C code reads and writes these two
+  // fields directly, using the same layout as Bonanza.
+  private transient int mCapturedBlack;
+  private transient int mCapturedWhite;
 }
@@ -0,0 +1,84 @@
+package mobi.omegacentauri.shogi;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Immutable, compact copy of a Board position: Board.SNAPSHOT_SIZE bytes covering the
+ * pieces, the hands and the side to move. See Board.writeSnapshot() for the format.
+ *
+ * Snapshots are cheap to pass between threads and to persist, and can be used as hash
+ * keys. Two snapshots are equal iff the boards they were taken from are equal().
+ */
+public final class BoardSnapshot {
+  public static final int SIZE = Board.SNAPSHOT_SIZE;
+
+  private final byte[] mBytes;
+  private final int mHashCode;
+
+  public BoardSnapshot(Board board) {
+    this(board.toSnapshot());
+  }
+
+  // "bytes" is owned by the new object.
+  private BoardSnapshot(byte[] bytes) {
+    mBytes = bytes;
+    mHashCode = Arrays.hashCode(bytes);
+  }
+
+  /** Create a snapshot from the bytes returned by toByteArray(). */
+  public static final BoardSnapshot fromByteArray(byte[] bytes) {
+    if (bytes.length != SIZE) {
+      throw new IllegalArgumentException("Wrong snapshot size: " + bytes.length);
+    }
+    return new BoardSnapshot(bytes.clone());
+  }
+
+  /** Read SIZE bytes from "in" and create a snapshot. */
+  public static final BoardSnapshot read(ByteBuffer in) {
+    byte[] bytes = new byte[SIZE];
+    in.get(bytes);
+    return new BoardSnapshot(bytes);
+  }
+
+  /** Write the snapshot of "board" to "out". Advances its position by SIZE. */
+  public static final void write(Board board, ByteBuffer out) {
+    if (out.hasArray()) {
+      board.writeSnapshot(out.array(), out.arrayOffset() + out.position());
+      out.position(out.position() + SIZE);
+    } else {
+      out.put(board.toSnapshot());
+    }
+  }
+
+  /** Read SIZE bytes from "in" into "board". Advances its position by SIZE. */
+  public static final void read(ByteBuffer in, Board board) {
+    if (in.hasArray()) {
+      board.readSnapshot(in.array(), in.arrayOffset() + in.position());
+      in.position(in.position() + SIZE);
+    } else {
+      byte[] bytes = new byte[SIZE];
+      in.get(bytes);
+      board.readSnapshot(bytes, 0);
+    }
+  }
+
+  public final void write(ByteBuffer out) { out.put(mBytes); }
+
+  public final byte[] toByteArray() { return mBytes.clone(); }
+
+  public final Board toBoard() { return Board.fromSnapshot(mBytes); }
+
+  /** Set "board" to the snapshot's position. The undo history of "board" is cleared. */
+  public final void restore(Board board) { board.readSnapshot(mBytes, 0); }
+
+  @Override public boolean equals(Object o) {
+    if (o instanceof BoardSnapshot) {
+      BoardSnapshot s = (BoardSnapshot)o;
+      return s.mHashCode == mHashCode && Arrays.equals(s.mBytes, mBytes);
+    }
+    return false;
+  }
+
+  @Override public int hashCode() { return mHashCode; }
+}
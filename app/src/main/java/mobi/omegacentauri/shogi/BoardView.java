@@ -66,11 +66,11 @@ public class BoardView extends FrameLayout implements View.OnTouchListener, Keyb
         XY xy = (XY)cp.mExtras;
         if (xy.y == XY.BLACK_CAPTURED) {
             return mCurrentPlayer.equals(Player.BLACK) && isHumanPlayer(Player.BLACK) &&
-                xy.x < listCapturedPieces(mBoard, getScreenLayout(), Player.BLACK).size();
+                xy.x < mBoard.numCapturedTypes(Player.BLACK);
         }
         else if (xy.y == XY.WHITE_CAPTURED) {
             return mCurrentPlayer.equals(Player.WHITE) && isHumanPlayer(Player.WHITE) &&
-                    xy.x < listCapturedPieces(mBoard, getScreenLayout(), Player.WHITE).size();
+                    xy.x < mBoard.numCapturedTypes(Player.WHITE);
         }
         return true;
     }
@@ -139,9 +139,13 @@ public class BoardView extends FrameLayout implements View.OnTouchListener, Keyb
         animateMove = animateMove && mPrefs.getBoolean("animate", true);
 
         mCurrentPlayer = currentPlayer;
-        mLastBoard = null;
-        if (lastBoard != null) mLastBoard = new Board(lastBoard);
-        mBoard = new Board(board);
+        if (lastBoard == null) {
+            mLastBoard = null;
+        } else {
+            if (mLastBoard == null) mLastBoard = new Board();
+            mLastBoard.copyFrom(lastBoard);
+        }
+        mBoard.copyFrom(board);
 
         mLastMove = lastMove;
         mAnimationStartTime = mNextAnimationTime = -1;
@@ -224,8 +228,8 @@ public class BoardView extends FrameLayout implements View.OnTouchListener, Keyb
                     int y = py + j;
                     if (x >= 0 && x < Board.DIM && y >= 0 && y < Board.DIM) {
                         if (Board.player(board.getPiece(x, y)) == player) {
-                            ArrayList<Board.Position> dests = board.possibleMoveDestinations(x, y);
-                            if (!dests.isEmpty()) {
+                            MoveGenerator.getLegalDestinations(board, x, y, mDestinations);
+                            if (!mDestinations.isEmpty()) {
                                 tryScreenPosition(mLayout.screenX(x), mLayout.screenY(y), x, y, S_PIECE);
                             }
                         }
@@ -302,17 +306,19 @@ public class BoardView extends FrameLayout implements View.OnTouchListener, Keyb
             NearestSquareFinder finder = new NearestSquareFinder(layout, event.getX(), event.getY(), mExactPosition);
             finder.findNearestPlayersPieceOnBoard(mBoard, mCurrentPlayer);
 
-            ArrayList<CapturedPiece> captured = listCapturedPieces(mBoard, layout, mCurrentPlayer);
-            for (int i = 0; i < captured.size(); ++i) {
-                CapturedPiece cp = captured.get(i);
-                finder.tryScreenPosition(cp.sx, cp.sy, i, -1, S_CAPTURED);
+            final int numCaptured = mBoard.numCapturedTypes(mCurrentPlayer);
+            for (int i = 0; i < numCaptured; ++i) {
+                finder.tryScreenPosition(
+                        layout.capturedScreenX(mCurrentPlayer, i),
+                        layout.capturedScreenY(mCurrentPlayer, i),
+                        i, -1, S_CAPTURED);
             }
             if (finder.nearestType() == S_PIECE) {
                 mMoveFrom = new PositionOnBoard(finder.nearestX(), finder.nearestY());
                 mMoveTo = new PositionOnBoard(finder.nearestX(), finder.nearestY());
             } else if (finder.nearestType() == S_CAPTURED) {
                 // Dropping a captured piece
-                mMoveFrom = captured.get(finder.nearestX());
+                mMoveFrom = newCapturedPiece(mBoard, layout, mCurrentPlayer, finder.nearestX());
             } else {
                 return false;
             }
@@ -326,11 +332,13 @@ public class BoardView extends FrameLayout implements View.OnTouchListener, Keyb
             NearestSquareFinder finder = new NearestSquareFinder(layout, event.getX(), event.getY(), mExactPosition);
             if (mMoveFrom instanceof PositionOnBoard) {
                 PositionOnBoard from = (PositionOnBoard) mMoveFrom;
-                ArrayList<Board.Position> dests = mBoard.possibleMoveDestinations(from.x, from.y);
-                for (Board.Position d : dests) {
+                MoveGenerator.getLegalDestinations(mBoard, from.x, from.y, mDestinations);
+                for (int sq = mDestinations.pop(); sq >= 0; sq = mDestinations.pop()) {
+                    final int x = SquareSet.x(sq);
+                    final int y = SquareSet.y(sq);
                     finder.tryScreenPosition(
-                            layout.screenX(d.x), layout.screenY(d.y),
-                            d.x, d.y, S_MOVE_DESTINATION);
+                            layout.screenX(x), layout.screenY(y),
+                            x, y, S_MOVE_DESTINATION);
                 }
                 // Allow moving to the origin point to nullify the move.
                 finder.tryScreenPosition(
@@ -550,10 +558,10 @@ public class BoardView extends FrameLayout implements View.OnTouchListener, Keyb
             movePlayer = movePiece < 0 ? Player.WHITE : Player.BLACK;
 
             if (mLastMove.isDroppingPiece()) {
-                ArrayList<CapturedPiece> pieces = listCapturedPieces(board, layout, movePlayer);
+                final int numCaptured = board.numCapturedTypes(movePlayer);
                 int index = -1;
-                for (int i = 0; i < pieces.size() ; i++)
-                    if (movePiece == pieces.get(i).piece) {
+                for (int i = 0; i < numCaptured; i++)
+                    if (movePiece == board.capturedPieceAt(movePlayer, i)) {
                         index = i;
                         break;
                     }
@@ -613,14 +621,14 @@ public class BoardView extends FrameLayout implements View.OnTouchListener, Keyb
             if (mMoveFrom instanceof PositionOnBoard) {
                 PositionOnBoard from = (PositionOnBoard) mMoveFrom;
                 // Draw orange dots in each possible destination
-                ArrayList<Board.Position> dests = mBoard.possibleMoveDestinations(from.x, from.y);
+                MoveGenerator.getLegalDestinations(mBoard, from.x, from.y, mDestinations);
 
                 Paint cp = new Paint();
                 cp.setColor(0xc0ff8c00);
                 cp.setStyle(Style.FILL);
-                for (Board.Position dest : dests) {
-                    float sx = layout.screenX(dest.x);
-                    float sy = layout.screenY(dest.y);
+                for (int sq = mDestinations.pop(); sq >= 0; sq = mDestinations.pop()) {
+                    float sx = layout.screenX(SquareSet.x(sq));
+                    float sy = layout.screenY(SquareSet.y(sq));
 
                     sx += squareDim / 2.0f;
                     sy += squareDim / 2.0f;
@@ -900,6 +908,9 @@ public class BoardView extends FrameLayout implements View.OnTouchListener, Keyb
     // @invariant mMoveTo== null || (0,0) <= mMoveTo < (Board.DIM, Board.DIM)
     private PositionOnBoard mMoveTo;
 
+    // Scratch space for listing move destinations.
+    private final SquareSet mDestinations = new SquareSet();
+
     private Play mLastMove;
     private long mAnimationStartTime;
     private long mNextAnimationTime;
@@ -943,21 +954,16 @@ public class BoardView extends FrameLayout implements View.OnTouchListener, Keyb
     }
 
     /**
-     * List pieces captured by player.
+     * Create a CapturedPiece for the "index"th slot of the pieces captured by player.
      */
-    private final ArrayList<CapturedPiece> listCapturedPieces(
+    private static final CapturedPiece newCapturedPiece(
             Board board, ScreenLayout layout,
-            Player player) {
-        int seq = 0;
-        ArrayList<CapturedPiece> pieces = new ArrayList<CapturedPiece>();
-        for (Board.CapturedPiece p : board.getCapturedPieces(player)) {
-            pieces.add(new CapturedPiece(
-                    seq, p.piece, p.n,
-                    layout.capturedScreenX(player, seq),
-                    layout.capturedScreenY(player, seq)));
-            ++seq;
-        }
-        return pieces;
+            Player player, int index) {
+        final int piece = board.capturedPieceAt(player, index);
+        return new CapturedPiece(
+                index, piece, board.numCaptured(player, Board.type(piece)),
+                layout.capturedScreenX(player, index),
+                layout.capturedScreenY(player, index));
     }
 
 
@@ -966,19 +972,24 @@ public class BoardView extends FrameLayout implements View.OnTouchListener, Keyb
             ScreenLayout layout,
             Player player,
             int exceptPiece) {
-        ArrayList<CapturedPiece> pieces = listCapturedPieces(mBoard, layout, player);
-        for (int i = 0; i < pieces.size(); ++i) {
-            CapturedPiece p = pieces.get(i);
+        final int numCaptured = mBoard.numCapturedTypes(player);
+        final CapturedPiece moveFrom =
+                (mMoveFrom instanceof CapturedPiece) ? (CapturedPiece) mMoveFrom : null;
+        for (int i = 0; i < numCaptured; ++i) {
+            final int piece = mBoard.capturedPieceAt(player, i);
+            final int n = mBoard.numCaptured(player, Board.type(piece));
+            final float sx = layout.capturedScreenX(player, i);
+            final float sy = layout.capturedScreenY(player, i);
             int alpha = 255;
-            if (p.equals(mMoveFrom)) alpha = 64;
-            // int piece = (player == Player.BLACK ? p.piece : -p.piece);
-            if (p.piece == exceptPiece) {
-                if (p.n > 1)
-                    drawCapturedPiece(canvas, layout, p.piece, p.n-1, p.sx, p.sy, alpha);
+            if (moveFrom != null && moveFrom.position == i &&
+                    moveFrom.piece == piece && moveFrom.n == n) alpha = 64;
+            if (piece == exceptPiece) {
+                if (n > 1)
+                    drawCapturedPiece(canvas, layout, piece, n-1, sx, sy, alpha);
 
             }
             else
-                drawCapturedPiece(canvas, layout, p.piece, p.n, p.sx, p.sy, alpha);
+                drawCapturedPiece(canvas, layout, piece, n, sx, sy, alpha);
         }
     }
 
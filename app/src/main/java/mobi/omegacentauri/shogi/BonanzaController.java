@@ -65,7 +65,7 @@ public class BonanzaController {
                 switch (command) {
                     case C_START:
                         doStart(msg.getData().getInt("resume_instance_id"),
-                                (Board) msg.getData().get("initial_board"),
+                                Board.fromSnapshot(msg.getData().getByteArray("initial_board")),
                                 (Player) msg.getData().get("next_player"),
                                 (ArrayList<Play>) msg.getData().get("moves"),
                                 (int) msg.getData().getInt("preplay", 0),
@@ -110,7 +110,7 @@ public class BonanzaController {
             final int instanceId = bundle.getInt("bonanza_instance_id", 0);
             b.putInt("resume_instance_id", instanceId);
         }
-        b.putSerializable("initial_board", board);
+        if (board != null) b.putByteArray("initial_board", board.toSnapshot());
         b.putSerializable("next_player", nextPlayer);
         b.putSerializable("moves", plays);
         b.putInt("preplay", preplayCount);
@@ -232,8 +232,9 @@ public class BonanzaController {
                 BonanzaJNI.Result jr,
                 Player curPlayer) {
             Result r = new Result();
+            jr.board.syncFromSquares();
             r.board = jr.board;
-            r.lastMove = (jr.move != null) ? Play.fromCsaString(jr.move, curPlayer) : null;
+            r.lastMove = (jr.packedMove != Move.NONE) ? new Play(jr.packedMove) : null;
             r.lastPlayer = curPlayer;
             r.lastMoveCookie = jr.moveCookie;
             r.errorMessage = jr.error;
@@ -282,6 +283,7 @@ public class BonanzaController {
                         throw new AssertionError("Illegal jni_status: " + jr.status);
                 }
             }
+            if (r.nextPlayer != Player.INVALID) r.board.setNextPlayer(r.nextPlayer);
             return r;
         }
     }
@@ -317,6 +319,8 @@ public class BonanzaController {
             throw new AssertionError(String.format("startGame failed: %d %s", jr.status, jr.error));
         }
         Result r = new Result();
+        jr.board.syncFromSquares();
+        jr.board.setNextPlayer(nextPlayer);
         r.board = jr.board;
         r.nextPlayer = nextPlayer;
         r.gameState = GameState.ACTIVE;
@@ -327,7 +331,7 @@ public class BonanzaController {
             return;
 
         for (int i=0; i < preplayCount ; i++) {
-            BonanzaJNI.humanMove(mInstanceId, moves.get(i).toCsaString(), jr);
+            BonanzaJNI.humanMovePacked(mInstanceId, moves.get(i).move(), jr);
             if (jr.status == BonanzaJNI.R_INSTANCE_DELETED) {
                 mThread.quit();
                 return;
@@ -342,7 +346,7 @@ public class BonanzaController {
 
         if (preplayCount > 0) {
             long[] thinkTimeMs = new long[2];
-            Util.getTimesFromPlays(moves, preplayCount, thinkTimeMs);
+            Util.getTimesFromPlays(MoveList.fromPlays(moves), preplayCount, thinkTimeMs);
             blackTime = (int) ((thinkTimeMs[Player.BLACK.toIndex()]+500L)/1000L);
             whiteTime = (int) ((thinkTimeMs[Player.WHITE.toIndex()]+500L)/1000L);
         }
@@ -354,7 +358,7 @@ public class BonanzaController {
 
     private final void doHumanPlay(Player player, Play move) {
         BonanzaJNI.Result jr = new BonanzaJNI.Result();
-        BonanzaJNI.humanMove(mInstanceId, move.toCsaString(), jr);
+        BonanzaJNI.humanMovePacked(mInstanceId, move.move(), jr);
         if (jr.status == BonanzaJNI.R_INSTANCE_DELETED) {
             mThread.quit();
             return;
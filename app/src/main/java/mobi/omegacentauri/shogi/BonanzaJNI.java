@@ -44,8 +44,11 @@ public class BonanzaJNI {
     // The new state of the board. 
     public final Board board;
     
-    // The description of the move in CSA format.
+    // The description of the move in CSA format. Not set by humanMovePacked.
     public String move;
+
+    // The move, packed as in Move. Move.NONE if no move was made.
+    public int packedMove;
     
     // A cookie used to undo the move in the future. In practice, the value
     // in the result of calling interpret_CSA_move(csaMove).
@@ -105,6 +108,18 @@ public class BonanzaJNI {
       String move,
       Result result);
 
+  /**
+   * Same as humanMove, but takes the move packed as in Move, so that neither side
+   * builds or parses a CSA string. Only result.packedMove is set, not result.move.
+   *
+   * @param move The move packed as in Move. Move.PROMOTE need not be set; the promotion
+   *   is inferred from the piece after the move, as in the CSA format.
+   */
+  static public native void humanMovePacked(
+      int instanceId,
+      int move,
+      Result result);
+
   /**
    * Have the computer compute the next move. 
 
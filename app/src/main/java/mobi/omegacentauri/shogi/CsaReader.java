@@ -0,0 +1,343 @@
+package mobi.omegacentauri.shogi;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.TreeMap;
+
+/**
+ * Parses a game record in CSA format, e.g.,
+ *
+ *   V2.2
+ *   N+Black player
+ *   N-White player
+ *   $START_TIME:2012/09/08 10:00:00
+ *   PI
+ *   +
+ *   +7776FU
+ *   T12
+ *   -3334FU,T6
+ *   %TORYO
+ *
+ * The record is read line by line, and each statement is dispatched on its first
+ * character; no regular expressions are involved. Only the first game of a file is read:
+ * the parser stops at the first "%" (end of game) or "/" (next game) statement.
+ *
+ * Like GameLog, the reader supports only the initial positions of Handicap. A handicap
+ * record in the standard layout, e.g., "PI82HI" with "-" to move first, has the giver
+ * at the top; GameLog has the giver as Player.BLACK at the bottom. Such a record, and
+ * any other with "-" to move first, is rotated by 180 degrees with the colours
+ * swapped: the board, the moves and the player names. Other positions are rejected
+ * with ParseException.
+ */
+final class CsaReader {
+  private final File mPath;
+  private final TreeMap<String, String> mAttrs = new TreeMap<String, String>();
+  private final MoveList mMoves = new MoveList();
+  private long mStartTimeMs;
+  private int mLineNumber;
+
+  // The initial position, as given by the P statements, then the position after the
+  // moves in mMoves. null until the first P statement or move.
+  private Board mBoard;
+  private boolean mPositionChecked;
+
+  // The player to move first, as given by a "+" or "-" statement. null if none.
+  private Player mFirstPlayer;
+
+  // Whether the record is rotated into the layout of GameLog; see checkPosition().
+  private boolean mRotated;
+
+  // The total time used by each player, in seconds, after the last T statement.
+  private final long mTotalTimeSec[] = new long[2];
+
+  private CsaReader(File path) {
+    mPath = path;
+  }
+
+  /**
+   * @param path The local sdcard path in which the record is stored. Should
+   * be null if the data is not on sdcard.
+   */
+  static GameLog read(File path, Reader in) throws ParseException, IOException {
+    CsaReader r = new CsaReader(path);
+    r.parse(new BufferedReader(in));
+    return r.toGameLog();
+  }
+
+  private final void parse(BufferedReader in) throws ParseException, IOException {
+    String line;
+    while ((line = in.readLine()) != null) {
+      ++mLineNumber;
+      // A comment runs to the end of the line, commas included.
+      if (line.length() == 0 || line.charAt(0) == '\'') continue;
+
+      // A line holds one or more statements separated by commas.
+      int start = 0;
+      for (;;) {
+        int end = line.indexOf(',', start);
+        if (end < 0) end = line.length();
+        if (!parseStatement(line, start, end)) return;
+        if (end == line.length()) break;
+        start = end + 1;
+      }
+    }
+  }
+
+  // Parse the statement at line[start, end). Returns false if it ends the game.
+  private final boolean parseStatement(String line, int start, int end) throws ParseException {
+    if (start == end) return true;
+    switch (line.charAt(start)) {
+    case 'V':  // version
+      return true;
+    case 'N':
+      parseName(line, start, end);
+      return true;
+    case '$':
+      parseHeader(line, start, end);
+      return true;
+    case 'P':
+      parsePosition(line, start, end);
+      return true;
+    case '+':
+    case '-':
+      parseMove(line, start, end);
+      return true;
+    case 'T':
+      parseTime(line, start, end);
+      return true;
+    case '%':  // end of the game, e.g., "%TORYO"
+    case '/':  // start of the next game
+      return false;
+    default:
+      throw error("unknown statement: " + line.substring(start, end));
+    }
+  }
+
+  private final void parseName(String line, int start, int end) throws ParseException {
+    if (end - start < 2) throw error("missing player: " + line.substring(start, end));
+    final char c = line.charAt(start + 1);
+    final String name = line.substring(start + 2, end);
+    if (c == '+') {
+      mAttrs.put(GameLog.ATTR_BLACK_PLAYER, name);
+    } else if (c == '-') {
+      mAttrs.put(GameLog.ATTR_WHITE_PLAYER, name);
+    } else {
+      throw error("invalid player: " + line.substring(start, end));
+    }
+  }
+
+  // "$KEY:value". The keys that have no GameLog attribute, e.g., "$END_TIME", are ignored.
+  private final void parseHeader(String line, int start, int end) throws ParseException {
+    final int colon = line.indexOf(':', start);
+    if (colon < 0 || colon >= end) throw error("missing ':': " + line.substring(start, end));
+    final String value = line.substring(colon + 1, end);
+    if (line.regionMatches(start + 1, CsaWriter.START_TIME, 0, colon - start - 1) &&
+        CsaWriter.START_TIME.length() == colon - start - 1) {
+      if (value.length() > 0) mStartTimeMs = GameLog.parseDate(value);
+      return;
+    }
+    for (String[] h : CsaWriter.HEADERS) {
+      if (h[0].length() == colon - start - 1 && line.regionMatches(start + 1, h[0], 0, h[0].length())) {
+        if (value.length() > 0) mAttrs.put(h[1], value);
+        return;
+      }
+    }
+  }
+
+  private final void parsePosition(String line, int start, int end) throws ParseException {
+    if (!mMoves.isEmpty()) throw error("position after the moves");
+    if (end - start < 2) throw error("invalid position: " + line.substring(start, end));
+    if (mBoard == null) {
+      mBoard = new Board();
+      mBoard.initialize(Handicap.NONE);
+      if (line.charAt(start + 1) != 'I') clearBoard();
+    }
+    final char c = line.charAt(start + 1);
+    if (c == 'I') {
+      // "PI", optionally followed by the pieces removed from the even position, e.g.,
+      // "PI82HI22KA".
+      for (int i = start + 2; i < end; i += 4) {
+        final int sq = pieceSquare(line, i, end);
+        if (Board.type(mBoard.getPiece(sq % Board.DIM, sq / Board.DIM)) !=
+            Piece.fromCsaName(line, i + 2)) {
+          throw error("no such piece to remove: " + line.substring(i, i + 4));
+        }
+        mBoard.setPiece(sq % Board.DIM, sq / Board.DIM, Piece.EMPTY);
+      }
+    } else if (c >= '1' && c <= '9') {
+      // One rank, e.g., "P1-KY-KE-GI-KI-OU-KI-GI-KE-KY". Each square is " * " or a
+      // piece such as "+FU".
+      final int y = c - '1';
+      if (end - start != 2 + 3 * Board.DIM) throw error("invalid rank: " + line.substring(start, end));
+      for (int i = 0; i < Board.DIM; ++i) {
+        final int p = start + 2 + 3 * i;
+        final int x = i;  // the leftmost square is file 9, i.e., x = 0
+        final char owner = line.charAt(p);
+        if (owner == ' ' && line.charAt(p + 1) == '*') {
+          mBoard.setPiece(x, y, Piece.EMPTY);
+        } else {
+          final int type = Piece.fromCsaName(line, p + 1);
+          if (type == Piece.EMPTY || (owner != '+' && owner != '-')) {
+            throw error("invalid square: " + line.substring(p, p + 3));
+          }
+          mBoard.setPiece(x, y, owner == '+' ? type : -type);
+        }
+      }
+    } else if (c == '+' || c == '-') {
+      // Pieces put on the board, e.g., "P+63TO". Pieces in hand ("P+00KI") can't be
+      // represented by GameLog.
+      for (int i = start + 2; i < end; i += 4) {
+        if (line.startsWith("00", i)) throw error("pieces in hand are not supported");
+        final int sq = pieceSquare(line, i, end);
+        final int type = Piece.fromCsaName(line, i + 2);
+        mBoard.setPiece(sq % Board.DIM, sq / Board.DIM, c == '+' ? type : -type);
+      }
+    } else {
+      throw error("invalid position: " + line.substring(start, end));
+    }
+  }
+
+  // Return the square of the piece "xyPP" at line[i, i + 4).
+  private final int pieceSquare(String line, int i, int end) throws ParseException {
+    if (i + 4 > end) throw error("invalid piece: " + line.substring(i, end));
+    final char file = line.charAt(i);
+    final char rank = line.charAt(i + 1);
+    if (file < '1' || file > '9' || rank < '1' || rank > '9' ||
+        Piece.fromCsaName(line, i + 2) == Piece.EMPTY) {
+      throw error("invalid piece: " + line.substring(i, i + 4));
+    }
+    return ('9' - file) + (rank - '1') * Board.DIM;
+  }
+
+  private final void clearBoard() {
+    for (int y = 0; y < Board.DIM; ++y) {
+      for (int x = 0; x < Board.DIM; ++x) {
+        mBoard.setPiece(x, y, Piece.EMPTY);
+      }
+    }
+  }
+
+  // "+" or "-" alone tells the player to move first. Otherwise a move such as "+7776FU".
+  private final void parseMove(String line, int start, int end) throws ParseException {
+    Player player = line.charAt(start) == '+' ? Player.BLACK : Player.WHITE;
+    if (end - start == 1) {
+      if (!mMoves.isEmpty()) throw error("turn after the moves");
+      mFirstPlayer = player;
+      return;
+    }
+    checkPosition(mFirstPlayer != null ? mFirstPlayer : player);
+    CharSequence csa = line;
+    int csaStart = start + 1;
+    if (mRotated && end - start == 1 + Move.CSA_LENGTH) {
+      player = player.opponent();
+      csa = rotateMove(line, csaStart);
+      csaStart = 0;
+    }
+    final Player expected = (mMoves.size() % 2 == 0 ? Player.BLACK : Player.WHITE);
+    if (player != expected) throw error("move out of turn: " + line.substring(start, end));
+    int move = (end - start == 1 + Move.CSA_LENGTH) ? Move.fromCsa(csa, csaStart, player) : Move.NONE;
+    if (move == Move.NONE) throw error("invalid move: " + line.substring(start, end));
+
+    // CSA names the piece after the move, so the promotion is told by the piece on the
+    // source square. Check the piece while at it; the rest of the legality isn't checked.
+    final int to = Move.to(move);
+    final int captured = mBoard.getPiece(to % Board.DIM, to / Board.DIM);
+    if (captured != Piece.EMPTY &&
+        (Move.isDrop(move) || Board.player(captured) == player || Board.type(captured) == Piece.OU)) {
+      throw error("invalid capture: " + line.substring(start, end));
+    }
+    if (Move.isDrop(move)) {
+      final int type = Board.type(Move.piece(move));
+      if (type > Piece.HI || mBoard.numCaptured(player, type) == 0) {
+        throw error("no such piece to drop: " + line.substring(start, end));
+      }
+    } else {
+      final int from = Move.from(move);
+      final int source = mBoard.getPiece(from % Board.DIM, from / Board.DIM);
+      final int piece = Move.piece(move);
+      if (source == piece) {
+        // no promotion
+      } else if (Board.player(source) == player && !Board.isPromoted(source) &&
+                 Board.isPromoted(piece) && Board.promote(source) == piece) {
+        move |= Move.PROMOTE;
+      } else {
+        throw error("no such piece to move: " + line.substring(start, end));
+      }
+    }
+    mBoard.applyMove(move);
+    mMoves.add(move);
+  }
+
+  // "T12": the seconds spent on the last move. Fractions ("T12.345", in CSA 3.0) are
+  // dropped.
+  private final void parseTime(String line, int start, int end) throws ParseException {
+    if (mMoves.isEmpty()) return;  // e.g., a time before the first move; ignore it
+    long sec = 0;
+    int i = start + 1;
+    for (; i < end && line.charAt(i) >= '0' && line.charAt(i) <= '9'; ++i) {
+      sec = sec * 10 + (line.charAt(i) - '0');
+      if (sec > Integer.MAX_VALUE) throw error("invalid time: " + line.substring(start, end));
+    }
+    if (i == start + 1 || (i < end && line.charAt(i) != '.')) {
+      throw error("invalid time: " + line.substring(start, end));
+    }
+    final int last = mMoves.size() - 1;
+    final int p = mMoves.player(last).toIndex();
+    mTotalTimeSec[p] += sec;
+    mMoves.setTime(last, (mTotalTimeSec[p] - sec) * 1000, mTotalTimeSec[p] * 1000);
+  }
+
+  // Return the CSA move at line[off, off + Move.CSA_LENGTH), e.g., "8382FU", seen from
+  // the other side of the board: "2728FU". A drop's source, "00", is kept.
+  private static final String rotateMove(String line, int off) {
+    char buf[] = new char[Move.CSA_LENGTH];
+    line.getChars(off, off + Move.CSA_LENGTH, buf, 0);
+    for (int i = 0; i < 4; i += 2) {
+      if (buf[i] == '0' && buf[i + 1] == '0') continue;
+      buf[i] = CsaWriter.rotateDigit(buf[i]);
+      buf[i + 1] = CsaWriter.rotateDigit(buf[i + 1]);
+    }
+    return new String(buf);
+  }
+
+  // Check, once, that the initial position with "first" to move is one GameLog can
+  // represent, and record its handicap. If "first" is Player.WHITE, rotate the board and
+  // swap the names, so that the player to move first becomes Player.BLACK.
+  private final void checkPosition(Player first) throws ParseException {
+    if (mPositionChecked) return;
+    mPositionChecked = true;
+    if (mBoard == null) {
+      // No P statement: the even position.
+      mBoard = new Board();
+      mBoard.initialize(Handicap.NONE);
+    }
+    if (first == Player.WHITE) {
+      Board rotated = new Board();
+      rotated.initialize(Handicap.NONE);
+      for (int sq = 0; sq < Board.DIM * Board.DIM; ++sq) {
+        final int p = mBoard.pieceAt(Board.DIM * Board.DIM - 1 - sq);
+        rotated.setPiece(sq % Board.DIM, sq / Board.DIM, -p);
+      }
+      mBoard = rotated;
+      mRotated = true;
+      final String black = mAttrs.remove(GameLog.ATTR_BLACK_PLAYER);
+      final String white = mAttrs.remove(GameLog.ATTR_WHITE_PLAYER);
+      if (white != null) mAttrs.put(GameLog.ATTR_BLACK_PLAYER, white);
+      if (black != null) mAttrs.put(GameLog.ATTR_WHITE_PLAYER, black);
+    }
+    final Handicap h = CsaWriter.findHandicap(mBoard);
+    if (h == null) throw error("unsupported initial position");
+    if (h != Handicap.NONE) mAttrs.put(GameLog.ATTR_HANDICAP, h.toJapaneseString());
+  }
+
+  private final GameLog toGameLog() throws ParseException {
+    checkPosition(mFirstPlayer != null ? mFirstPlayer : Player.BLACK);
+    return GameLog.newLog(mStartTimeMs, mAttrs.entrySet(), mMoves, mPath);
+  }
+
+  private final ParseException error(String message) {
+    return new ParseException((mPath != null ? mPath.getName() + ":" : "") + mLineNumber + ": " + message);
+  }
+}
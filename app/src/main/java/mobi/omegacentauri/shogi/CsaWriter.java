@@ -0,0 +1,244 @@
+package mobi.omegacentauri.shogi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+/**
+ * Writes game logs in CSA format (version 2.2), encoded in Shift_JIS with CRLF line ends.
+ * Like KifWriter, the output is built in a fixed-size byte buffer; the moves are ASCII, so
+ * only the player names and other attribute values go through the charset encoder.
+ *
+ * Several logs written to the same writer are separated by "/" lines, as in a CSA file
+ * with multiple games. CsaReader reads the first game of such a file.
+ *
+ * A handicap game is written in the standard layout, with the giver as "-" at the top,
+ * to move first: GameLog's board is rotated by 180 degrees, and the colours swapped.
+ * CsaReader rotates it back.
+ */
+public final class CsaWriter implements Closeable {
+  private static final int BUFFER_SIZE = 8192;
+
+  // Upper bound of the bytes of one move, "+7776FU" and "T123456789", with the EOLs.
+  private static final int MAX_MOVE_BYTES = 32;
+
+  private static final Charset CHARSET = Charset.forName("SHIFT-JIS");
+
+  static final String START_TIME = "START_TIME";
+
+  // CSA header keys ("$EVENT:...") and the GameLog attributes they map to.
+  static final String HEADERS[][] = {
+    { "EVENT", GameLog.ATTR_TOURNAMENT },
+    { "SITE", GameLog.ATTR_LOCATION },
+    { "TIME_LIMIT", GameLog.ATTR_TIME_LIMIT },
+    { "OPENING", "戦型" },
+  };
+
+  private final OutputStream mOut;
+  private final CharsetEncoder mEncoder;
+  private byte mBuf[];
+  private int mPos;  // mBuf[0, mPos) is yet to be written to mOut.
+  private int mNumLogs;
+
+  public CsaWriter(OutputStream out) {
+    mOut = out;
+    mEncoder = CHARSET.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    mBuf = new byte[BUFFER_SIZE];
+  }
+
+  /** Write "log". A log after the first one is preceded by a "/" line. */
+  public final void write(GameLog log) throws IOException {
+    if (mBuf == null) throw new IOException("CsaWriter closed");
+    if (mNumLogs++ > 0) putLine("/");
+
+    final Handicap h = log.handicap();
+    final boolean rotated = (h != Handicap.NONE);
+    putLine("V2.2");
+    putAttr(rotated ? "N-" : "N+", log.attr(GameLog.ATTR_BLACK_PLAYER));
+    putAttr(rotated ? "N+" : "N-", log.attr(GameLog.ATTR_WHITE_PLAYER));
+    for (int i = 0; i < 2; ++i) {  // $EVENT and $SITE come before the times
+      putAttr("$" + HEADERS[i][0] + ":", log.attr(HEADERS[i][1]));
+    }
+    if (log.getDate() > 0) {
+      putAscii("$" + START_TIME + ":");
+      putDate(log.getDate());
+      putEol();
+    }
+    for (int i = 2; i < HEADERS.length; ++i) {
+      putAttr("$" + HEADERS[i][0] + ":", log.attr(HEADERS[i][1]));
+    }
+
+    // The initial position, as the pieces removed from the even position, e.g., "PI82HI".
+    putAscii("PI");
+    if (rotated) {
+      Board even = new Board();
+      even.initialize(Handicap.NONE);
+      Board board = new Board();
+      board.initialize(h);
+      for (int sq = 0; sq < Board.DIM * Board.DIM; ++sq) {
+        final int p = even.pieceAt(sq);
+        if (p != Piece.EMPTY && board.pieceAt(sq) == Piece.EMPTY) {
+          reserve(4);
+          mBuf[mPos++] = (byte)rotateDigit((char)('9' - sq % Board.DIM));
+          mBuf[mPos++] = (byte)rotateDigit((char)('1' + sq / Board.DIM));
+          putAscii(Piece.csaNames[Board.type(p)]);
+        }
+      }
+    }
+    putEol();
+    putLine(rotated ? "-" : "+");
+
+    final MoveList moves = log.moves();
+    for (int i = 0; i < moves.size(); ++i) {
+      final int move = moves.move(i);
+      reserve(MAX_MOVE_BYTES);
+      mBuf[mPos++] = (byte)((Move.player(move) == Player.BLACK) != rotated ? '+' : '-');
+      final int csa = mPos;
+      mPos += Move.toCsa(move, mBuf, mPos);
+      if (rotated) {
+        for (int j = csa; j < csa + 4; j += 2) {
+          if (mBuf[j] == '0') continue;  // a drop
+          mBuf[j] = (byte)rotateDigit((char)mBuf[j]);
+          mBuf[j + 1] = (byte)rotateDigit((char)mBuf[j + 1]);
+        }
+      }
+      putEol();
+      if (moves.startTime(i) >= 0) {
+        mBuf[mPos++] = 'T';
+        putInt((int)((moves.playTime(i) + 500l) / 1000l), 1);
+        putEol();
+      }
+    }
+  }
+
+  /** Write the buffered bytes to the output stream, and flush it. */
+  public final void flush() throws IOException {
+    flushBuffer();
+    mOut.flush();
+  }
+
+  /** Flush, then close the output stream. */
+  public final void close() throws IOException {
+    if (mBuf == null) return;
+    try {
+      flushBuffer();
+    } finally {
+      mBuf = null;
+      mOut.close();
+    }
+  }
+
+  /**
+   * Return the handicap whose initial position is "board" (with Player.BLACK to move), or
+   * null if there is none.
+   */
+  static final Handicap findHandicap(Board board) {
+    Board b = new Board();
+    for (Handicap h : Handicap.values()) {
+      b.initialize(h);
+      if (b.equals(board)) return h;
+    }
+    return null;
+  }
+
+  /** The file or rank digit "c", '1' to '9', seen from the other side of the board. */
+  static final char rotateDigit(char c) {
+    return (char)('9' + '1' - c);
+  }
+
+  private final void flushBuffer() throws IOException {
+    if (mPos > 0) {
+      mOut.write(mBuf, 0, mPos);
+      mPos = 0;
+    }
+  }
+
+  // Make room for "n" bytes in mBuf. n must be at most BUFFER_SIZE.
+  private final void reserve(int n) throws IOException {
+    if (mPos + n > mBuf.length) flushBuffer();
+  }
+
+  private final void putEol() throws IOException {
+    reserve(2);
+    mBuf[mPos++] = '\r';
+    mBuf[mPos++] = '\n';
+  }
+
+  private final void putAscii(String s) throws IOException {
+    reserve(s.length());
+    for (int i = 0; i < s.length(); ++i) mBuf[mPos++] = (byte)s.charAt(i);
+  }
+
+  private final void putLine(String s) throws IOException {
+    putAscii(s);
+    putEol();
+  }
+
+  // Write the line "prefix" + "value", unless value is null or empty. CSA has no escapes,
+  // so line breaks in the value are replaced by spaces.
+  private final void putAttr(String prefix, String value) throws IOException {
+    if (value == null || value.length() == 0) return;
+    putAscii(prefix);
+    putString(value.replace('\r', ' ').replace('\n', ' '));
+    putEol();
+  }
+
+  // Write non-negative "value" in decimal, left-padded with '0' to "width" digits.
+  private final void putInt(int value, int width) throws IOException {
+    reserve(10 + width);
+    int numDigits = 1;
+    for (int t = value / 10; t > 0; t /= 10) ++numDigits;
+    for (int i = numDigits; i < width; ++i) mBuf[mPos++] = '0';
+    for (int i = numDigits - 1; i >= 0; --i) {
+      mBuf[mPos + i] = (byte)('0' + value % 10);
+      value /= 10;
+    }
+    mPos += numDigits;
+  }
+
+  // Write the date as "yyyy/mm/dd hh:mm:ss".
+  private final void putDate(long dateMs) throws IOException {
+    Calendar c = new GregorianCalendar();
+    c.setTimeInMillis(dateMs);
+    putInt(c.get(Calendar.YEAR), 4);
+    putAscii("/");
+    putInt(c.get(Calendar.MONTH) - Calendar.JANUARY + 1, 2);
+    putAscii("/");
+    putInt(c.get(Calendar.DAY_OF_MONTH), 2);
+    putAscii(" ");
+    putInt(c.get(Calendar.HOUR_OF_DAY), 2);
+    putAscii(":");
+    putInt(c.get(Calendar.MINUTE), 2);
+    putAscii(":");
+    putInt(c.get(Calendar.SECOND), 2);
+  }
+
+  // Encode a string that isn't known in advance, e.g., a player name.
+  private final void putString(String s) throws IOException {
+    CharBuffer in = CharBuffer.wrap(s);
+    mEncoder.reset();
+    boolean flushing = false;
+    for (;;) {
+      ByteBuffer out = ByteBuffer.wrap(mBuf, mPos, mBuf.length - mPos);
+      CoderResult r = flushing ? mEncoder.flush(out) : mEncoder.encode(in, out, true);
+      mPos = out.position();
+      if (r.isOverflow()) {
+        flushBuffer();
+      } else if (!flushing) {
+        flushing = true;
+      } else {
+        break;
+      }
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package mobi.omegacentauri.shogi;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the character encoding detected for each game log file, keyed by the path,
+ * and valid while the size and the modification time of the file stay the same. A rescan
+ * of unchanged files then decodes them without running the detector again.
+ *
+ * The cache is process-wide and MT safe. GameLogListManager loads it from and saves it to
+ * the application's private storage.
+ */
+public final class EncodingCache {
+  private static final int VERSION = 1;
+
+  // The least recently used entries are dropped beyond this.
+  private static final int MAX_ENTRIES = 16384;
+
+  private static final class Entry {
+    final long size;
+    final long mtimeMs;
+    final String encoding;
+
+    Entry(long s, long m, String e) {
+      size = s;
+      mtimeMs = m;
+      encoding = e;
+    }
+  }
+
+  private final LinkedHashMap<String, Entry> mEntries =
+      new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+          return size() > MAX_ENTRIES;
+        }
+      };
+  private boolean mDirty;
+
+  private static final EncodingCache mInstance = new EncodingCache();
+
+  public static EncodingCache getInstance() { return mInstance; }
+
+  private EncodingCache() { }
+
+  /** The encoding remembered for the file, or null if unknown or the file has changed. */
+  public synchronized String get(String path, long size, long mtimeMs) {
+    Entry e = mEntries.get(path);
+    if (e == null || e.size != size || e.mtimeMs != mtimeMs) return null;
+    return e.encoding;
+  }
+
+  public synchronized void put(String path, long size, long mtimeMs, String encoding) {
+    mEntries.put(path, new Entry(size, mtimeMs, encoding));
+    mDirty = true;
+  }
+
+  /** Whether put() was called since the last read() or write(). */
+  public synchronized boolean isDirty() { return mDirty; }
+
+  /** Replace the contents with those saved by write(). */
+  public synchronized void read(InputStream in) throws IOException {
+    DataInputStream din = new DataInputStream(in);
+    if (din.readInt() != VERSION) throw new IOException("EncodingCache: unknown version");
+    final int n = din.readInt();
+    mEntries.clear();
+    for (int i = 0; i < n; ++i) {
+      final String path = din.readUTF();
+      final long size = din.readLong();
+      final long mtimeMs = din.readLong();
+      mEntries.put(path, new Entry(size, mtimeMs, din.readUTF()));
+    }
+    mDirty = false;
+  }
+
+  /** Save the contents, from the least recently used entry. */
+  public synchronized void write(OutputStream out) throws IOException {
+    DataOutputStream dout = new DataOutputStream(out);
+    dout.writeInt(VERSION);
+    dout.writeInt(mEntries.size());
+    for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+      dout.writeUTF(e.getKey());
+      dout.writeLong(e.getValue().size);
+      dout.writeLong(e.getValue().mtimeMs);
+      dout.writeUTF(e.getValue().encoding);
+    }
+    dout.flush();
+    mDirty = false;
+  }
+}
@@ -0,0 +1,162 @@
+package mobi.omegacentauri.shogi;
+
+/**
+ * Guesses the character encoding of a game log file from its bytes, without a statistical
+ * model. Almost all the files are plain ASCII, UTF-8, Shift_JIS or EUC-JP, and for those
+ * a strict check of the byte sequences settles the encoding in one cheap pass each. Only
+ * the files that pass more than one check (or none) need a full detector such as
+ * juniversalchardet.
+ *
+ * The names returned are the ones juniversalchardet uses, so the files decode the same
+ * way whichever detector decided.
+ */
+public final class EncodingClassifier {
+  public static final String UTF_8 = "UTF-8";
+  public static final String UTF_16BE = "UTF-16BE";
+  public static final String UTF_16LE = "UTF-16LE";
+  public static final String SHIFT_JIS = "SHIFT_JIS";
+  public static final String EUC_JP = "EUC-JP";
+
+  // A UTF-8 file with fewer multi-byte characters than this may be Shift_JIS or EUC-JP
+  // by chance, so it's left to the full detector if it passes those checks too.
+  private static final int MIN_UTF8_SEQUENCES = 8;
+
+  private EncodingClassifier() { }
+
+  /**
+   * Return the encoding of contents[0, length), or null if the bytes don't tell.
+   *
+   * @param defaultEncoding The encoding of an ASCII-only file.
+   */
+  public static String classify(byte contents[], int length, String defaultEncoding) {
+    // Byte order marks.
+    if (length >= 3 && (contents[0] & 0xff) == 0xef && (contents[1] & 0xff) == 0xbb &&
+        (contents[2] & 0xff) == 0xbf) {
+      return UTF_8;
+    }
+    if (length >= 2 && (contents[0] & 0xff) == 0xfe && (contents[1] & 0xff) == 0xff) return UTF_16BE;
+    if (length >= 2 && (contents[0] & 0xff) == 0xff && (contents[1] & 0xff) == 0xfe) return UTF_16LE;
+
+    int i = 0;
+    while (i < length && contents[i] >= 0 && contents[i] != 0x1b) ++i;
+    if (i == length) return defaultEncoding;
+    if (contents[i] == 0x1b) return null;  // an escape sequence, e.g., ISO-2022-JP
+
+    // Bytes [0, i) are ASCII, so the checks start at i.
+    final int utf8 = countUtf8Sequences(contents, i, length);
+    final boolean sjis = isShiftJis(contents, i, length);
+    final boolean euc = isEucJp(contents, i, length);
+    if (utf8 >= MIN_UTF8_SEQUENCES || (utf8 > 0 && !sjis && !euc)) return UTF_8;
+    if (utf8 < 0) {
+      if (sjis && !euc) return SHIFT_JIS;
+      if (euc && !sjis) return EUC_JP;
+    }
+    return null;
+  }
+
+  /**
+   * The length of the byte order mark at the start of "contents" that matches
+   * "encoding", or 0. The BOM isn't part of the text, and InputStreamReader doesn't
+   * skip it for UTF-8 or the explicit-endian UTF-16 charsets.
+   */
+  public static int bomLength(byte contents[], int length, String encoding) {
+    if (encoding.equalsIgnoreCase(UTF_8)) {
+      if (length >= 3 && (contents[0] & 0xff) == 0xef && (contents[1] & 0xff) == 0xbb &&
+          (contents[2] & 0xff) == 0xbf) {
+        return 3;
+      }
+    } else if (encoding.equalsIgnoreCase(UTF_16BE)) {
+      if (length >= 2 && (contents[0] & 0xff) == 0xfe && (contents[1] & 0xff) == 0xff) return 2;
+    } else if (encoding.equalsIgnoreCase(UTF_16LE)) {
+      if (length >= 2 && (contents[0] & 0xff) == 0xff && (contents[1] & 0xff) == 0xfe) return 2;
+    }
+    return 0;
+  }
+
+  // Return the number of multi-byte characters in b[start, end) if it is well-formed
+  // UTF-8 (no overlong forms, surrogates, or code points above U+10FFFF), else -1.
+  private static int countUtf8Sequences(byte b[], int start, int end) {
+    int n = 0;
+    int i = start;
+    while (i < end) {
+      final int c = b[i] & 0xff;
+      if (c < 0x80) {
+        ++i;
+        continue;
+      }
+      int numTrail;
+      int min = 0x80, max = 0xbf;  // the range of the first trail byte
+      if (c >= 0xc2 && c <= 0xdf) {
+        numTrail = 1;
+      } else if (c >= 0xe0 && c <= 0xef) {
+        numTrail = 2;
+        if (c == 0xe0) min = 0xa0;
+        if (c == 0xed) max = 0x9f;
+      } else if (c >= 0xf0 && c <= 0xf4) {
+        numTrail = 3;
+        if (c == 0xf0) min = 0x90;
+        if (c == 0xf4) max = 0x8f;
+      } else {
+        return -1;
+      }
+      if (i + numTrail >= end) return -1;
+      final int t = b[i + 1] & 0xff;
+      if (t < min || t > max) return -1;
+      for (int j = 2; j <= numTrail; ++j) {
+        if ((b[i + j] & 0xc0) != 0x80) return -1;
+      }
+      i += numTrail + 1;
+      ++n;
+    }
+    return n;
+  }
+
+  // Whether b[start, end) is well-formed Shift_JIS: ASCII, half-width katakana, or a lead
+  // byte in [0x81, 0x9f] or [0xe0, 0xfc] followed by a trail byte in [0x40, 0xfc] other
+  // than 0x7f.
+  private static boolean isShiftJis(byte b[], int start, int end) {
+    int i = start;
+    while (i < end) {
+      final int c = b[i] & 0xff;
+      if (c < 0x80 || (c >= 0xa1 && c <= 0xdf)) {
+        ++i;
+      } else if ((c >= 0x81 && c <= 0x9f) || (c >= 0xe0 && c <= 0xfc)) {
+        if (i + 1 >= end) return false;
+        final int t = b[i + 1] & 0xff;
+        if (t < 0x40 || t == 0x7f || t > 0xfc) return false;
+        i += 2;
+      } else {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Whether b[start, end) is well-formed EUC-JP: ASCII, a pair of bytes in [0xa1, 0xfe],
+  // 0x8e and a half-width katakana, or 0x8f and a pair (JIS X 0212).
+  private static boolean isEucJp(byte b[], int start, int end) {
+    int i = start;
+    while (i < end) {
+      final int c = b[i] & 0xff;
+      if (c < 0x80) {
+        ++i;
+      } else if (c == 0x8e) {
+        if (i + 1 >= end) return false;
+        final int t = b[i + 1] & 0xff;
+        if (t < 0xa1 || t > 0xdf) return false;
+        i += 2;
+      } else if (c == 0x8f || (c >= 0xa1 && c <= 0xfe)) {
+        final int n = (c == 0x8f ? 3 : 2);
+        if (i + n > end) return false;
+        for (int j = i + n - 2; j < i + n; ++j) {
+          final int t = b[j] & 0xff;
+          if (t < 0xa1 || t > 0xfe) return false;
+        }
+        i += n;
+      } else {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -43,7 +43,7 @@ public class GameActivity extends Activity {
   private static final boolean NEW_SAVES = true; // not yet production ready
 
   private static final String SAVE_BUNDLE = "save.bundle";
-  private static final int SAVE_BUNDLE_VERSION = 0x12340003;
+  private static final int SAVE_BUNDLE_VERSION = 0x12340004;
   private static final int DIALOG_PROMOTE = 1235;
   private static final int DIALOG_CONFIRM_QUIT = 1236;
 
@@ -118,7 +118,7 @@ public class GameActivity extends Activity {
     mStatusView.initialize(
         playerName(mPlayerTypes.charAt(0), mComputerLevel),
         playerName(mPlayerTypes.charAt(1), mComputerLevel),
-            mFlipScreen);
+            mFlipScreen, mInitialBoard);
 
     mKeyboardControl = new KeyboardControl();
     mBoardView = (BoardView)findViewById(R.id.boardview);
@@ -135,7 +135,7 @@ public class GameActivity extends Activity {
       if (/*! NEW_SAVES ||*/ savedInstanceState != null)
         mController.start(savedInstanceState, mBoard, mNextPlayer, null, 0, null);
       else
-        mController.start(savedInstanceState, mInitialBoard, Player.BLACK, mPlays, mPlays.size(), mThinkTimeMs);
+        mController.start(savedInstanceState, mInitialBoard, mInitialBoard.nextPlayer(), mPlays, mPlays.size(), mThinkTimeMs);
     }
 
     registerForContextMenu(findViewById(R.id.menu_button));
@@ -254,7 +254,7 @@ public class GameActivity extends Activity {
     b.putLong("shogi_next_player", (mNextPlayer == Player.BLACK) ? 0 : 1);
     b.putSerializable("shogi_moves", mPlays);
     b.putSerializable("shogi_move_cookies", mMoveCookies);
-    b.putSerializable("saved_board", mBoard);
+    b.putByteArray("saved_board", mBoard.toSnapshot());
     b.putSerializable("game_state", mGameState);
     b.putBoolean("flipped", mFlipScreen);
   }
@@ -345,10 +345,22 @@ public class GameActivity extends Activity {
     // update.
     mBoard = null;
     if (b != null)
-      mBoard = (Board)b.getSerializable("saved_board");
+      mBoard = Board.fromSnapshot(b.getByteArray("saved_board"));
     if (mBoard == null)
-      mBoard = (Board)getIntent().getSerializableExtra("saved_board");
-    mInitialBoard = (Board)getIntent().getSerializableExtra("initial_board");
+      mBoard = Board.fromSnapshot(getIntent().getByteArrayExtra("saved_board"));
+    mInitialBoard = Board.fromSnapshot(getIntent().getByteArrayExtra("initial_board"));
+
+    // Alternatively, an arbitrary starting position may be given as an SFEN string.
+    final String sfen = getIntent().getStringExtra("sfen");
+    if (sfen != null) {
+      try {
+        Board board = new Board();
+        board.parseSfen(sfen);
+        mInitialBoard = board;
+      } catch (ParseException e) {
+        Log.e(TAG, e.getMessage());
+      }
+    }
     if (mBoard == null)
       mBoard = mInitialBoard;
     
@@ -366,7 +378,7 @@ public class GameActivity extends Activity {
     // If we aren't replaying a saved game, and we aren't resuming via saveInstanceState (e.g., screen rotation),
     // then set the default board state.
     if (mNextPlayer == null) {
-      mNextPlayer = Player.BLACK;
+      mNextPlayer = mBoard.nextPlayer();
     }
     if (mPlays == null) {
       mPlays = new ArrayList<Play>();
@@ -433,7 +445,7 @@ public class GameActivity extends Activity {
   };
 
   private final void setTimesFromPlays() {
-    Util.getTimesFromPlays(mPlays, mPlays.size(), mThinkTimeMs);
+    Util.getTimesFromPlays(MoveList.fromPlays(mPlays), mPlays.size(), mThinkTimeMs);
 //    resetTime();
   }
   
@@ -545,14 +557,28 @@ public class GameActivity extends Activity {
 
   private final BoardView.EventListener mViewListener = new BoardView.EventListener() {
     public void onHumanPlay(Player player, Play play) {
+      final Play promoted = PlayAllowsForPromotion(player, play) ?
+          new Play(Board.promote(play.piece()), play.fromX(), play.fromY(), play.toX(), play.toY()) :
+          null;
+      final boolean legal = MoveGenerator.isLegal(mBoard, Move.fromPlay(play));
+      final boolean legalIfPromoted =
+          promoted != null && MoveGenerator.isLegal(mBoard, Move.fromPlay(promoted));
+      if (!legal && !legalIfPromoted) {
+        // Reject the play without bothering Bonanza, and let the player try again.
+        Toast.makeText(getBaseContext(), R.string.illegal_move, Toast.LENGTH_SHORT).show();
+        mBoardView.update(mGameState, null, mBoard, mNextPlayer, null, false);
+        return;
+      }
+
       //setCurrentPlayer(Player.INVALID, play);
       mNextPlayer = Player.INVALID;
-      if (PlayAllowsForPromotion(player, play)) {
+      if (legal && legalIfPromoted) {
         mSavedPlayerForPromotion = player;
         mSavedPlayForPromotion = play;
         showDialog(DIALOG_PROMOTE);
       } else {
-        mController.humanPlay(player, play);
+        // The piece must promote, or cannot promote.
+        mController.humanPlay(player, legal ? play : promoted);
       }
     }
   };
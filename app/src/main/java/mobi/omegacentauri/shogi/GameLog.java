@@ -4,18 +4,17 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Serializable;
 import java.io.StringReader;
-import java.io.Writer;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Comparator;
 import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
@@ -30,8 +29,11 @@ import android.util.Log;
  * GameLog stores the log of a single game, along with its attributes, such as the date and time of the game 
  * and the names of the players.
  */
-@SuppressWarnings("serial") 
 public class GameLog implements Serializable {
+  // Kept from the format that stored the plays as ArrayList<Play> mPlays, so that the
+  // summaries saved in that format can still be read. See readObject().
+  private static final long serialVersionUID = -7425034756916016976L;
+
   private static final String TAG = "GameLog";
   
   // Common mAttrs keys. They are also the standard KIF headers.
@@ -50,13 +52,14 @@ public class GameLog implements Serializable {
   private TreeMap<String, String> mAttrs;
   
   private long mStartTimeMs;  // UTC in millisec
-  private ArrayList<Play> mPlays;
-  private String mDigest;  // cached value of getDigest().
+  private MoveList mMoves;  // null if only the header is loaded. See hasMoves().
+  private int mNumPlays;  // the number of plays, when mMoves is null
+  private String mDigest;  // cached value of digest().
   private File mPath;  // the path on sdcard. null in the log is only in memory
   
   private GameLog() {
     mAttrs = new TreeMap<String, String>();
-    mPlays = new ArrayList<Play>();
+    mMoves = new MoveList();
     mPath = null;
   }
   
@@ -103,23 +106,18 @@ public class GameLog implements Serializable {
   }
 
   /**
-   * Get the SHA-1 digest of this object.
+   * Get the digest that identifies this log, 32 hex digits. It covers the moves and
+   * their times (see MoveList.digest()), then the attributes; not the date, nor the path.
    */
   public String digest() {
     if (mDigest == null) {
-      try {
-        MessageDigest digest = MessageDigest.getInstance("SHA-1");
-        for (Map.Entry<String, String> e : mAttrs.entrySet()) {
-          digest.update(e.getKey().getBytes());
-          digest.update(e.getValue().getBytes());
-        }
-        for (int i = 0; i < mPlays.size(); ++i) {
-          digest.update(mPlays.get(i).toString().getBytes());
-        }
-        mDigest = Util.bytesToHexText(digest.digest());
-      } catch (NoSuchAlgorithmException e) {
-        throw new AssertionError("MessageDigest.NoSuchAlgorithmException: " + e.getMessage());
+      LogDigest digest = mMoves.digest();
+      digest.update(mAttrs.size());
+      for (Map.Entry<String, String> e : mAttrs.entrySet()) {
+        digest.update(e.getKey());
+        digest.update(e.getValue());
       }
+      mDigest = digest.digest();
     }
     return mDigest;
   }
@@ -135,9 +133,53 @@ public class GameLog implements Serializable {
     return Handicap.NONE;
   }
   
-  public final Play play(int n) { return mPlays.get(n); }
-  public final int numPlays() { return mPlays.size(); }
-  public final ArrayList<Play> plays() { return mPlays; }
+  /**
+   * Whether the plays are loaded. The logs listed by GameLogListManager have only the
+   * header, i.e., the attributes, the date, the digest and the number of plays;
+   * GameLogListManager.loadMoves() reads the rest. play(), move() and moves() throw
+   * IllegalStateException on a log without the plays.
+   */
+  public final boolean hasMoves() { return mMoves != null; }
+
+  /** Return a new Play object for the n'th play. */
+  public final Play play(int n) { return checkedMoves().play(n); }
+
+  /** Return the n'th play, packed as in Move. */
+  public final int move(int n) { return checkedMoves().move(n); }
+
+  public final int numPlays() { return mMoves != null ? mMoves.size() : mNumPlays; }
+
+  /** The plays and their times. The caller must not modify the list. */
+  public final MoveList moves() { return checkedMoves(); }
+
+  private final MoveList checkedMoves() {
+    if (mMoves == null) throw new IllegalStateException("GameLog: the plays are not loaded");
+    return mMoves;
+  }
+
+  /** Return a copy of this log with only the header. See hasMoves(). */
+  final GameLog header() {
+    GameLog log = new GameLog();
+    log.mStartTimeMs = mStartTimeMs;
+    log.mAttrs = mAttrs;
+    log.mMoves = null;
+    log.mNumPlays = numPlays();
+    log.mPath = mPath;
+    log.mDigest = digest();
+    return log;
+  }
+
+  /** Return a copy of this log, stored at "path". Used when the log file is moved. */
+  final GameLog withPath(File path) {
+    GameLog log = new GameLog();
+    log.mStartTimeMs = mStartTimeMs;
+    log.mAttrs = mAttrs;
+    log.mMoves = mMoves;
+    log.mNumPlays = mNumPlays;
+    log.mPath = path;
+    log.mDigest = digest();
+    return log;
+  }
 
   public final String getPlayer(String playerAttr) {
     String name = mAttrs.get(playerAttr);
@@ -201,30 +243,13 @@ public class GameLog implements Serializable {
   //
   // Methods to parse .kif and .html files into a GameLog object
   //
-  private static final Pattern DATE_PATTERN = Pattern.compile("開始日時[：:](.*)");
-  private static final Pattern PLAY_PATTERN = Pattern.compile("\\s*[0-9]+\\s+(.*)");  
   private static final Pattern OPTIONAL_DAY_OF_WEEK_PATTERN = Pattern.compile("[(（][月火水木金土日][）)]");
-  private static final Pattern UNKNOWN_ATTR_PATTERN = Pattern.compile("(\\S+)[：:](.+)");
-  
-  private static class AttrPattern {
-    public String attr;
-    public Pattern pattern;
-  }
-  private static final AttrPattern[] mAttrPatterns;
   
+  // The attributes found in most KIF files. KifParser drops the spaces before their values.
   public static final String STANDARD_ATTR_NAMES[] = {
     ATTR_BLACK_PLAYER, ATTR_WHITE_PLAYER, ATTR_HANDICAP,
     ATTR_TITLE, ATTR_LOCATION, ATTR_TIME_LIMIT, ATTR_TOURNAMENT,
   };
-  
-  static {
-    mAttrPatterns = new AttrPattern[STANDARD_ATTR_NAMES.length];
-    for (int i = 0; i < STANDARD_ATTR_NAMES.length; ++i) {
-      mAttrPatterns[i] = new AttrPattern();
-      mAttrPatterns[i].attr = STANDARD_ATTR_NAMES[i];
-      mAttrPatterns[i].pattern= Pattern.compile(STANDARD_ATTR_NAMES[i] + "[：:]\\s*(.*)");
-    }
-  }
 
   private static final Pattern HTML_KIF_START_PATTERN = Pattern.compile(".*>\\s*((開始日時|棋戦|場所|表題|手合割|先手|後手)[:：].*)");
   private static final Pattern HTML_KIF_END_PATTERN = Pattern.compile("([^<]*)<.*");
@@ -232,7 +257,7 @@ public class GameLog implements Serializable {
   public static GameLog newLog(
       long startTimeMs, 
       Set<Map.Entry<String, String>> attrs,
-      ArrayList<Play> plays,
+      List<Play> plays,
       File path) {
     GameLog log = new GameLog();
     log.mStartTimeMs = startTimeMs;
@@ -240,8 +265,40 @@ public class GameLog implements Serializable {
     for (Map.Entry<String, String> e : attrs) {
       log.mAttrs.put(e.getKey(), e.getValue());
     }
-    log.mPlays = new ArrayList<Play>(plays);
+    log.mMoves = MoveList.fromPlays(plays);
+    log.mPath = path;
+    return log;
+  }
+
+  /** Same as above, but takes the moves packed as in Move. "moves" is copied. */
+  public static GameLog newLog(
+      long startTimeMs,
+      Set<Map.Entry<String, String>> attrs,
+      MoveList moves,
+      File path) {
+    GameLog log = newLog(startTimeMs, attrs, new ArrayList<Play>(), path);
+    log.mMoves = new MoveList(moves);
+    return log;
+  }
+
+  /**
+   * Recreate a log read by LogStore, which stores the digest with the log. "attrs" and
+   * "moves" are owned by the new log. "moves" is null if only the header was read.
+   */
+  static GameLog fromStore(
+      long startTimeMs,
+      TreeMap<String, String> attrs,
+      MoveList moves,
+      int numPlays,
+      File path,
+      String digest) {
+    GameLog log = new GameLog();
+    log.mStartTimeMs = startTimeMs;
+    log.mAttrs = attrs;
+    log.mMoves = moves;
+    log.mNumPlays = numPlays;
     log.mPath = path;
+    log.mDigest = digest;
     return log;
   }
 
@@ -252,7 +309,7 @@ public class GameLog implements Serializable {
    * @param path The path in which the file is stored. Can be null.
    */
   public static GameLog parseHtml(File path, InputStream stream) throws ParseException, IOException {
-    BufferedReader reader = new BufferedReader(Util.inputStreamToReader(stream, "EUC-JP"));
+    BufferedReader reader = new BufferedReader(Util.inputStreamToReader(stream, "EUC-JP", path));
     String line;
     StringBuilder output = new StringBuilder();
     boolean kifFound = false;
@@ -290,74 +347,40 @@ public class GameLog implements Serializable {
    * @throws IOException
    */
   public void toKif(OutputStream out, String format) throws IOException {
-    Writer stream = null;
-    String EOL = null;
-    if (format.equals("kif_utf8")) {
-      stream = new OutputStreamWriter(out, "UTF-8");
-      EOL = "\n";
-    } else {
-      stream = new OutputStreamWriter(out, "SHIFT-JIS");
-      EOL = "\r\n";
-    }
-    StringBuilder b = new StringBuilder();
-    
-    // Generate header lines
-    if (mStartTimeMs > 0) {
-      b.append("開始日時：").append(toKifDateString(mStartTimeMs)).append(EOL);
-    }
-    for (Map.Entry<String, String> e : mAttrs.entrySet()) {
-      String japaneseName = e.getKey();
-      b.append(japaneseName).append("：").append(e.getValue()).append(EOL);
-    }
-    b.append("手数----指手---------消費時間--").append(EOL);
-    Board board = new Board();
-    board.initialize(Handicap.NONE);
-    Player player = Player.BLACK;
-    for (int i = 0; i < mPlays.size(); ++i) {
-      Play thisPlay = mPlays.get(i);
-      Play prevPlay = (i > 0 ? mPlays.get(i - 1) : null);
-      Play.TraditionalNotation n = thisPlay.toTraditionalNotation(board, prevPlay);
-      b.append(String.format("%4d %s%s%s", 
-          i + 1,
-          Play.japaneseRomanNumbers[n.x],
-          Play.japaneseNumbers[n.y],
-          Piece.japaneseNames[Board.type(n.piece)]));
-      if ((n.modifier & Play.PROMOTE) != 0) {
-        b.append("成");
-      }
-      if (!thisPlay.isDroppingPiece()) {
-        b.append(String.format("(%d%d)", 
-            9 - thisPlay.fromX(), 1 + thisPlay.fromY()));
-      } else {
-        b.append("打");
-      }
-      long startMs = thisPlay.startTime();
-      if (startMs >= 0) {
-        int start = (int)((startMs + 500l) / 1000l);
-        int startSec = start % 60;
-        int startMin = start / 60;
-        int play = (int)((thisPlay.playTime() + 500l) / 1000l);
-        int playSec = play % 60;
-        play /= 60;
-        int playMin = play % 60;
-        play /= 60;
-        int playHr = play;
-        b.append(String.format(" (%2d:%02d/%2d:%02d:%02d)", startMin, startSec, playHr, playMin, playSec));
-      }
-      b.append(EOL);
-      board.applyPly(player, thisPlay);
-      player = player.opponent();
+    KifWriter w = new KifWriter(out, format);
+    try {
+      w.write(this);
+    } finally {
+      w.close();
     }
-    stream.write(b.toString());
-    stream.close();
   }
   
+  /**
+   * Print the contents of this object to "stream" in CSA format, encoded in Shift_JIS.
+   */
+  public void toCsa(OutputStream out) throws IOException {
+    CsaWriter w = new CsaWriter(out);
+    try {
+      w.write(this);
+    } finally {
+      w.close();
+    }
+  }
+
+  /**
+   * Parse a CSA file encoded in Shift_JIS (or UTF-8, if detected). If this method doesn't
+   * throw an exception, it always return a non-null GameLog object.
+   */
+  public static GameLog parseCsa(File path, InputStream in) throws ParseException, IOException {
+    return CsaReader.read(path, Util.inputStreamToReader(in, "SHIFT-JIS", path));
+  }
+
   /**
    * Given a KIF file encoded in UTF-8, parse it. If this method doesn't throw
    * an exception, it always return a non-null GameLog object.
    */
   public static GameLog parseKif(File path, InputStream in) throws ParseException, IOException {
-    Reader stream = Util.inputStreamToReader(in, "SHIFT-JIS");
+    Reader stream = Util.inputStreamToReader(in, "SHIFT-JIS", path);
     return doParseKif(path, stream);
   }
 
@@ -366,66 +389,54 @@ public class GameLog implements Serializable {
    * be null if the data is not on sdcard.
    */
   private static GameLog doParseKif(File path, Reader stream) throws ParseException, IOException {
-    GameLog l = new GameLog();
+    final GameLog l = new GameLog();
     l.mPath = path;
-    
-    Scanner scanner = new Scanner(stream);
-    Play prevPlay = null;
-    Player curPlayer = Player.BLACK;
-    while (scanner.hasNextLine()) {
-      String line = scanner.nextLine();
-      boolean matched = false;
-      for (int i = 0; i < mAttrPatterns.length; ++i) {
-        AttrPattern attr = mAttrPatterns[i];
-        Matcher matcher = attr.pattern.matcher(line);  
-        if (matcher.matches()) {
-          l.mAttrs.put(attr.attr, matcher.group(1));
-          matched = true;
-          break;
-        }
+    KifParser.parse(stream, new KifParser.Handler() {
+      @Override public boolean onStartTime(long timeMs) {
+        l.mStartTimeMs = timeMs;
+        return true;
       }
-      if (matched) continue;
-      Matcher matcher = DATE_PATTERN.matcher(line);
-      if (matcher.matches()) {
-        l.mStartTimeMs = parseDate(matcher.group(1));
-        continue;
+
+      @Override public boolean onAttr(String name, String value) {
+        // Attributes other than STANDARD_ATTR_NAMES are just displayed as-is.
+        l.mAttrs.put(name, value);
+        return true;
       }
 
-      // Skip lines that don't contain information
-      if (line.startsWith("手数")) continue;
-      if (line.startsWith("まで")) continue;
-
-      matcher = PLAY_PATTERN.matcher(line);
-      if (matcher.matches()) {
-        String playString = matcher.group(1);
-        if (playString.startsWith("投了")) {
-          continue;
-        } else {
-          Play m = Play.fromKifString(prevPlay, curPlayer, playString);
-          if (m != null) {
-            l.mPlays.add(m);
-            prevPlay = m;
-          }
-          curPlayer = curPlayer.opponent();
-        }
-        continue;
+      @Override public boolean onPlay(Play play) {
+        l.mMoves.add(play);
+        return true;
       }
-      
-      // Parse unsupported attributes. They are just displayed as-is
-      matcher = UNKNOWN_ATTR_PATTERN.matcher(line);
-      if (matcher.matches()) {
-        String attrName = matcher.group(1);
-        String attrValue = matcher.group(2);
-        l.mAttrs.put(attrName, attrValue);
-        Log.d(TAG, "Found attr: " + attrName + "///" + attrValue);
-        continue;
+
+      @Override public boolean onUnknownLine(String line) {
+        Log.e(TAG, line + ": ignoring line");
+        return true;
       }
-      
-      Log.e(TAG, line + ": ignoring line");
-    }
+    });
     return l;
   }
   
+  @SuppressWarnings("unchecked")
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    ObjectInputStream.GetField f = in.readFields();
+    mAttrs = (TreeMap<String, String>)f.get("mAttrs", null);
+    mStartTimeMs = f.get("mStartTimeMs", 0L);
+    mDigest = (String)f.get("mDigest", null);
+    mPath = (File)f.get("mPath", null);
+    if (f.getObjectStreamClass().getField("mMoves") != null) {
+      mMoves = (MoveList)f.get("mMoves", null);
+    } else {
+      mMoves = MoveList.fromPlays((ArrayList<Play>)f.get("mPlays", null));
+    }
+    if (f.getObjectStreamClass().getField("mNumPlays") != null) {
+      mNumPlays = f.get("mNumPlays", 0);
+    }
+    // A header (see hasMoves()) has no plays, but must have the digest.
+    if (mAttrs == null || (mMoves == null && mDigest == null)) throw new InvalidObjectException("Missing fields");
+    // An older version saved a SHA-1 digest; recompute it from the plays.
+    if (mMoves != null) mDigest = null;
+  }
+
   // Given a UTC in milliseconds, return a KIF-style date string.
   private static String toKifDateString(long dateMs) {
     Calendar c = new GregorianCalendar();
@@ -445,7 +456,7 @@ public class GameLog implements Serializable {
   // Parse Japanese date string found in KIF file, return UTC in milliseconds. 
   // Supported format is:
   //    YYYY/MM/DD [HH[:MM[:SS]]]
-  private static long parseDate(String s) throws ParseException {
+  static long parseDate(String s) throws ParseException {
     Scanner scanner = new Scanner(s);
     scanner.useDelimiter("[/\\s　(（]");
 
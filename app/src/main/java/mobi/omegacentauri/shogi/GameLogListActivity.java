@@ -26,6 +26,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
+import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.Toolbar;
 
@@ -40,6 +41,9 @@ public class GameLogListActivity extends GenericListActivity<GameLog> {
   private GameLogListManager.Mode mMode;
   private SharedPreferences mPrefs;
 
+  // The query of the logs listed, or null to list all the logs. See LogIndex.search().
+  private String mQuery;
+
   @Override
   public void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
@@ -131,7 +135,22 @@ public class GameLogListActivity extends GenericListActivity<GameLog> {
 
   @Override
   public GameLog[] readNthStream(int index) throws Throwable {
-    Collection<GameLog> list = mGameLogList.listLogs(this, mMode);
+    if (mQuery != null) {
+      return mGameLogList.searchLogs(this, mQuery).toArray(new GameLog[0]);
+    }
+    // Show the logs already known right away, then the ones found by the scan as they
+    // are parsed.
+    Collection<GameLog> list = mGameLogList.listLogs(this, mMode, new GameLogListManager.ScanListener() {
+      @Override
+      public void onScanStart(Collection<GameLog> knownLogs) {
+        publishPartialResult(knownLogs.toArray(new GameLog[0]), true);
+      }
+
+      @Override
+      public void onLogsParsed(Collection<GameLog> newLogs) {
+        publishPartialResult(newLogs.toArray(new GameLog[0]), false);
+      }
+    });
     return list.toArray(new GameLog[0]);
   }
   
@@ -278,6 +297,9 @@ public class GameLogListActivity extends GenericListActivity<GameLog> {
 
   @Override public boolean onOptionsItemSelected(MenuItem item) {
     switch (item.getItemId()) {
+        case R.id.menu_search:
+          showSearchDialog();
+          return true;
         case R.id.delete_old:
             new RemoveAllInMemoryTask().execute(14);
             return true;
@@ -301,6 +323,31 @@ public class GameLogListActivity extends GenericListActivity<GameLog> {
     }
   }
 
+  // Ask for a query, and list the logs that match it. An empty query lists all the logs.
+  private void showSearchDialog() {
+    final EditText input = new EditText(this);
+    input.setSingleLine();
+    input.setHint(R.string.search_hint);
+    if (mQuery != null) input.setText(mQuery);
+    new AlertDialog.Builder(this)
+    .setTitle(R.string.search)
+    .setView(input)
+    .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+      @Override public void onClick(DialogInterface dialog, int whichButton) {
+        String query = input.getText().toString().trim();
+        mQuery = query.length() > 0 ? query : null;
+        if (mQuery != null) {
+          setTitle(getResources().getString(R.string.query_result) + ": " + mQuery);
+        } else {
+          setTitle(getResources().getString(R.string.game_logs));
+        }
+        startListing(GameLogListManager.Mode.READ_SDCARD_SUMMARY);
+      }
+    })
+    .setNegativeButton(android.R.string.cancel, null)
+    .create().show();
+  }
+
   // delete all in-memory entries
   private void removeInMemory() {
     AlertDialog.Builder b = new AlertDialog.Builder(this);
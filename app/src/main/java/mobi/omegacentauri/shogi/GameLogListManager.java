@@ -7,6 +7,9 @@ import android.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.Console;
 import java.io.File;
 import java.io.FileInputStream;
@@ -18,11 +21,19 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * 
@@ -41,8 +52,21 @@ public class GameLogListManager {
     public final GameLog log;
   }
 
-  private static String SUMMARY_PATH = "log_summary";
+  /** A log that reached a position. See findPosition(). */
+  public static class PositionMatch {
+    public PositionMatch(GameLog l, int p, int m) { log = l; ply = p; nextMove = m; }
+    public final GameLog log;  // the header
+    public final int ply;  // the number of plays made to reach the position
+    public final int nextMove;  // packed as in Move; Move.NONE if the log ends there
+  }
+
+  private static String SUMMARY_PATH = "log_summary";  // the format before LogStore
+  private static String LOG_STORE_PATH = "log_store";
   private static String SAVED_GAME = "current_game";
+  private static String ENCODING_CACHE_PATH = "encoding_cache";
+  private static String MANIFEST_PATH = "scan_manifest";
+  private static String INDEX_PATH = "log_index";
+  private static String POSITION_INDEX_PATH = "position_index";
 
   public enum Mode {
     READ_SDCARD_SUMMARY,
@@ -50,6 +74,23 @@ public class GameLogListManager {
   }
 
   private GameLogListManager() { }
+
+  // The summary of the logs. Opened by getStore(). Guarded by "this".
+  private LogStore mStore;
+
+  // The files seen by the last scan. Read by getManifest(). Guarded by "this".
+  private ScanManifest mManifest;
+
+  // The search index of the logs in mStore. Read by getIndex(). Guarded by "this".
+  private LogIndex mIndex;
+
+  // The positions reached by the logs in mStore. Opened by getPositions(), on the first
+  // findPosition(); until then, the changes to mStore are left to PositionIndex.Sync.
+  // The reference is guarded by "this"; the index has its own lock.
+  private PositionIndex mPositions;
+
+  // Whether EncodingCache has been read from ENCODING_CACHE_PATH. Guarded by "this".
+  private boolean mEncodingCacheLoaded;
   
   private static GameLogListManager mSingletonInstance;
   public static synchronized GameLogListManager getInstance() {
@@ -60,94 +101,379 @@ public class GameLogListManager {
   }
 
   /**
-   * Find all the in-memory and in-sdcard game logs
+   * Receives the progress of listLogs(). The methods are called on the thread that
+   * called listLogs().
+   */
+  public interface ScanListener {
+    /** The logs known before the scan, i.e., those in LogStore. */
+    void onScanStart(Collection<GameLog> knownLogs);
+
+    /** Logs found by the scan that weren't in LogStore. Called once per batch. */
+    void onLogsParsed(Collection<GameLog> newLogs);
+  }
+
+  /**
+   * Find all the in-memory and in-sdcard game logs. The logs have only the headers; see
+   * loadMoves().
    * 
    */
-  public synchronized Collection<GameLog> listLogs(
+  public Collection<GameLog> listLogs(
       Context context, 
       Mode mode) {
-    LogList summary = readSummary(context);
-    if (mode == Mode.RESET_SDCARD_SUMMARY) {
-      removeLogsInSdCard(summary);
+    return listLogs(context, mode, null);
+  }
+
+  /**
+   * Same as above, but reports the progress to "listener", if not null.
+   *
+   * Each file is checked against ScanManifest, and only the new files and those whose
+   * size or modification time changed are read. They are read in parallel, without
+   * holding the lock of this object, so that deleteLog() etc. aren't blocked by a long
+   * scan. A file with the same bytes as a file seen before, e.g., a moved file, gets the
+   * log of that file without parsing; the rest are parsed. The logs of the files that
+   * went away are removed.
+   */
+  public Collection<GameLog> listLogs(
+      Context context, 
+      Mode mode,
+      ScanListener listener) {
+    LogStore store;
+    HashMap<String, GameLog> known = new HashMap<String, GameLog>();
+    HashMap<String, ScanManifest.Entry> previous;
+    HashMap<ByteBuffer, String> byContent;
+    synchronized (this) {
+      store = getStore(context);
+      ScanManifest manifest = getManifest(context);
+      // A reset forgets the logs on sdcard, and parses all the files again.
+      if (mode == Mode.RESET_SDCARD_SUMMARY) manifest.clear();
+      for (GameLog log : store.logs()) {
+        if (mode == Mode.RESET_SDCARD_SUMMARY && log.path() != null) continue;
+        known.put(log.digest(), log);
+      }
+      previous = manifest.entries();
+      byContent = manifest.logDigestsByContent();
+      if (!mEncodingCacheLoaded) {
+        readEncodingCache(context);
+        mEncodingCacheLoaded = true;
+      }
     }
-    
-    long scanStartTimeMs = System.currentTimeMillis();
-    scanDirectory(new File("/sdcard/download"), summary);
-    scanDirectory(getLogDir(context), summary);
+    if (listener != null) listener.onScanStart(known.values());
 
-    // TODO: don't write the summary if it hasn't changed.
-    summary.lastScanTimeMs = scanStartTimeMs;
-    writeSummary(context, summary);
+    long scanStartTimeMs = System.currentTimeMillis();
+    final File dirs[] = { new File("/sdcard/download"), getLogDir(context) };
+    ArrayList<File> files = new ArrayList<File>();
+    for (File dir : dirs) listLogFiles(dir, files);
+    HashSet<String> present = new HashSet<String>();
+    ArrayList<File> changed = new ArrayList<File>();
+    for (File file : files) {
+      present.add(file.getPath());
+      ScanManifest.Entry e = previous.get(file.getPath());
+      if (e == null || !e.matches(file.length(), file.lastModified())) changed.add(file);
+    }
+    ArrayList<ScanResult> results = scanFiles(changed, byContent, known, listener);
+
+    // Only the differences from the store are written. The store may have changed during
+    // the scan, e.g., by deleteLog(), so it's consulted again.
+    synchronized (this) {
+      ScanManifest manifest = getManifest(context);
+      HashSet<String> scanned = new HashSet<String>();  // log digests of the files found
+      ArrayList<GameLog> puts = new ArrayList<GameLog>();
+      for (ScanResult r : results) {
+        if (r.logDigest == null) {
+          // Not a game log; don't parse it again until it changes.
+          manifest.put(r.file.getPath(), new ScanManifest.Entry(r.size, r.mtimeMs, r.contentDigest, null));
+          continue;
+        }
+        GameLog old = store.get(r.logDigest);
+        GameLog log = r.log;
+        if (old != null && old.path() != null && present.contains(old.path().getPath())) {
+          log = null;  // the log is already there, in another file; keep it
+        } else if (old != null && samePath(old.path(), r.file)) {
+          log = null;
+        } else if (log == null) {
+          // A moved file. Its log is taken from the store, with the new path.
+          log = (old != null ? store.load(r.logDigest) : null);
+          if (log == null) continue;  // deleted during the scan; parse it next time
+          log = log.withPath(r.file);
+        }
+        if (log != null) puts.add(log);
+        scanned.add(r.logDigest);
+        manifest.put(r.file.getPath(), new ScanManifest.Entry(r.size, r.mtimeMs, r.contentDigest, r.logDigest));
+      }
 
-    return summary.logs.values();
-  }
+      // The files that went away, and the unchanged files that remain.
+      HashMap<String, File> unchanged = new HashMap<String, File>();  // log digest -> file
+      for (Map.Entry<String, ScanManifest.Entry> e : previous.entrySet()) {
+        if (!present.contains(e.getKey())) {
+          manifest.remove(e.getKey());
+        } else if (e.getValue().logDigest != null) {
+          unchanged.put(e.getValue().logDigest, new File(e.getKey()));
+        }
+      }
 
-  private void removeLogsInSdCard(LogList summary) {
-    summary.lastScanTimeMs = -1;
-    ArrayList<String> to_remove = new ArrayList<String>();
-    for (Map.Entry<String, GameLog> e : summary.logs.entrySet()) {
-      if (e.getValue().path() != null) {
-        to_remove.add(e.getKey());
+      // Remove the logs whose files went away from the scanned directories (from anywhere,
+      // on a reset), unless they were found in another file.
+      ArrayList<String> gone = new ArrayList<String>();
+      for (GameLog log : store.logs()) {
+        if (log.path() == null || scanned.contains(log.digest())) continue;
+        if (mode != Mode.RESET_SDCARD_SUMMARY &&
+            (present.contains(log.path().getPath()) || !isIn(log.path(), dirs))) {
+          continue;
+        }
+        File other = unchanged.get(log.digest());
+        GameLog full = (other != null ? store.load(log.digest()) : null);
+        if (full != null) {
+          puts.add(full.withPath(other));
+        } else {
+          gone.add(log.digest());
+        }
       }
+      removeLogs(context, gone);
+      putLogs(context, puts);
+      store.setLastScanTimeMs(scanStartTimeMs);
+      if (manifest.isDirty()) writeManifest(context);
+      if (getIndex(context).isDirty()) writeIndex(context);
+      if (mPositions != null) mPositions.maybeMerge();
+      if (EncodingCache.getInstance().isDirty()) writeEncodingCache(context);
+      return store.logs();
     }
-    for (String key : to_remove) {
-      summary.logs.remove(key);
+  }
+
+  private static boolean samePath(File p1, File p2) {
+    return p1 == null ? p2 == null : p1.equals(p2);
+  }
+
+  // Whether "path" is directly in one of "dirs".
+  private static boolean isIn(File path, File dirs[]) {
+    for (File dir : dirs) {
+      if (dir.equals(path.getParentFile())) return true;
     }
+    return false;
   }
 
-  public void removeLogsInMemory(Context context, Integer age) {
-    LogList summary = readSummary(context);
+  public synchronized void removeLogsInMemory(Context context, Integer age) {
+    LogStore store = getStore(context);
     long deleteTime = age == 0 ? Long.MAX_VALUE : System.currentTimeMillis() - age * 86400l * 1000l - 1;
-    summary.lastScanTimeMs = -1;
     ArrayList<String> to_remove = new ArrayList<String>();
-    for (Map.Entry<String, GameLog> e : summary.logs.entrySet()) {
-      GameLog log = e.getValue();
+    for (GameLog log : store.logs()) {
       if (log.path() == null && log.getDate() <= deleteTime ) {
-        to_remove.add(e.getKey());
+        to_remove.add(log.digest());
       }
     }
-    for (String key : to_remove) {
-      summary.logs.remove(key);
+    removeLogs(context, to_remove);
+    if (getIndex(context).isDirty()) writeIndex(context);
+    if (mPositions != null) mPositions.maybeMerge();
+  }
+
+  /**
+   * Return the headers of the logs that match "query"; see LogIndex.search() for the
+   * syntax. The logs themselves aren't read.
+   */
+  public synchronized ArrayList<GameLog> searchLogs(Context context, String query) {
+    LogStore store = getStore(context);
+    ArrayList<GameLog> logs = new ArrayList<GameLog>();
+    for (String digest : getIndex(context).search(query)) {
+      GameLog log = store.get(digest);
+      if (log != null) logs.add(log);
+    }
+    return logs;
+  }
+
+  /**
+   * Return the logs that reached the position with "hashKey" (see Board.hashKey()), with
+   * the move each made next. The first call indexes the logs that the index lacks, which
+   * reads their plays; later calls don't read any log. Neither holds the lock of the
+   * manager while reading, so the other methods don't wait for the indexing.
+   */
+  public ArrayList<PositionMatch> findPosition(Context context, long hashKey) {
+    LogStore store = getStore(context);
+    ArrayList<PositionMatch> matches = new ArrayList<PositionMatch>();
+    try {
+      for (PositionIndex.Hit h : getPositions(context).find(hashKey)) {
+        GameLog log = store.get(h.digest);
+        if (log != null) matches.add(new PositionMatch(log, h.ply, h.nextMove));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
-    writeSummary(context, summary);
+    return matches;
   }
 
-  private void scanDirectory(File downloadDir, LogList summary) {
-    String[] files = downloadDir.list(new FilenameFilter(){
+  // Add the game log files in "dir" to "files".
+  private void listLogFiles(File dir, ArrayList<File> files) {
+    String[] names = dir.list(new FilenameFilter(){
       @Override
       public boolean accept(File dir, String filename) {
-        return isHtml(filename) || isKif(filename);
+        return isHtml(filename) || isKif(filename) || isCsa(filename);
       }
     });
 
-    if (files == null) return;
-    
-    for (String basename: files) {
-      File child = new File(downloadDir, basename);
-      try {
-        InputStream in = null;
+    if (names == null) return;
+
+    for (String basename: names) {
+      files.add(new File(dir, basename));
+    }
+  }
+
+  // What scanFile() found in a file.
+  private static class ScanResult {
+    final File file;
+    long size;
+    long mtimeMs;
+    byte[] contentDigest;
+    String logDigest;  // null if the file didn't parse
+    GameLog log;  // null if the file wasn't parsed
+
+    ScanResult(File f) { file = f; }
+  }
+
+  // Flush a batch to ScanListener.onLogsParsed() when it has this many logs, or when
+  // this much time has passed since the last batch. Each batch makes the list re-sort
+  // its contents, so the logs shouldn't be reported one by one.
+  private static final int MAX_LOGS_PER_BATCH = 64;
+  private static final long MAX_BATCH_DELAY_MS = 250;
+
+  /**
+   * Run scanFile() for "files" on a pool of worker threads, one per core. The results are
+   * collected on the calling thread as the workers finish, so no lock is needed, and the
+   * parsed logs that aren't in "known" are reported to "listener" in batches.
+   *
+   * @return The results, except for the files that couldn't be read.
+   */
+  private ArrayList<ScanResult> scanFiles(
+      ArrayList<File> files,
+      final Map<ByteBuffer, String> byContent,
+      final Map<String, GameLog> known,
+      ScanListener listener) {
+    ArrayList<ScanResult> results = new ArrayList<ScanResult>();
+    if (files.isEmpty()) return results;
+
+    final int numThreads = Math.max(1, Math.min(Util.numberOfCores(), files.size()));
+    ExecutorService threads = Executors.newFixedThreadPool(numThreads);
+    try {
+      CompletionService<ScanResult> done = new ExecutorCompletionService<ScanResult>(threads);
+      for (final File file : files) {
+        done.submit(new Callable<ScanResult>() {
+          @Override
+          public ScanResult call() {
+            return scanFile(file, byContent, known);
+          }
+        });
+      }
+
+      HashSet<String> reported = new HashSet<String>();
+      ArrayList<GameLog> batch = new ArrayList<GameLog>();
+      long lastBatchTimeMs = System.currentTimeMillis();
+      for (int i = 0; i < files.size(); ++i) {
+        ScanResult r;
         try {
-          if (child.lastModified() >= summary.lastScanTimeMs) {
-            in = new FileInputStream(child);
-            GameLog log = null;
-            if (isHtml(basename)) {
-              log = GameLog.parseHtml(child, in);
-            } else {
-              log = GameLog.parseKif(child, in);
-            }
-            if (log != null) {
-              summary.logs.put(log.digest(), log);
-            }
+          r = done.take().get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        } catch (ExecutionException e) {
+          Log.d(TAG, "parse: " + e.getCause());
+          continue;
+        }
+        if (r == null) continue;
+        results.add(r);
+        if (r.log != null && !known.containsKey(r.logDigest) && reported.add(r.logDigest)) {
+          batch.add(r.log.header());
+        }
+        if (listener != null && !batch.isEmpty()) {
+          final long now = System.currentTimeMillis();
+          if (batch.size() >= MAX_LOGS_PER_BATCH || now - lastBatchTimeMs >= MAX_BATCH_DELAY_MS) {
+            listener.onLogsParsed(batch);
+            batch = new ArrayList<GameLog>();
+            lastBatchTimeMs = now;
           }
-        } finally {
-          if (in != null) in.close();
         }
+      }
+      if (listener != null && !batch.isEmpty()) listener.onLogsParsed(batch);
+    } finally {
+      threads.shutdownNow();
+    }
+    return results;
+  }
+
+  // Read "file" and identify its log: by the digest of the bytes if a file with the same
+  // bytes was seen before and its log is in "known", else by parsing. Returns null if the
+  // file can't be read. Called on a worker thread.
+  private static ScanResult scanFile(File file, Map<ByteBuffer, String> byContent, Map<String, GameLog> known) {
+    ScanResult r = new ScanResult(file);
+    // Stat before reading, so that a change during the read is seen by the next scan.
+    r.size = file.length();
+    r.mtimeMs = file.lastModified();
+    byte[] contents;
+    try {
+      InputStream in = new FileInputStream(file);
+      try {
+        contents = Util.streamToBytes(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      Log.d(TAG, file.getAbsolutePath() + ": I/O error: " + e.getMessage()); 
+      return null;
+    }
+    r.contentDigest = ScanManifest.contentDigest(contents, contents.length);
+    final String digest = byContent.get(ByteBuffer.wrap(r.contentDigest));
+    if (digest != null && known.containsKey(digest)) {
+      r.logDigest = digest;
+    } else {
+      r.log = parseFile(file, new ByteArrayInputStream(contents));
+      if (r.log != null) r.logDigest = r.log.digest();
+    }
+    return r;
+  }
+
+  // Parse one game log file. Returns null on error.
+  private static GameLog parseFile(File file) {
+    InputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      return parseFile(file, in);
+    } catch (IOException e) {
+      Log.d(TAG, file.getAbsolutePath() + ": I/O error: " + e.getMessage()); 
+      return null;
+    } finally {
+      try {
+        if (in != null) in.close();
       } catch (IOException e) {
-        Log.d(TAG, child.getAbsolutePath() + ": I/O error: " + e.getMessage()); 
-      } catch (ParseException e) {
-        Log.d(TAG, child.getAbsolutePath() + ": KIF parse: " + e.getMessage());           
+        ;
+      }
+    }
+  }
+
+  // Parse the contents "in" of "file". Returns null on error.
+  private static GameLog parseFile(File file, InputStream in) {
+    final String basename = file.getName();
+    try {
+      if (isHtml(basename)) {
+        return GameLog.parseHtml(file, in);
+      } else if (isCsa(basename)) {
+        return GameLog.parseCsa(file, in);
+      } else {
+        return GameLog.parseKif(file, in);
       }
+    } catch (IOException e) {
+      Log.d(TAG, file.getAbsolutePath() + ": I/O error: " + e.getMessage()); 
+    } catch (ParseException e) {
+      Log.d(TAG, file.getAbsolutePath() + ": parse: " + e.getMessage());           
     }
+    return null;
+  }
+
+  /**
+   * Return "log" with the plays, reading them if "log" has only the header (see
+   * GameLog.hasMoves()). The plays are read from LogStore, or failing that, from the log
+   * file. Returns null if they can't be read.
+   */
+  public synchronized GameLog loadMoves(Context context, GameLog log) {
+    if (log.hasMoves()) return log;
+    GameLog full = getStore(context).load(log.digest());
+    if (full == null && log.path() != null) full = parseFile(log.path());
+    return full;
   }
 
   /**
@@ -156,38 +482,41 @@ public class GameLogListManager {
   public void saveLogInMemory(
           Activity activity,
           GameLog log, boolean update) {
-    LogList summary = readSummary(activity);
-    if (summary == null) summary = new LogList();
-    else if (update) {
-      String bestKey = null;
-      int bestMatch = 0;
-
-      for (String key : summary.logs.keySet()) {
-        GameLog l = summary.logs.get(key);
-        if (isSubset(l, log) && l.numPlays() > bestMatch) {
-          bestKey = key;
-          bestMatch = l.numPlays();
+    synchronized (this) {
+      LogStore store = getStore(activity);
+      if (update) {
+        GameLog best = null;
+
+        for (GameLog l : store.logs()) {
+          if ((best == null || l.numPlays() > best.numPlays()) && isSubset(store, l, log)) {
+            best = l;
+          }
         }
-      }
 
-      if (bestKey != null)
-        summary.logs.remove(bestKey);
+        if (best != null && !best.equals(log))
+          removeLog(activity, best.digest());
+      }
+      putLog(activity, log);
+      if (getIndex(activity).isDirty()) writeIndex(activity);
+      if (mPositions != null) mPositions.maybeMerge();
     }
-    summary.logs.put(log.digest(), log);
-    writeSummary(activity, summary);
     showToast(activity, activity.getResources().getString(R.string.saved_game_log_in_memory));
   }
 
-  private boolean isSubset(GameLog log1, GameLog log2) {
+  // Whether the plays of "log1" are a prefix of those of "log2". The plays of "log1", a
+  // log in "store", are read only if the headers match.
+  private boolean isSubset(LogStore store, GameLog log1, GameLog log2) {
     if (log1.getDate() != log2.getDate() ||
             !log1.getPlayer(GameLog.ATTR_BLACK_PLAYER).equals(log2.getPlayer(GameLog.ATTR_BLACK_PLAYER)) ||
             !log1.getPlayer(GameLog.ATTR_WHITE_PLAYER).equals(log2.getPlayer(GameLog.ATTR_WHITE_PLAYER)) ||
             log1.numPlays() > log2.numPlays()) {
       return false;
     }
+    if (!log1.hasMoves()) log1 = store.load(log1.digest());
+    if (log1 == null) return false;
     int m;
     for (m=0 ; m<log1.numPlays() ; m++) {
-      if (!log1.play(m).equals(log2.play(m)))
+      if (Move.identity(log1.move(m)) != Move.identity(log2.move(m)))
         return false;
     }
     return true;
@@ -226,16 +555,21 @@ public class GameLogListManager {
   public void saveLogInSdcard(
       Activity activity,
       GameLog log) {
-    File logFile = new File(getLogDir(activity), log.digest() + ".kif");
+    log = loadMoves(activity, log);
+    if (log == null) {
+      showToast(activity, "Error saving log: the log can't be read");
+      return;
+    }
+    SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(activity);
+    final String format = prefs.getString("log_save_format", "kif_dos");
+    File logFile = new File(getLogDir(activity), log.digest() + (isCsaFormat(format) ? ".csa" : ".kif"));
     try {
-      saveInSdcard(activity, log, logFile);
+      saveInSdcard(log, logFile, format);
       
       // Remove the in-memory log from the summary. The sdcard version of the log 
       // will be added back in ListLogs later.
-      LogList summary = readSummary(activity);
-      if (summary != null) {
-        summary.logs.remove(log.digest());
-        writeSummary(activity, summary);
+      synchronized (this) {
+        removeLog(activity, log.digest());
       }
       
       showToast(activity, String.format(activity.getResources().getString(R.string.saved_log_in_sdcard), logFile.getAbsolutePath()));
@@ -245,27 +579,139 @@ public class GameLogListManager {
     }
   }
 
-  private void saveInSdcard(Activity activity, GameLog log, File logFile) throws IOException {
-    SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(activity);
+  // @param format One of @id array/log_save_format_values.
+  private void saveInSdcard(GameLog log, File logFile, String format) throws IOException {
     FileOutputStream stream = null; 
     try {
       logFile.getParentFile().mkdirs();
       stream = new FileOutputStream(logFile);
-      log.toKif(stream, prefs.getString("log_save_format", "kif_dos"));
+      if (isCsaFormat(format)) {
+        log.toCsa(stream);
+      } else {
+        log.toKif(stream, format);
+      }
     } finally {
       if (stream != null) stream.close();
     }
   }
   
   /**
-   * 
-   * TODO this method assumes that context.openFileInput(path) opens the same file for a given path for any value of "context".
+   * Open the store on the first call. The summary saved by the older versions, if any, is
+   * moved into the store.
+   */
+  private synchronized LogStore getStore(Context context) {
+    if (mStore == null) {
+      mStore = new LogStore(new File(context.getFilesDir(), LOG_STORE_PATH));
+      if (new File(context.getFilesDir(), SUMMARY_PATH).exists()) {
+        LogList summary = readSummary(context, SUMMARY_PATH);
+        mStore.putAll(summary.logs.values());
+        mStore.setLastScanTimeMs(summary.lastScanTimeMs);
+        context.deleteFile(SUMMARY_PATH);
+      }
+    }
+    return mStore;
+  }
+
+  // Add "logs", which must have the plays, to the store and the indices.
+  private synchronized void putLogs(Context context, Collection<GameLog> logs) {
+    getStore(context).putAll(logs);
+    getIndex(context).addAll(logs);
+    if (mPositions != null) {
+      for (GameLog log : logs) mPositions.add(log);
+    }
+  }
+
+  private synchronized void putLog(Context context, GameLog log) {
+    getStore(context).put(log);
+    getIndex(context).add(log);
+    if (mPositions != null) mPositions.add(log);
+  }
+
+  // Remove the logs with "digests" from the store and the indices.
+  private synchronized void removeLogs(Context context, Collection<String> digests) {
+    getStore(context).deleteAll(digests);
+    getIndex(context).removeAll(digests);
+    if (mPositions != null) {
+      for (String digest : digests) mPositions.remove(digest);
+    }
+  }
+
+  private synchronized void removeLog(Context context, String digest) {
+    getStore(context).delete(digest);
+    getIndex(context).remove(digest);
+    if (mPositions != null) mPositions.remove(digest);
+  }
+
+  /**
+   * Open the position index on the first call, and bring it up to date with the store.
+   * This replays the logs added since the index was last written, all of them the
+   * first time, without holding the lock of the manager: the logs are listed under the
+   * lock, and from then on the put and remove helpers keep the index in step.
+   */
+  private PositionIndex getPositions(Context context) {
+    final LogStore store;
+    final PositionIndex positions;
+    final PositionIndex.Sync sync;
+    synchronized (this) {
+      if (mPositions != null) return mPositions;
+      store = getStore(context);
+      positions = new PositionIndex(new File(context.getFilesDir(), POSITION_INDEX_PATH));
+      sync = positions.beginSync(store.logs());
+      mPositions = positions;
+    }
+    sync.run(store);
+    positions.maybeMerge();
+    return positions;
+  }
+
+  /**
+   * Read the index on the first call. If it is missing, or doesn't match the store, e.g.,
+   * because the app was killed before the index was saved, it is rebuilt from the
+   * headers in the store.
    */
+  private synchronized LogIndex getIndex(Context context) {
+    if (mIndex == null) {
+      mIndex = new LogIndex();
+      FileInputStream fin = null;
+      try {
+        try {
+          fin = context.openFileInput(INDEX_PATH);
+          mIndex.read(new BufferedInputStream(fin));
+        } finally {
+          if (fin != null) fin.close();
+        }
+      } catch (FileNotFoundException e) {
+        ;
+      } catch (IOException e) {
+        Log.d(TAG, INDEX_PATH + ": IOException: " + e.getMessage());
+      }
+      ArrayList<GameLog> logs = getStore(context).logs();
+      if (!mIndex.matches(logs)) {
+        mIndex.clear();
+        mIndex.addAll(logs);
+      }
+    }
+    return mIndex;
+  }
 
-  private LogList readSummary(Context context) {
-    return readSummary(context, SUMMARY_PATH);
+  private void writeIndex(Context context) {
+    FileOutputStream fout = null;
+    try {
+      try {
+        fout = context.openFileOutput(INDEX_PATH, Context.MODE_PRIVATE);
+        mIndex.write(new BufferedOutputStream(fout));
+      } finally {
+        if (fout != null) fout.close();
+      }
+    } catch (IOException e) {
+      Log.d(TAG, INDEX_PATH + ": IOException: " + e.getMessage());
+    }
   }
 
+  /**
+   * 
+   * TODO this method assumes that context.openFileInput(path) opens the same file for a given path for any value of "context".
+   */
   private LogList readSummary(Context context, String path) {
     LogList summary = new LogList();
     FileInputStream fin = null;
@@ -287,19 +733,6 @@ public class GameLogListManager {
     return summary;
   }
 
-  /*
-  private void removeOldInMemoryLogs(LogList summary) {
-    ArrayList<GameLog> inmemory_logs = new ArrayList<GameLog>();
-    for (GameLog log : summary.logs.values()) {
-      if (log.path() == null) inmemory_logs.add(log);
-    }
-  } */
-
-  private void writeSummary(Context context, LogList summary) {
-    //removeOldInMemoryLogs(summary);
-    writeSummary(context, summary, SUMMARY_PATH);
-  }
-  
   private void writeSummary(Context context, LogList summary, String path) {
     FileOutputStream fout = null;
     try {
@@ -314,8 +747,73 @@ public class GameLogListManager {
     } catch (FileNotFoundException e) {
       ;
     } catch (IOException e) {
-      Log.d(TAG, SUMMARY_PATH + ": IOException: " + e.getMessage());
+      Log.d(TAG, path + ": IOException: " + e.getMessage());
+      ;
+    }
+  }
+
+  private synchronized ScanManifest getManifest(Context context) {
+    if (mManifest == null) {
+      mManifest = new ScanManifest();
+      FileInputStream fin = null;
+      try {
+        try {
+          fin = context.openFileInput(MANIFEST_PATH);
+          mManifest.read(new BufferedInputStream(fin));
+        } finally {
+          if (fin != null) fin.close();
+        }
+      } catch (FileNotFoundException e) {
+        ;
+      } catch (IOException e) {
+        Log.d(TAG, MANIFEST_PATH + ": IOException: " + e.getMessage());
+        mManifest.clear();
+      }
+    }
+    return mManifest;
+  }
+
+  private void writeManifest(Context context) {
+    FileOutputStream fout = null;
+    try {
+      try {
+        fout = context.openFileOutput(MANIFEST_PATH, Context.MODE_PRIVATE);
+        mManifest.write(new BufferedOutputStream(fout));
+      } finally {
+        if (fout != null) fout.close();
+      }
+    } catch (IOException e) {
+      Log.d(TAG, MANIFEST_PATH + ": IOException: " + e.getMessage());
+    }
+  }
+
+  private void readEncodingCache(Context context) {
+    FileInputStream fin = null;
+    try {
+      try {
+        fin = context.openFileInput(ENCODING_CACHE_PATH);
+        EncodingCache.getInstance().read(new BufferedInputStream(fin));
+      } finally {
+        if (fin != null) fin.close();
+      }
+    } catch (FileNotFoundException e) {
       ;
+    } catch (IOException e) {
+      Log.d(TAG, ENCODING_CACHE_PATH + ": IOException: " + e.getMessage());
+    }
+  }
+
+  private void writeEncodingCache(Context context) {
+    FileOutputStream fout = null;
+    try {
+      try {
+        fout = context.openFileOutput(ENCODING_CACHE_PATH, Context.MODE_PRIVATE);
+        EncodingCache.getInstance().write(new BufferedOutputStream(fout));
+      } finally {
+        if (fout != null) fout.close();
+      }
+    } catch (IOException e) {
+      Log.d(TAG, ENCODING_CACHE_PATH + ": IOException: " + e.getMessage());
     }
   }
 
@@ -327,12 +825,23 @@ public class GameLogListManager {
     return basename.endsWith(".kif");
   }
 
+  private static boolean isCsa(String basename) {
+    return basename.endsWith(".csa");
+  }
+
+  private static boolean isCsaFormat(String format) {
+    return format.equals("csa");
+  }
+
   /**
    * Delete the given log in the background. Show a toast when done.
    */
   public synchronized UndoToken deleteLog(
       Activity activity,
       GameLog log) {
+    // Keep the plays for undo(), as the record goes away.
+    GameLog full = loadMoves(activity, log);
+    if (full != null) log = full;
     String error = null;
     File path = log.path();
     if (path == null) {
@@ -350,10 +859,7 @@ public class GameLogListManager {
       }
     }
       
-    LogList summary = readSummary(activity);
-    if (summary == null) summary = new LogList();
-    summary.logs.remove(log.digest());
-    writeSummary(activity, summary);
+    removeLog(activity, log.digest());
     if (path == null) {
       showToast(activity, activity.getResources().getString(R.string.deleted_log_in_memory));
     } else {
@@ -378,10 +884,8 @@ public class GameLogListManager {
       } 
     }
       
-    LogList summary = readSummary(activity);
-    if (summary == null) summary = new LogList();
-    summary.logs.put(undo.log.digest(), undo.log);
-    writeSummary(activity, summary);
+    GameLog log = loadMoves(activity, undo.log);
+    if (log != null) putLog(activity, log);
     showToast(activity, activity.getResources().getString(R.string.restored_log));
   }
 
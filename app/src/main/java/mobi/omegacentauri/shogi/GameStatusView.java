@@ -53,6 +53,9 @@ public class GameStatusView extends LinearLayout {
   
   // List of past moves, in display format.
   private ArrayList<String> mPlayList;
+
+  // Renders mPlayList from the initial board. null if the initial board is unknown.
+  private NotationRenderer mRenderer;
   
   public GameStatusView(Context context, AttributeSet attrs) {
     super(context, attrs);
@@ -61,9 +64,13 @@ public class GameStatusView extends LinearLayout {
     super(context);
   }
   
+  /**
+   * @param initialBoard The board before the first play, used to render the plays. If
+   *   null, each play is rendered from the "lastBoard" passed to update().
+   */
   public final void initialize(
           String blackPlayerName,
-          String whitePlayerName, boolean flipScreen) {
+          String whitePlayerName, boolean flipScreen, Board initialBoard) {
     mGameStatus = (TextView)findViewById(R.id.status_game_status);
     mPlayHistory = (TextView)findViewById(R.id.status_play_history);
     mPlayHistory.setHorizontallyScrolling(true);
@@ -72,6 +79,7 @@ public class GameStatusView extends LinearLayout {
     mWhiteTime = new Timer((TextView)findViewById(R.id.status_white_time));
     mWhiteStatus = (TextView)findViewById(R.id.status_white_player_name);
     mPlayList = new ArrayList<String>();
+    mRenderer = (initialBoard != null ? new NotationRenderer(initialBoard) : null);
     mFlipScreen = flipScreen;
     mBaseBlackPlayerName = blackPlayerName;
     mBaseWhitePlayerName = whitePlayerName;
@@ -113,20 +121,31 @@ public class GameStatusView extends LinearLayout {
     mCurrentPlayer = currentPlayer;
     showPlayerNames();
 
+    // Handle undos. The renderer also knows the plays it rendered, so a play that was
+    // undone and replaced by another is rendered again.
+    while (plays.size() < mPlayList.size() || 
+           (mRenderer != null && mPlayList.size() > 0 &&
+            Move.identity(mRenderer.move(mPlayList.size() - 1)) != 
+            Move.identity(plays.get(mPlayList.size() - 1).move()))) {
+      mPlayList.remove(mPlayList.size() - 1);
+      if (mRenderer != null) mRenderer.undo();
+    }
+
     while (plays.size() > mPlayList.size()) {
+      Play thisPlay = plays.get(mPlayList.size());
+      if (mRenderer != null) {
+        // The renderer holds the board before thisPlay, so every play is displayed
+        // accurately, however many are added at once.
+        mPlayList.add(playNotation(mRenderer.next(thisPlay.move()), thisPlay));
+        continue;
+      }
       // Generally, moves is just one larger than mMoveList, in which case
       // we can use "lastBoard" to compute the display string of the last move.
       // If moves.size() > mMovesList.size() + 1, then moves other than the last
       // may be inaccurately displayed since "lastBoard" may not correspond to the
       // state before these plays are made.
-      Play thisPlay = plays.get(mPlayList.size());
       Play prevPlay = (mPlayList.size() > 0 ? plays.get(mPlayList.size() - 1) : null);
-      mPlayList.add(traditionalPlayNotation(lastBoard, thisPlay, prevPlay));
-    }
-    
-    // Handle undos
-    while (plays.size() < mPlayList.size()) {
-      mPlayList.remove(mPlayList.size() - 1);
+      mPlayList.add(playNotation(thisPlay.toTraditionalNotation(lastBoard, prevPlay), thisPlay));
     }
     
     if (mPlayList.size() > 0) {
@@ -184,9 +203,9 @@ public class GameStatusView extends LinearLayout {
     mWhiteTime.update(thinkTimes[Player.WHITE.toIndex()]); //Player.WHITE.toIndex()]);
   }
   
-  private final String traditionalPlayNotation(Board board, Play thisMove, Play prevMove) {
+  private final String playNotation(Play.TraditionalNotation n, Play thisMove) {
     if (Locale.getDefault().getLanguage().equals("ja")) {
-      return thisMove.toTraditionalNotation(board, prevMove).toJapaneseString();
+      return n.toJapaneseString();
     } else {
       return thisMove.toCsaString();
     }
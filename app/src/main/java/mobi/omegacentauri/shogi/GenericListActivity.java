@@ -55,6 +55,26 @@ public abstract class GenericListActivity<T> extends ListActivity {
   }
   
   public int numObjects() { return mAdapter.numObjects(); }
+
+  /**
+   * Show "objects" before readNthStream() returns, e.g., as a long scan finds them. The
+   * list is replaced again by the final results of the listing.
+   *
+   * @pre The caller must be the thread running readNthStream()
+   * @param replace If true, "objects" replace the list contents. Otherwise they are added.
+   */
+  protected void publishPartialResult(final T[] objects, final boolean replace) {
+    runOnUiThread(new Runnable() {
+      @Override
+      public void run() {
+        if (replace) {
+          mAdapter.setObjects(objects);
+        } else {
+          mAdapter.addObjects(objects);
+        }
+      }
+    });
+  }
   
   /**
    * @pre The caller must be the main thread
@@ -0,0 +1,141 @@
+package mobi.omegacentauri.shogi;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Parses a game record in KIF format, and reports what it finds to a Handler as it goes.
+ * Each line is dispatched on its first characters:
+ *
+ *   "  12 ７六歩(77)"   a play: digits, then spaces
+ *   "先手：羽生善治"     an attribute: a name, then "：" or ":"
+ *   "開始日時：..."      the start time
+ *   "*", "#"            a comment
+ *   "手数", "まで"       the moves header and the game result, skipped
+ *   "変化：3手"          the start of a variation, which ends the main line
+ *
+ * so a line costs one scan instead of a regular expression per line type. The handler can
+ * stop the parse at any event, e.g., a scan that only needs the attributes stops at
+ * onMovesStart() without reading the moves.
+ */
+public final class KifParser {
+  /**
+   * Receives the contents of a KIF record. Each method returns false to stop parsing,
+   * true to continue. The default implementations ignore the event and continue.
+   */
+  public abstract static class Handler {
+    /** The start time of the game (開始日時), UTC in milliseconds. */
+    public boolean onStartTime(long timeMs) { return true; }
+
+    /** An attribute, e.g., ATTR_BLACK_PLAYER. Called in the order of the lines. */
+    public boolean onAttr(String name, String value) { return true; }
+
+    /** Called once, before the first play or at the "手数----指手----" line. */
+    public boolean onMovesStart() { return true; }
+
+    /** A play of the main line, with its time if the record has one. */
+    public boolean onPlay(Play play) { return true; }
+
+    /** A line that couldn't be recognized. */
+    public boolean onUnknownLine(String line) { return true; }
+  }
+
+  private final Handler mHandler;
+  private boolean mMovesStarted;
+  private Play mPrevPlay;
+  private Player mCurPlayer = Player.BLACK;
+
+  private KifParser(Handler handler) {
+    mHandler = handler;
+  }
+
+  /** Parse the KIF record in "in", reporting to "handler". */
+  public static void parse(Reader in, Handler handler) throws ParseException, IOException {
+    new KifParser(handler).parse(in instanceof BufferedReader ? (BufferedReader)in : new BufferedReader(in));
+  }
+
+  private final void parse(BufferedReader in) throws ParseException, IOException {
+    String line;
+    boolean first = true;
+    while ((line = in.readLine()) != null) {
+      // Skip the byte order mark that some editors put at the start of a UTF-8 file.
+      if (first && line.length() > 0 && line.charAt(0) == '\uFEFF') line = line.substring(1);
+      first = false;
+      if (!parseLine(line)) return;
+    }
+  }
+
+  private final boolean parseLine(String line) throws ParseException {
+    final int n = line.length();
+    if (n == 0) return true;
+    final char c = line.charAt(0);
+    if (c == '*' || c == '#') return true;
+    if (line.startsWith("まで")) return true;
+    if (line.startsWith("手数")) return startMoves();
+
+    // A play: optional spaces, a move number, and spaces.
+    int i = 0;
+    while (i < n && isSpace(line.charAt(i))) ++i;
+    final int digits = i;
+    while (i < n && line.charAt(i) >= '0' && line.charAt(i) <= '9') ++i;
+    if (i > digits && i < n && isSpace(line.charAt(i))) {
+      while (i < n && isSpace(line.charAt(i))) ++i;
+      return parsePlay(line, i);
+    }
+
+    // An attribute: a name without spaces, a colon, and the value.
+    int colon = -1;
+    for (i = 0; i < n; ++i) {
+      final char ch = line.charAt(i);
+      if (ch == '：' || ch == ':') {
+        colon = i;
+        break;
+      }
+      if (isSpace(ch)) break;
+    }
+    if (colon > 0) {
+      final String name = line.substring(0, colon);
+      if (name.equals("開始日時")) {
+        return mHandler.onStartTime(GameLog.parseDate(line.substring(colon + 1)));
+      }
+      if (name.equals("変化")) return false;
+      if (isStandardAttr(name)) {
+        i = colon + 1;
+        while (i < n && isSpace(line.charAt(i))) ++i;
+        return mHandler.onAttr(name, line.substring(i));
+      }
+      if (colon + 1 < n) return mHandler.onAttr(name, line.substring(colon + 1));
+    }
+    return mHandler.onUnknownLine(line);
+  }
+
+  private final boolean startMoves() {
+    if (mMovesStarted) return true;
+    mMovesStarted = true;
+    return mHandler.onMovesStart();
+  }
+
+  // Parse the play at line[start, ...), after the move number.
+  private final boolean parsePlay(String line, int start) throws ParseException {
+    if (!startMoves()) return false;
+    if (line.startsWith("投了", start)) return true;
+    final Play p = Play.fromKifString(mPrevPlay, mCurPlayer, line.substring(start));
+    mCurPlayer = mCurPlayer.opponent();
+    if (p == null) return true;  // e.g., "千日手"
+    mPrevPlay = p;
+    return mHandler.onPlay(p);
+  }
+
+  private static final boolean isStandardAttr(String name) {
+    for (String s : GameLog.STANDARD_ATTR_NAMES) {
+      if (s.equals(name)) return true;
+    }
+    return false;
+  }
+
+  // ASCII white space, as matched by \s.
+  private static final boolean isSpace(char ch) {
+    return ch == ' ' || ch == '\t' || ch == '\n' || ch == '\u000B' || ch == '\f' || ch == '\r';
+  }
+}
@@ -0,0 +1,278 @@
+package mobi.omegacentauri.shogi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Map;
+
+/**
+ * Writes game logs in KIF format. The output is encoded line by line into a fixed-size
+ * byte buffer, so the memory use doesn't depend on the length of the games. The kanji
+ * numerals, piece names and other fixed strings are encoded once per charset.
+ *
+ * Several logs can be written to the same writer, back to back, e.g., to export many
+ * logs into one file:
+ *
+ *   KifWriter w = new KifWriter(out, "kif_utf8");
+ *   for (GameLog log : logs) w.write(log);
+ *   w.close();
+ */
+public final class KifWriter implements Closeable {
+  private static final int BUFFER_SIZE = 8192;
+
+  // Upper bound of the bytes of one move line, e.g.,
+  // " 123 ７六成銀(77) (12:34/01:23:45)" plus the EOL.
+  private static final int MAX_MOVE_LINE_BYTES = 128;
+
+  // Buffers of closed writers. Exporting logs one by one reuses them instead of
+  // allocating a buffer per log.
+  private static final int MAX_POOLED_BUFFERS = 2;
+  private static final ArrayList<byte[]> sBufferPool = new ArrayList<byte[]>();
+
+  /** The fixed strings of the KIF format, encoded in one charset. */
+  private static final class Encoding {
+    final Charset charset;
+    final byte eol[];
+    final byte startDate[];
+    final byte colon[];
+    final byte movesHeader[];
+    final byte promote[];
+    final byte drop[];
+    final byte files[][] = new byte[Board.DIM + 1][];  // "１".."９", indexed by 1..9
+    final byte ranks[][] = new byte[Board.DIM + 1][];  // "一".."九", indexed by 1..9
+    final byte pieces[][] = new byte[Piece.NUM_TYPES][];
+
+    Encoding(String charsetName, String eolString) {
+      charset = Charset.forName(charsetName);
+      eol = encode(eolString);
+      startDate = encode("開始日時：");
+      colon = encode("：");
+      movesHeader = encode("手数----指手---------消費時間--");
+      promote = encode("成");
+      drop = encode("打");
+      for (int i = 1; i <= Board.DIM; ++i) {
+        files[i] = encode(Play.japaneseRomanNumbers[i]);
+        ranks[i] = encode(Play.japaneseNumbers[i]);
+      }
+      for (int i = 0; i < Piece.NUM_TYPES; ++i) {
+        if (Piece.japaneseNames[i] != null) pieces[i] = encode(Piece.japaneseNames[i]);
+      }
+    }
+
+    private final byte[] encode(String s) {
+      return s.getBytes(charset);
+    }
+  }
+
+  private static final Encoding UTF8 = new Encoding("UTF-8", "\n");
+  private static final Encoding SHIFT_JIS = new Encoding("SHIFT-JIS", "\r\n");
+
+  private final OutputStream mOut;
+  private final Encoding mEncoding;
+  private final CharsetEncoder mEncoder;
+  private byte mBuf[];
+  private int mPos;  // mBuf[0, mPos) is yet to be written to mOut.
+  private int mNumLogs;
+
+  /**
+   * @param format One of @id array/log_save_format_values: "kif_utf8" writes UTF-8 with
+   *   LF line ends, anything else Shift_JIS with CRLF.
+   */
+  public KifWriter(OutputStream out, String format) {
+    mOut = out;
+    mEncoding = format.equals("kif_utf8") ? UTF8 : SHIFT_JIS;
+    // Same as OutputStreamWriter: unmappable characters are replaced, not reported.
+    mEncoder = mEncoding.charset.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    mBuf = obtainBuffer();
+  }
+
+  /** Write "log". A log after the first one is preceded by an empty line. */
+  public final void write(GameLog log) throws IOException {
+    if (mBuf == null) throw new IOException("KifWriter closed");
+    if (mNumLogs++ > 0) put(mEncoding.eol);
+
+    // Generate header lines
+    if (log.getDate() > 0) {
+      put(mEncoding.startDate);
+      putDate(log.getDate());
+      put(mEncoding.eol);
+    }
+    for (Map.Entry<String, String> e : log.attrs()) {
+      putString(e.getKey());
+      put(mEncoding.colon);
+      putString(e.getValue());
+      put(mEncoding.eol);
+    }
+    put(mEncoding.movesHeader);
+    put(mEncoding.eol);
+
+    Board board = new Board();
+    board.initialize(log.handicap());
+    NotationRenderer renderer = new NotationRenderer(board);
+    final MoveList moves = log.moves();
+    for (int i = 0; i < moves.size(); ++i) {
+      final int move = moves.move(i);
+      Play.TraditionalNotation n = renderer.next(move);
+      reserve(MAX_MOVE_LINE_BYTES);
+      putInt(i + 1, 4, ' ');
+      putAscii(' ');
+      put(mEncoding.files[n.x]);
+      put(mEncoding.ranks[n.y]);
+      put(mEncoding.pieces[Board.type(n.piece)]);
+      if ((n.modifier & Play.PROMOTE) != 0) {
+        put(mEncoding.promote);
+      }
+      if (!Move.isDrop(move)) {
+        putAscii('(');
+        putInt(9 - Move.from(move) % Board.DIM, 1, '0');
+        putInt(1 + Move.from(move) / Board.DIM, 1, '0');
+        putAscii(')');
+      } else {
+        put(mEncoding.drop);
+      }
+      if (moves.startTime(i) >= 0) {
+        // The time of this play, and the total time of the player after the play, as
+        // " (mm:ss/hh:mm:ss)".
+        final int play = (int)((moves.playTime(i) + 500l) / 1000l);
+        final int total = (int)((moves.endTime(i) + 500l) / 1000l);
+        putAscii(' ');
+        putAscii('(');
+        putInt(play / 60, 2, ' ');
+        putAscii(':');
+        putInt(play % 60, 2, '0');
+        putAscii('/');
+        putInt(total / 3600, 2, '0');
+        putAscii(':');
+        putInt(total / 60 % 60, 2, '0');
+        putAscii(':');
+        putInt(total % 60, 2, '0');
+        putAscii(')');
+      }
+      put(mEncoding.eol);
+    }
+  }
+
+  /** Write the buffered bytes to the output stream, and flush it. */
+  public final void flush() throws IOException {
+    flushBuffer();
+    mOut.flush();
+  }
+
+  /** Flush, then close the output stream. */
+  public final void close() throws IOException {
+    if (mBuf == null) return;
+    try {
+      flushBuffer();
+    } finally {
+      releaseBuffer(mBuf);
+      mBuf = null;
+      mOut.close();
+    }
+  }
+
+  private final void flushBuffer() throws IOException {
+    if (mPos > 0) {
+      mOut.write(mBuf, 0, mPos);
+      mPos = 0;
+    }
+  }
+
+  // Make room for "n" bytes in mBuf. n must be at most BUFFER_SIZE.
+  private final void reserve(int n) throws IOException {
+    if (mPos + n > mBuf.length) flushBuffer();
+  }
+
+  private final void put(byte bytes[]) throws IOException {
+    reserve(bytes.length);
+    System.arraycopy(bytes, 0, mBuf, mPos, bytes.length);
+    mPos += bytes.length;
+  }
+
+  private final void putAscii(char c) throws IOException {
+    reserve(1);
+    mBuf[mPos++] = (byte)c;
+  }
+
+  // Write "value" in decimal, left-padded with "pad" to "width" characters, like
+  // String.format("%2d") or "%02d".
+  private final void putInt(int value, int width, char pad) throws IOException {
+    reserve(12 + width);
+    final boolean negative = value < 0;
+    long v = Math.abs((long)value);
+    int numDigits = 1;
+    for (long t = v / 10; t > 0; t /= 10) ++numDigits;
+    final int length = numDigits + (negative ? 1 : 0);
+    if (pad != '0') {
+      for (int i = length; i < width; ++i) mBuf[mPos++] = (byte)pad;
+    }
+    if (negative) mBuf[mPos++] = '-';
+    if (pad == '0') {
+      for (int i = length; i < width; ++i) mBuf[mPos++] = '0';
+    }
+    for (int i = numDigits - 1; i >= 0; --i) {
+      mBuf[mPos + i] = (byte)('0' + v % 10);
+      v /= 10;
+    }
+    mPos += numDigits;
+  }
+
+  // Write the date as "yyyy/mm/dd hh:mm:ss".
+  private final void putDate(long dateMs) throws IOException {
+    Calendar c = new GregorianCalendar();
+    c.setTimeInMillis(dateMs);
+    putInt(c.get(Calendar.YEAR), 4, '0');
+    putAscii('/');
+    putInt(c.get(Calendar.MONTH) - Calendar.JANUARY + 1, 2, '0');
+    putAscii('/');
+    putInt(c.get(Calendar.DAY_OF_MONTH), 2, '0');
+    putAscii(' ');
+    putInt(c.get(Calendar.HOUR_OF_DAY), 2, '0');
+    putAscii(':');
+    putInt(c.get(Calendar.MINUTE), 2, '0');
+    putAscii(':');
+    putInt(c.get(Calendar.SECOND), 2, '0');
+  }
+
+  // Encode a string that isn't known in advance, e.g., a player name.
+  private final void putString(String s) throws IOException {
+    CharBuffer in = CharBuffer.wrap(s);
+    mEncoder.reset();
+    boolean flushing = false;
+    for (;;) {
+      ByteBuffer out = ByteBuffer.wrap(mBuf, mPos, mBuf.length - mPos);
+      CoderResult r = flushing ? mEncoder.flush(out) : mEncoder.encode(in, out, true);
+      mPos = out.position();
+      if (r.isOverflow()) {
+        flushBuffer();
+      } else if (!flushing) {
+        flushing = true;
+      } else {
+        break;
+      }
+    }
+  }
+
+  private static final byte[] obtainBuffer() {
+    synchronized (sBufferPool) {
+      if (!sBufferPool.isEmpty()) return sBufferPool.remove(sBufferPool.size() - 1);
+    }
+    return new byte[BUFFER_SIZE];
+  }
+
+  private static final void releaseBuffer(byte buf[]) {
+    synchronized (sBufferPool) {
+      if (sBufferPool.size() < MAX_POOLED_BUFFERS) sBufferPool.add(buf);
+    }
+  }
+}
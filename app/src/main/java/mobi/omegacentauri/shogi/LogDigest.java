@@ -0,0 +1,139 @@
+package mobi.omegacentauri.shogi;
+
+/**
+ * A streaming 128-bit hash of a sequence of longs and strings, after the x64 128-bit
+ * variant of MurmurHash3. It identifies game logs (see GameLog.digest()); it isn't meant
+ * to resist a crafted collision.
+ *
+ * The values are mixed two longs at a time, so feeding one costs a few multiplications.
+ * digest() doesn't disturb the state, so a digest can be taken, and the hash fed further.
+ *
+ * This class is not MT safe.
+ */
+public final class LogDigest {
+  private static final long C1 = 0x87c37b91114253d5L;
+  private static final long C2 = 0x4cf5ad432745937fL;
+
+  private long mH1;
+  private long mH2;
+  private long mPending;  // the first of a pair, if mHasPending
+  private boolean mHasPending;
+  private long mLength;  // the number of longs fed
+
+  public LogDigest() { }
+
+  public LogDigest(LogDigest src) {
+    mH1 = src.mH1;
+    mH2 = src.mH2;
+    mPending = src.mPending;
+    mHasPending = src.mHasPending;
+    mLength = src.mLength;
+  }
+
+  public final void update(long v) {
+    ++mLength;
+    if (!mHasPending) {
+      mPending = v;
+      mHasPending = true;
+      return;
+    }
+    mHasPending = false;
+    long k1 = mPending;
+    long k2 = v;
+    k1 *= C1;
+    k1 = Long.rotateLeft(k1, 31);
+    k1 *= C2;
+    mH1 ^= k1;
+    mH1 = Long.rotateLeft(mH1, 27);
+    mH1 += mH2;
+    mH1 = mH1 * 5 + 0x52dce729;
+    k2 *= C2;
+    k2 = Long.rotateLeft(k2, 33);
+    k2 *= C1;
+    mH2 ^= k2;
+    mH2 = Long.rotateLeft(mH2, 31);
+    mH2 += mH1;
+    mH2 = mH2 * 5 + 0x38495ab5;
+  }
+
+  /** Feed the length of "s", then its chars, four to a long. */
+  public final void update(String s) {
+    final int n = s.length();
+    update(n);
+    int i = 0;
+    for (; i + 4 <= n; i += 4) {
+      update(((long)s.charAt(i) << 48) | ((long)s.charAt(i + 1) << 32)
+          | ((long)s.charAt(i + 2) << 16) | s.charAt(i + 3));
+    }
+    if (i < n) {
+      long v = 0;
+      for (; i < n; ++i) v = (v << 16) | s.charAt(i);
+      update(v);
+    }
+  }
+
+  /** The digest of the values fed so far, as 32 lower-case hex digits. */
+  public final String digest() {
+    long h[] = finish();
+    return toString(h[0], h[1]);
+  }
+
+  /** Format a digest given as its high and low 64 bits, as digest() does. */
+  public static String toString(long high, long low) {
+    char buf[] = new char[32];
+    for (int i = 0; i < 16; ++i) {
+      buf[i] = HEX_DIGITS[(int)(high >>> (60 - i * 4)) & 0xf];
+      buf[i + 16] = HEX_DIGITS[(int)(low >>> (60 - i * 4)) & 0xf];
+    }
+    return new String(buf);
+  }
+
+  /** The high 64 bits of a digest formatted by digest(). */
+  public static long high(String digest) { return parseHex(digest, 0); }
+
+  /** The low 64 bits of a digest formatted by digest(). */
+  public static long low(String digest) { return parseHex(digest, 16); }
+
+  private static final char HEX_DIGITS[] = "0123456789abcdef".toCharArray();
+
+  private static long parseHex(String digest, int off) {
+    if (digest.length() != 32) throw new IllegalArgumentException("Invalid digest: " + digest);
+    long v = 0;
+    for (int i = off; i < off + 16; ++i) {
+      final int d = Character.digit(digest.charAt(i), 16);
+      if (d < 0) throw new IllegalArgumentException("Invalid digest: " + digest);
+      v = (v << 4) | d;
+    }
+    return v;
+  }
+
+  private final long[] finish() {
+    long h1 = mH1;
+    long h2 = mH2;
+    if (mHasPending) {
+      long k1 = mPending;
+      k1 *= C1;
+      k1 = Long.rotateLeft(k1, 31);
+      k1 *= C2;
+      h1 ^= k1;
+    }
+    h1 ^= mLength * 8;
+    h2 ^= mLength * 8;
+    h1 += h2;
+    h2 += h1;
+    h1 = fmix(h1);
+    h2 = fmix(h2);
+    h1 += h2;
+    h2 += h1;
+    return new long[]{ h1, h2 };
+  }
+
+  private static long fmix(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb93fe53ba873L;
+    k ^= k >>> 33;
+    return k;
+  }
+}
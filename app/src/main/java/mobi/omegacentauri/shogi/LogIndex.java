@@ -0,0 +1,343 @@
+package mobi.omegacentauri.shogi;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * An inverted index of the game logs, for searching the collection by the players, the
+ * tournament, the handicap and the date. Each log is a document, identified by its digest
+ * (GameLog.digest()), and each field maps its terms to the sorted ids of the documents
+ * that have them:
+ *
+ *   FIELD_BLACK, FIELD_WHITE:  the words of ATTR_BLACK_PLAYER and ATTR_WHITE_PLAYER
+ *   FIELD_EVENT:               the words of ATTR_TOURNAMENT
+ *   FIELD_HANDICAP:            the words of ATTR_HANDICAP
+ *   FIELD_DATE:                the date, "yyyy/mm/dd", so that a prefix is a year or a month
+ *
+ * The words are split at spaces and lower-cased. search() takes words separated by
+ * spaces, each of which is a prefix of a term, optionally qualified by a field:
+ * "black:", "white:", "player:" (either player), "event:", "handicap:" or "date:". A log
+ * matches if it matches all the words. So "player:羽生 date:2010" finds the games that
+ * Habu played in 2010. Only the headers of the logs are needed to index them.
+ *
+ * This class is not MT safe. GameLogListManager keeps it in step with LogStore, and loads
+ * it from and saves it to the application's private storage.
+ */
+public final class LogIndex {
+  private static final int VERSION = 1;
+
+  public static final int FIELD_BLACK = 0;
+  public static final int FIELD_WHITE = 1;
+  public static final int FIELD_EVENT = 2;
+  public static final int FIELD_HANDICAP = 3;
+  public static final int FIELD_DATE = 4;
+  private static final int NUM_FIELDS = 5;
+
+  private static final String FIELD_NAMES[] = { "black", "white", "event", "handicap", "date" };
+  // Separates the words of an attribute or a query.
+  private static final Pattern SPACES = Pattern.compile("[\\s\u3000]+");
+
+  private static final String ATTRS[] = {
+    GameLog.ATTR_BLACK_PLAYER, GameLog.ATTR_WHITE_PLAYER, GameLog.ATTR_TOURNAMENT, GameLog.ATTR_HANDICAP,
+  };
+
+  // A document: a log and its terms in each field.
+  private static final class Doc {
+    final String digest;
+    final String terms[][];
+
+    Doc(String d, String t[][]) {
+      digest = d;
+      terms = t;
+    }
+  }
+
+  // A growable sorted array of document ids.
+  private static final class Postings {
+    int ids[] = new int[4];
+    int size;
+
+    // "id" must be greater than the ids in the list.
+    final void append(int id) {
+      if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+      ids[size++] = id;
+    }
+
+    final void remove(int id) {
+      final int i = Arrays.binarySearch(ids, 0, size, id);
+      if (i < 0) return;
+      System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+      --size;
+    }
+  }
+
+  // mDocs[id] is the document with the id; null if it has been removed. The ids are
+  // given in increasing order, so a new id is appended to the postings.
+  private final ArrayList<Doc> mDocs = new ArrayList<Doc>();
+  private final HashMap<String, Integer> mIds = new HashMap<String, Integer>();
+
+  // mTerms[field] maps a term to its postings. A TreeMap, for the prefix lookups.
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private final TreeMap<String, Postings> mTerms[] = new TreeMap[NUM_FIELDS];
+
+  // The XOR of the digests of the documents; see matches().
+  private long mFingerprintHigh;
+  private long mFingerprintLow;
+
+  private boolean mDirty;
+
+  private final GregorianCalendar mTmpCalendar = new GregorianCalendar();
+
+  public LogIndex() {
+    for (int f = 0; f < NUM_FIELDS; ++f) mTerms[f] = new TreeMap<String, Postings>();
+  }
+
+  /** The number of logs indexed. */
+  public int size() { return mIds.size(); }
+
+  /** Index "log", which may be a header, unless it is already indexed. */
+  public void add(GameLog log) {
+    final String digest = log.digest();
+    if (mIds.containsKey(digest)) return;
+    String terms[][] = new String[NUM_FIELDS][];
+    for (int f = 0; f < ATTRS.length; ++f) terms[f] = words(log.attr(ATTRS[f]));
+    terms[FIELD_DATE] = log.getDate() > 0 ? new String[]{ dateTerm(log.getDate()) } : new String[0];
+    addDoc(new Doc(digest, terms));
+  }
+
+  public void addAll(Collection<GameLog> logs) {
+    for (GameLog log : logs) add(log);
+  }
+
+  /** Remove the log with "digest", if it is indexed. */
+  public void remove(String digest) {
+    Integer id = mIds.remove(digest);
+    if (id == null) return;
+    Doc doc = mDocs.get(id);
+    mDocs.set(id, null);
+    for (int f = 0; f < NUM_FIELDS; ++f) {
+      for (String term : doc.terms[f]) {
+        Postings p = mTerms[f].get(term);
+        p.remove(id);
+        if (p.size == 0) mTerms[f].remove(term);
+      }
+    }
+    toggleFingerprint(digest);
+    mDirty = true;
+  }
+
+  public void removeAll(Collection<String> digests) {
+    for (String digest : digests) remove(digest);
+  }
+
+  public void clear() {
+    mDocs.clear();
+    mIds.clear();
+    for (int f = 0; f < NUM_FIELDS; ++f) mTerms[f].clear();
+    mFingerprintHigh = mFingerprintLow = 0;
+    mDirty = true;
+  }
+
+  /**
+   * Whether the index holds exactly the logs in "logs", as far as their number and the
+   * XOR of their digests can tell. GameLogListManager rebuilds the index from LogStore
+   * when the index read from the file doesn't match it, e.g., after a crash.
+   */
+  public boolean matches(Collection<GameLog> logs) {
+    if (logs.size() != mIds.size()) return false;
+    long high = 0;
+    long low = 0;
+    for (GameLog log : logs) {
+      high ^= LogDigest.high(log.digest());
+      low ^= LogDigest.low(log.digest());
+    }
+    return high == mFingerprintHigh && low == mFingerprintLow;
+  }
+
+  /**
+   * Return the digests of the logs that match "query", in the order they were indexed.
+   * A query without words matches all the logs.
+   */
+  public ArrayList<String> search(String query) {
+    BitSet result = null;
+    for (String word : SPACES.split(query.trim())) {
+      if (word.length() == 0) continue;
+      BitSet matches = new BitSet(mDocs.size());
+      final int colon = word.indexOf(':');
+      final String field = colon > 0 ? word.substring(0, colon).toLowerCase(Locale.US) : null;
+      final String prefix = normalize(colon > 0 ? word.substring(colon + 1) : word);
+      for (int f = 0; f < NUM_FIELDS; ++f) {
+        if (field == null || field.equals(FIELD_NAMES[f]) ||
+            (field.equals("player") && (f == FIELD_BLACK || f == FIELD_WHITE))) {
+          addPrefixMatches(f, prefix, matches);
+        }
+      }
+      if (result == null) {
+        result = matches;
+      } else {
+        result.and(matches);
+      }
+    }
+    ArrayList<String> digests = new ArrayList<String>();
+    for (int id = 0; id < mDocs.size(); ++id) {
+      if (result != null && !result.get(id)) continue;
+      if (mDocs.get(id) != null) digests.add(mDocs.get(id).digest);
+    }
+    return digests;
+  }
+
+  /** Whether the contents changed since the last read() or write(). */
+  public boolean isDirty() { return mDirty; }
+
+  /** Replace the contents with those saved by write(). */
+  public void read(InputStream in) throws IOException {
+    DataInputStream din = new DataInputStream(in);
+    if (din.readInt() != VERSION) throw new IOException("LogIndex: unknown version");
+    clear();
+    final int numDocs = din.readInt();
+    mFingerprintHigh = din.readLong();
+    mFingerprintLow = din.readLong();
+    ArrayList<ArrayList<String>[]> docTerms = new ArrayList<ArrayList<String>[]>(numDocs);
+    for (int id = 0; id < numDocs; ++id) {
+      final String digest = LogDigest.toString(din.readLong(), din.readLong());
+      mIds.put(digest, id);
+      @SuppressWarnings({"unchecked", "rawtypes"})
+      ArrayList<String> t[] = new ArrayList[NUM_FIELDS];
+      for (int f = 0; f < NUM_FIELDS; ++f) t[f] = new ArrayList<String>(1);
+      docTerms.add(t);
+      mDocs.add(new Doc(digest, null));
+    }
+    for (int f = 0; f < NUM_FIELDS; ++f) {
+      final int numTerms = din.readInt();
+      for (int i = 0; i < numTerms; ++i) {
+        final String term = din.readUTF();
+        final int n = din.readInt();
+        if (n <= 0 || n > numDocs) throw new IOException("LogIndex: invalid postings size " + n);
+        Postings p = new Postings();
+        p.ids = new int[n];
+        int id = -1;
+        for (int j = 0; j < n; ++j) {
+          id += din.readInt();
+          if (id < 0 || id >= numDocs) throw new IOException("LogIndex: invalid document id " + id);
+          p.append(id);
+          docTerms.get(id)[f].add(term);
+        }
+        mTerms[f].put(term, p);
+      }
+    }
+    for (int id = 0; id < numDocs; ++id) {
+      String terms[][] = new String[NUM_FIELDS][];
+      for (int f = 0; f < NUM_FIELDS; ++f) terms[f] = docTerms.get(id)[f].toArray(new String[0]);
+      mDocs.set(id, new Doc(mDocs.get(id).digest, terms));
+    }
+    if (mIds.size() != numDocs) throw new IOException("LogIndex: duplicate documents");
+    mDirty = false;
+  }
+
+  // Format: the number of documents, the XOR of their digests, then the digest of each
+  // document; then, for each field, the number of terms, and each term with the number
+  // of its documents and their ids, delta-coded. The documents are renumbered densely.
+  public void write(OutputStream out) throws IOException {
+    DataOutputStream dout = new DataOutputStream(out);
+    dout.writeInt(VERSION);
+    dout.writeInt(mIds.size());
+    dout.writeLong(mFingerprintHigh);
+    dout.writeLong(mFingerprintLow);
+    int newIds[] = new int[mDocs.size()];
+    int n = 0;
+    for (int id = 0; id < mDocs.size(); ++id) {
+      Doc doc = mDocs.get(id);
+      if (doc == null) continue;
+      newIds[id] = n++;
+      dout.writeLong(LogDigest.high(doc.digest));
+      dout.writeLong(LogDigest.low(doc.digest));
+    }
+    for (int f = 0; f < NUM_FIELDS; ++f) {
+      dout.writeInt(mTerms[f].size());
+      for (Map.Entry<String, Postings> e : mTerms[f].entrySet()) {
+        final Postings p = e.getValue();
+        dout.writeUTF(e.getKey());
+        dout.writeInt(p.size);
+        int prev = -1;
+        for (int i = 0; i < p.size; ++i) {
+          dout.writeInt(newIds[p.ids[i]] - prev);
+          prev = newIds[p.ids[i]];
+        }
+      }
+    }
+    dout.flush();
+    mDirty = false;
+  }
+
+  private void addDoc(Doc doc) {
+    final int id = mDocs.size();
+    mDocs.add(doc);
+    mIds.put(doc.digest, id);
+    for (int f = 0; f < NUM_FIELDS; ++f) {
+      for (String term : doc.terms[f]) {
+        Postings p = mTerms[f].get(term);
+        if (p == null) {
+          p = new Postings();
+          mTerms[f].put(term, p);
+        }
+        p.append(id);
+      }
+    }
+    toggleFingerprint(doc.digest);
+    mDirty = true;
+  }
+
+  private void addPrefixMatches(int field, String prefix, BitSet matches) {
+    NavigableMap<String, Postings> terms = mTerms[field].subMap(prefix, true, prefix + Character.MAX_VALUE, true);
+    for (Postings p : terms.values()) {
+      for (int i = 0; i < p.size; ++i) matches.set(p.ids[i]);
+    }
+  }
+
+  private void toggleFingerprint(String digest) {
+    mFingerprintHigh ^= LogDigest.high(digest);
+    mFingerprintLow ^= LogDigest.low(digest);
+  }
+
+  private String dateTerm(long dateMs) {
+    mTmpCalendar.setTimeInMillis(dateMs);
+    final int year = mTmpCalendar.get(Calendar.YEAR);
+    final int month = mTmpCalendar.get(Calendar.MONTH) - Calendar.JANUARY + 1;
+    final int day = mTmpCalendar.get(Calendar.DAY_OF_MONTH);
+    StringBuilder b = new StringBuilder(10);
+    for (int d = 1000; d > 0; d /= 10) b.append((char)('0' + year / d % 10));
+    b.append(month < 10 ? "/0" : "/").append(month);
+    b.append(day < 10 ? "/0" : "/").append(day);
+    return b.toString();
+  }
+
+  // The distinct words of "value", or none if it is null.
+  private static String[] words(String value) {
+    if (value == null) return new String[0];
+    ArrayList<String> words = new ArrayList<String>(2);
+    for (String w : SPACES.split(value.trim())) {
+      w = normalize(w);
+      if (w.length() > 0 && !words.contains(w)) words.add(w);
+    }
+    return words.toArray(new String[0]);
+  }
+
+  private static String normalize(String word) {
+    return word.toLowerCase(Locale.US);
+  }
+}
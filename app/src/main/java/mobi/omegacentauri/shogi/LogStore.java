@@ -0,0 +1,665 @@
+package mobi.omegacentauri.shogi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * The summary of the game logs: every log kept in memory, and the logs found on sdcard,
+ * keyed by their digests, plus the time of the last sdcard scan.
+ *
+ * The summary is stored as a log of records appended to a file. When the store is opened,
+ * the file is read once to build the index, which holds the header of each log (see
+ * GameLog.hasMoves()) and the offset of its record in the file; the plays are read from
+ * the offset by load(), when a log is opened. So the memory doesn't grow with the number
+ * of plays in the collection. Adding or removing a game log appends one record, so a
+ * mutation costs I/O in proportion to the record, not to the summary. The records
+ * overwritten or deleted since are garbage; when they make up more than half of the file,
+ * the file is compacted on a background thread.
+ *
+ * The file is an 8-byte header (MAGIC, VERSION), then records, each framed as
+ *
+ *   int length, byte[length] payload, int CRC-32 of the payload
+ *
+ * and the payload is a type byte followed by
+ *
+ *   TYPE_PUT:        the log, see writeLog()
+ *   TYPE_DELETE:     the digest, two longs (see LogDigest.high() and low())
+ *   TYPE_SCAN_TIME:  the scan time, a long
+ *
+ * A record cut short by a crash, or one that fails the CRC check, ends the file; it and
+ * anything after it are dropped when the file is next opened.
+ *
+ * This class is MT safe. The I/O errors are logged, not thrown: if the file can't be
+ * written, the store keeps the logs put since in memory, plays included.
+ */
+public final class LogStore {
+  private static final String TAG = "LogStore";
+
+  private static final int MAGIC = 0x53474c53;  // "SGLS"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 8;
+
+  private static final byte TYPE_PUT = 1;
+  private static final byte TYPE_DELETE = 2;
+  private static final byte TYPE_SCAN_TIME = 3;
+
+  // The length and the CRC around a payload.
+  private static final int FRAME_SIZE = 8;
+  private static final int SCAN_TIME_RECORD_SIZE = FRAME_SIZE + 1 + 8;
+
+  // A length beyond this is taken for a corrupt record.
+  private static final int MAX_PAYLOAD_SIZE = 16 << 20;
+
+  // Files smaller than this aren't compacted, however much of them is garbage.
+  private static final long MIN_COMPACTION_SIZE = 256 << 10;
+
+  private static final class Entry {
+    // The header of the log, or the whole log if it isn't in the file (offset < 0).
+    final GameLog log;
+    long offset;  // of the record in the file. Changed by compact().
+    final int size;  // of the record, frame included
+
+    Entry(GameLog l, long o, int s) {
+      log = l;
+      offset = o;
+      size = s;
+    }
+  }
+
+  // A ByteArrayOutputStream whose buffer can be patched in place, and cut short.
+  private static final class Buffer extends ByteArrayOutputStream {
+    Buffer() { super(4096); }
+    final byte[] array() { return buf; }
+    final void truncate(int size) { count = size; }
+  }
+
+  // Encodes records into one buffer, to be written with a single write().
+  private static final class RecordWriter {
+    final Buffer bytes = new Buffer();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    private final CRC32 mCrc = new CRC32();
+    private int mRecordStart;
+
+    // Start a record of "type". The payload is then written to "out". Returns the offset
+    // of the record in the buffer.
+    final int begin(byte type) throws IOException {
+      mRecordStart = bytes.size();
+      out.writeInt(0);  // the length, filled in by end()
+      out.writeByte(type);
+      return mRecordStart;
+    }
+
+    // Finish the record. Returns its size.
+    final int end() throws IOException {
+      final byte buf[] = bytes.array();
+      final int length = bytes.size() - mRecordStart - 4;
+      buf[mRecordStart] = (byte)(length >>> 24);
+      buf[mRecordStart + 1] = (byte)(length >>> 16);
+      buf[mRecordStart + 2] = (byte)(length >>> 8);
+      buf[mRecordStart + 3] = (byte)length;
+      mCrc.reset();
+      mCrc.update(buf, mRecordStart + 4, length);
+      out.writeInt((int)mCrc.getValue());
+      return length + FRAME_SIZE;
+    }
+
+    // Drop the record begun last, e.g., after writeLog() failed.
+    final void abort() { bytes.truncate(mRecordStart); }
+
+    final void reset() { bytes.reset(); }
+  }
+
+  private final File mFile;
+  private RandomAccessFile mOut;  // null if the file couldn't be opened
+  private long mLength;  // of the file, i.e., the offset of the next record
+  private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+  private long mLastScanTimeMs = -1;
+
+  // The bytes a compacted file would take: the header, the scan time, and the records in
+  // mEntries. The rest of mLength is garbage.
+  private long mLiveBytes = HEADER_SIZE + SCAN_TIME_RECORD_SIZE;
+
+  private final RecordWriter mWriter = new RecordWriter();
+  private final CRC32 mCrc = new CRC32();
+  private boolean mCompacting;
+
+  // Runs compact() in the background, for all the stores.
+  private static ExecutorService mCompactor;
+
+  /**
+   * Open the store in "file", creating the file if it doesn't exist. This reads the whole
+   * file, so it must be called in a non-main thread.
+   */
+  public LogStore(File file) {
+    mFile = file;
+    new File(file.getPath() + ".tmp").delete();  // left by an interrupted compact()
+    try {
+      loadIndex();
+    } catch (IOException e) {
+      Log.d(TAG, mFile + ": " + e.getMessage());
+      closeFile();
+      mEntries.clear();
+      mLiveBytes = HEADER_SIZE + SCAN_TIME_RECORD_SIZE;
+    }
+  }
+
+  /** The number of logs. */
+  public synchronized int size() { return mEntries.size(); }
+
+  /** Return a new list of all the logs, with only the headers. */
+  public synchronized ArrayList<GameLog> logs() {
+    ArrayList<GameLog> logs = new ArrayList<GameLog>(mEntries.size());
+    for (Entry e : mEntries.values()) logs.add(e.log);
+    return logs;
+  }
+
+  /** The header of the log with "digest", or null. */
+  public synchronized GameLog get(String digest) {
+    Entry e = mEntries.get(digest);
+    return e != null ? e.log : null;
+  }
+
+  /**
+   * Read the log with "digest", plays included. Returns null if there is no such log, or
+   * the record can't be read.
+   */
+  public synchronized GameLog load(String digest) {
+    Entry e = mEntries.get(digest);
+    if (e == null) return null;
+    if (e.log.hasMoves()) return e.log;
+    if (mOut == null) return null;
+    try {
+      byte record[] = new byte[e.size];
+      mOut.seek(e.offset);
+      mOut.readFully(record);
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+      final int length = in.readInt();
+      if (length != e.size - FRAME_SIZE) throw new IOException("length mismatch at offset " + e.offset);
+      mCrc.reset();
+      mCrc.update(record, 4, length);
+      if (in.skipBytes(length) != length || in.readInt() != (int)mCrc.getValue()) {
+        throw new IOException("CRC mismatch at offset " + e.offset);
+      }
+      in = new DataInputStream(new ByteArrayInputStream(record, 4, length));
+      if (in.readByte() != TYPE_PUT) throw new IOException("not a log at offset " + e.offset);
+      return readLog(in, false);
+    } catch (IOException ex) {
+      Log.d(TAG, mFile + ": " + ex.getMessage());
+      return null;
+    }
+  }
+
+  /** The time of the last sdcard scan, or -1 if a full scan is needed. */
+  public synchronized long lastScanTimeMs() { return mLastScanTimeMs; }
+
+  public synchronized void setLastScanTimeMs(long timeMs) {
+    if (timeMs == mLastScanTimeMs) return;
+    try {
+      mWriter.reset();
+      mWriter.begin(TYPE_SCAN_TIME);
+      mWriter.out.writeLong(timeMs);
+      mWriter.end();
+      append(mWriter.bytes.array(), mWriter.bytes.size());
+    } catch (IOException e) {
+      Log.d(TAG, mFile + ": " + e.getMessage());
+    }
+    mLastScanTimeMs = timeMs;
+  }
+
+  /** Add "log", replacing the log with the same digest. "log" must have the plays. */
+  public synchronized void put(GameLog log) {
+    ArrayList<GameLog> logs = new ArrayList<GameLog>(1);
+    logs.add(log);
+    putAll(logs);
+  }
+
+  /**
+   * Add "logs", with one write to the file. A log that can't be encoded, e.g., one with
+   * an attribute longer than writeUTF() allows, is logged and skipped.
+   */
+  public synchronized void putAll(Collection<GameLog> logs) {
+    if (logs.isEmpty()) return;
+    mWriter.reset();
+    final long base = mLength;
+    ArrayList<GameLog> encoded = new ArrayList<GameLog>(logs.size());
+    long offsets[] = new long[logs.size()];
+    int sizes[] = new int[logs.size()];
+    for (GameLog log : logs) {
+      try {
+        final long offset = base + mWriter.begin(TYPE_PUT);
+        writeLog(mWriter.out, log);
+        sizes[encoded.size()] = mWriter.end();
+        offsets[encoded.size()] = offset;
+        encoded.add(log);
+      } catch (IOException e) {
+        mWriter.abort();
+        Log.d(TAG, log.digest() + ": can't encode: " + e.getMessage());
+      }
+    }
+    boolean written = false;
+    try {
+      if (!encoded.isEmpty()) written = append(mWriter.bytes.array(), mWriter.bytes.size());
+    } catch (IOException e) {
+      Log.d(TAG, mFile + ": " + e.getMessage());
+    }
+    for (int i = 0; i < encoded.size(); ++i) {
+      final GameLog log = encoded.get(i);
+      Entry e = written ? new Entry(log.header(), offsets[i], sizes[i]) : new Entry(log, -1, sizes[i]);
+      putEntry(log.digest(), e);
+    }
+    maybeCompact();
+  }
+
+  /** Remove the log with "digest", if any. */
+  public synchronized void delete(String digest) {
+    ArrayList<String> digests = new ArrayList<String>(1);
+    digests.add(digest);
+    deleteAll(digests);
+  }
+
+  /** Remove the logs with "digests", with one write to the file. */
+  public synchronized void deleteAll(Collection<String> digests) {
+    mWriter.reset();
+    boolean found = false;
+    try {
+      for (String digest : digests) {
+        if (!mEntries.containsKey(digest)) continue;
+        mWriter.begin(TYPE_DELETE);
+        writeDigest(mWriter.out, digest);
+        mWriter.end();
+        found = true;
+      }
+      if (found) append(mWriter.bytes.array(), mWriter.bytes.size());
+    } catch (IOException e) {
+      Log.d(TAG, mFile + ": " + e.getMessage());
+    }
+    for (String digest : digests) removeEntry(digest);
+    maybeCompact();
+  }
+
+  /**
+   * Rewrite the file with only the live records. The records are copied to a temporary
+   * file without holding the lock, so that the mutations don't wait; those made in the
+   * meantime are copied over before the temporary file replaces the store.
+   */
+  public void compact() throws IOException {
+    Entry entries[];
+    String digests[];
+    long scanTimeMs;
+    long snapshotLength;
+    synchronized (this) {
+      if (mCompacting || mOut == null) return;
+      mCompacting = true;
+      entries = new Entry[mEntries.size()];
+      digests = new String[mEntries.size()];
+      int i = 0;
+      for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+        digests[i] = e.getKey();
+        entries[i++] = e.getValue();
+      }
+      scanTimeMs = mLastScanTimeMs;
+      snapshotLength = mLength;
+    }
+    File tmp = new File(mFile.getPath() + ".tmp");
+    try {
+      // The records in the file below snapshotLength don't change, so they can be read
+      // without the lock. So can Entry.offset, which only compact() changes.
+      long newOffsets[] = new long[entries.length];
+      int newSizes[] = new int[entries.length];
+      long pos = HEADER_SIZE;
+      RecordWriter w = new RecordWriter();
+      RandomAccessFile src = new RandomAccessFile(mFile, "r");
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        w.begin(TYPE_SCAN_TIME);
+        w.out.writeLong(scanTimeMs);
+        pos += w.end();
+        w.bytes.writeTo(out);
+        byte record[] = new byte[4096];
+        for (int i = 0; i < entries.length; ++i) {
+          final Entry e = entries[i];
+          newOffsets[i] = pos;
+          if (e.offset < 0) {
+            // Not in the file; write it from memory.
+            w.reset();
+            w.begin(TYPE_PUT);
+            writeLog(w.out, e.log);
+            newSizes[i] = w.end();
+            w.bytes.writeTo(out);
+          } else {
+            if (record.length < e.size) record = new byte[e.size];
+            src.seek(e.offset);
+            src.readFully(record, 0, e.size);
+            out.write(record, 0, e.size);
+            newSizes[i] = e.size;
+          }
+          pos += newSizes[i];
+        }
+      } finally {
+        src.close();
+        out.close();
+      }
+
+      synchronized (this) {
+        if (mOut == null) return;
+        RandomAccessFile dest = new RandomAccessFile(tmp, "rw");
+        try {
+          dest.seek(pos);
+          byte buf[] = new byte[8192];
+          mOut.seek(snapshotLength);
+          for (long p = snapshotLength; p < mLength; ) {
+            final int n = mOut.read(buf, 0, (int)Math.min(buf.length, mLength - p));
+            if (n < 0) throw new EOFException(mFile + ": truncated");
+            dest.write(buf, 0, n);
+            p += n;
+          }
+        } finally {
+          dest.close();
+        }
+        closeFile();
+        if (!tmp.renameTo(mFile)) {
+          Log.d(TAG, tmp + ": rename failed");
+          mOut = new RandomAccessFile(mFile, "rw");
+          return;
+        }
+        mOut = new RandomAccessFile(mFile, "rw");
+        mLength = mOut.length();
+
+        // The records appended since the snapshot moved by the same distance. Then the
+        // entries in the snapshot that are still current move to their new places. Only
+        // the sizes of the entries written from memory may change.
+        final long delta = pos - snapshotLength;
+        for (Entry e : mEntries.values()) {
+          if (e.offset >= snapshotLength) e.offset += delta;
+        }
+        for (int i = 0; i < entries.length; ++i) {
+          if (mEntries.get(digests[i]) != entries[i]) continue;  // replaced or deleted
+          if (entries[i].offset < 0) {
+            putEntry(digests[i], new Entry(entries[i].log.header(), newOffsets[i], newSizes[i]));
+          } else {
+            entries[i].offset = newOffsets[i];
+          }
+        }
+      }
+    } finally {
+      synchronized (this) {
+        mCompacting = false;
+      }
+      tmp.delete();
+    }
+  }
+
+  /** Close the file. The store keeps working in memory. */
+  public synchronized void close() {
+    closeFile();
+  }
+
+  private final void closeFile() {
+    if (mOut == null) return;
+    try {
+      mOut.close();
+    } catch (IOException e) {
+      Log.d(TAG, mFile + ": " + e.getMessage());
+    }
+    mOut = null;
+  }
+
+  private final void putEntry(String digest, Entry e) {
+    Entry old = mEntries.put(digest, e);
+    mLiveBytes += e.size - (old != null ? old.size : 0);
+  }
+
+  private final void removeEntry(String digest) {
+    Entry old = mEntries.remove(digest);
+    if (old != null) mLiveBytes -= old.size;
+  }
+
+  // Append the records in buf[0, length) to the file. Returns false if there is no file.
+  // A write that fails partway is undone, so the file ends at a record boundary.
+  private final boolean append(byte buf[], int length) throws IOException {
+    if (mOut == null) return false;
+    try {
+      mOut.seek(mLength);  // load() moves the file pointer
+      mOut.write(buf, 0, length);
+    } catch (IOException e) {
+      try {
+        mOut.setLength(mLength);
+      } catch (IOException e2) {
+        closeFile();
+      }
+      throw e;
+    }
+    mLength += length;
+    return true;
+  }
+
+  // Compact the file in the background if more than half of it is garbage.
+  private final void maybeCompact() {
+    if (mCompacting || mOut == null || mLength < MIN_COMPACTION_SIZE || mLength - mLiveBytes <= mLiveBytes) {
+      return;
+    }
+    synchronized (LogStore.class) {
+      if (mCompactor == null) {
+        mCompactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+          @Override public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, TAG);
+            t.setDaemon(true);
+            return t;
+          }
+        });
+      }
+    }
+    mCompactor.execute(new Runnable() {
+      @Override public void run() {
+        try {
+          compact();
+        } catch (IOException e) {
+          Log.d(TAG, mFile + ": compact: " + e.getMessage());
+        }
+      }
+    });
+  }
+
+  // Read the file and build the index.
+  private final void loadIndex() throws IOException {
+    mOut = new RandomAccessFile(mFile, "rw");
+    final long fileLength = mOut.length();
+    if (fileLength < HEADER_SIZE) {
+      writeHeader();
+      return;
+    }
+    long pos = 0;
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile), 65536));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        Log.d(TAG, mFile + ": unknown format; starting afresh");
+        writeHeader();
+        return;
+      }
+      pos = HEADER_SIZE;
+      byte payload[] = new byte[4096];
+      while (pos + FRAME_SIZE <= fileLength) {
+        final int length = in.readInt();
+        if (length <= 0 || length > MAX_PAYLOAD_SIZE || pos + FRAME_SIZE + length > fileLength) break;
+        if (payload.length < length) payload = new byte[Math.max(length, payload.length * 2)];
+        in.readFully(payload, 0, length);
+        mCrc.reset();
+        mCrc.update(payload, 0, length);
+        if (in.readInt() != (int)mCrc.getValue()) break;
+        try {
+          apply(payload, length, pos);
+        } catch (IOException e) {
+          break;  // a malformed payload; treat it like a torn record
+        }
+        pos += FRAME_SIZE + length;
+      }
+    } finally {
+      in.close();
+    }
+    if (pos < fileLength) {
+      Log.d(TAG, mFile + ": dropping " + (fileLength - pos) + " bytes at offset " + pos);
+      mOut.setLength(pos);
+    }
+    mLength = pos;
+  }
+
+  private final void writeHeader() throws IOException {
+    mOut.setLength(0);
+    mOut.writeInt(MAGIC);
+    mOut.writeInt(VERSION);
+    mLength = HEADER_SIZE;
+  }
+
+  // Apply the record at "offset" to the index.
+  private final void apply(byte payload[], int length, long offset) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload, 0, length));
+    final byte type = in.readByte();
+    if (type == TYPE_PUT) {
+      GameLog log = readLog(in, true);
+      putEntry(log.digest(), new Entry(log, offset, length + FRAME_SIZE));
+    } else if (type == TYPE_DELETE) {
+      removeEntry(readDigest(in));
+    } else if (type == TYPE_SCAN_TIME) {
+      mLastScanTimeMs = in.readLong();
+    } else {
+      throw new IOException("unknown record type " + type);
+    }
+  }
+
+  // A log is written as
+  //
+  //   long     digest, high 64 bits
+  //   long     digest, low 64 bits
+  //   varlong  start time
+  //   UTF      path, "" if the log is in memory
+  //   varint   number of attributes, then UTF name and UTF value of each
+  //   varint   number of moves
+  //
+  // which is the header, then
+  //
+  //   varint   each move
+  //   byte     1 if the times follow, else 0
+  //   varlong  start time and play time of each move
+  //
+  // The varlongs are zigzag-encoded, as the times may be -1. The digest is stored so that
+  // the index can be built without the moves.
+  static void writeLog(DataOutput out, GameLog log) throws IOException {
+    writeDigest(out, log.digest());
+    writeVarLong(out, log.getDate());
+    out.writeUTF(log.path() != null ? log.path().getPath() : "");
+    writeVarInt(out, log.attrs().size());
+    for (Map.Entry<String, String> e : log.attrs()) {
+      out.writeUTF(e.getKey());
+      out.writeUTF(e.getValue());
+    }
+    final MoveList moves = log.moves();
+    writeVarInt(out, moves.size());
+    for (int i = 0; i < moves.size(); ++i) writeVarInt(out, moves.move(i));
+    out.writeByte(moves.hasTimes() ? 1 : 0);
+    if (moves.hasTimes()) {
+      for (int i = 0; i < moves.size(); ++i) {
+        writeVarLong(out, moves.startTime(i));
+        writeVarLong(out, moves.endTime(i) - moves.startTime(i));
+      }
+    }
+  }
+
+  // Read a log written by writeLog(). If "headerOnly", the moves aren't read.
+  static GameLog readLog(DataInput in, boolean headerOnly) throws IOException {
+    final String digest = readDigest(in);
+    final long startTimeMs = readVarLong(in);
+    final String path = in.readUTF();
+    final int numAttrs = readVarInt(in);
+    TreeMap<String, String> attrs = new TreeMap<String, String>();
+    for (int i = 0; i < numAttrs; ++i) attrs.put(in.readUTF(), in.readUTF());
+    final int numMoves = readVarInt(in);
+    if (numMoves < 0) throw new IOException("invalid number of moves: " + numMoves);
+    MoveList moves = null;
+    if (!headerOnly) {
+      moves = new MoveList();
+      for (int i = 0; i < numMoves; ++i) moves.add(readVarInt(in));
+      if (in.readByte() != 0) {
+        for (int i = 0; i < numMoves; ++i) {
+          final long start = readVarLong(in);
+          moves.setTime(i, start, start + readVarLong(in));
+        }
+      }
+    }
+    return GameLog.fromStore(
+        startTimeMs, attrs, moves, numMoves, path.length() > 0 ? new File(path) : null, digest);
+  }
+
+  // A digest is stored as its high and low 64 bits.
+  private static void writeDigest(DataOutput out, String digest) throws IOException {
+    out.writeLong(LogDigest.high(digest));
+    out.writeLong(LogDigest.low(digest));
+  }
+
+  private static String readDigest(DataInput in) throws IOException {
+    final long high = in.readLong();
+    return LogDigest.toString(high, in.readLong());
+  }
+
+  // Unsigned LEB128: 7 bits per byte, low bits first, the top bit set on all but the last.
+  private static void writeVarInt(DataOutput out, int v) throws IOException {
+    while ((v & ~0x7f) != 0) {
+      out.writeByte((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    out.writeByte(v);
+  }
+
+  private static int readVarInt(DataInput in) throws IOException {
+    int v = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      final int b = in.readByte();
+      v |= (b & 0x7f) << shift;
+      if (b >= 0) return v;
+    }
+    throw new IOException("malformed varint");
+  }
+
+  private static void writeVarLong(DataOutput out, long v) throws IOException {
+    v = (v << 1) ^ (v >> 63);  // zigzag
+    while ((v & ~0x7fL) != 0) {
+      out.writeByte((int)(v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    out.writeByte((int)v);
+  }
+
+  private static long readVarLong(DataInput in) throws IOException {
+    long v = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      final int b = in.readByte();
+      v |= (long)(b & 0x7f) << shift;
+      if (b >= 0) return (v >>> 1) ^ -(v & 1);
+    }
+    throw new IOException("malformed varint");
+  }
+}
@@ -0,0 +1,154 @@
+package mobi.omegacentauri.shogi;
+
+/**
+ * Helper functions for moves packed into a single int. The packed form is used where
+ * allocating a Play object per move would be too expensive, e.g., by MoveGenerator.
+ *
+ * Layout:
+ *   bits  0-6   destination square, x + y * Board.DIM
+ *   bits  7-13  source square. Zero when dropping a captured piece.
+ *   bits 14-18  the piece after the move, as in Play.piece(), plus PIECE_BIAS
+ *   bit  19     PROMOTE: the piece is promoted by this move
+ *   bit  20     DROP: a captured piece is dropped
+ */
+public final class Move {
+  public static final int NONE = 0;
+
+  public static final int PROMOTE = 1 << 19;
+  public static final int DROP = 1 << 20;
+
+  private static final int SQUARE_MASK = 0x7f;
+  private static final int FROM_SHIFT = 7;
+  private static final int PIECE_SHIFT = 14;
+  private static final int PIECE_MASK = 0x1f;
+  private static final int PIECE_BIAS = 16;
+
+  private Move() { }
+
+  /**
+   * @param piece The piece after the move. Positive for Player.BLACK, negative for Player.WHITE.
+   * @param from The source square, or -1 when dropping a captured piece.
+   * @param to The destination square.
+   */
+  public static final int encode(int piece, int from, int to, boolean promote) {
+    int m = to | ((piece + PIECE_BIAS) << PIECE_SHIFT);
+    if (from < 0) {
+      m |= DROP;
+    } else {
+      m |= from << FROM_SHIFT;
+    }
+    if (promote) m |= PROMOTE;
+    return m;
+  }
+
+  public static final int to(int move) { return move & SQUARE_MASK; }
+
+  /** The source square, or -1 when dropping a captured piece. */
+  public static final int from(int move) {
+    return (move & DROP) != 0 ? -1 : (move >> FROM_SHIFT) & SQUARE_MASK;
+  }
+
+  public static final int piece(int move) {
+    return ((move >> PIECE_SHIFT) & PIECE_MASK) - PIECE_BIAS;
+  }
+
+  public static final boolean isDrop(int move) { return (move & DROP) != 0; }
+  public static final boolean isPromotion(int move) { return (move & PROMOTE) != 0; }
+
+  public static final Player player(int move) {
+    return piece(move) < 0 ? Player.WHITE : Player.BLACK;
+  }
+
+  /**
+   * Return "move" without the PROMOTE bit. The piece after the move already tells
+   * the result of the move, so two moves with the same identity have the same effect
+   * on the board.
+   */
+  public static final int identity(int move) { return move & ~PROMOTE; }
+
+  public static final int fromPlay(Play p) { return p.move(); }
+
+  public static final Play toPlay(int move) { return new Play(move); }
+
+  public static final String toString(int move) {
+    char buf[] = new char[CSA_LENGTH + 1];
+    toCsa(move, buf, 0);
+    if (!isPromotion(move)) return new String(buf, 0, CSA_LENGTH);
+    buf[CSA_LENGTH] = '+';
+    return new String(buf);
+  }
+
+  //
+  // CSA format. A move is written as the source square, the destination square and the
+  // piece after the move, e.g., "7776FU", or "0055KA" for a drop. A square is written as
+  // the file (counted from the right) and the rank (counted from the top), each in [1, 9].
+  //
+
+  /** The length of a move in CSA format. */
+  public static final int CSA_LENGTH = 6;
+
+  /**
+   * Write "move" in CSA format to buf[off, off + CSA_LENGTH), so that a caller converting
+   * many moves can reuse one buffer. Returns CSA_LENGTH.
+   */
+  public static final int toCsa(int move, char buf[], int off) {
+    final int from = from(move);
+    final int to = to(move);
+    buf[off] = (from < 0 ? '0' : CSA_FILES[from]);
+    buf[off + 1] = (from < 0 ? '0' : CSA_RANKS[from]);
+    buf[off + 2] = CSA_FILES[to];
+    buf[off + 3] = CSA_RANKS[to];
+    final String name = Piece.csaNames[Math.abs(piece(move))];
+    buf[off + 4] = name.charAt(0);
+    buf[off + 5] = name.charAt(1);
+    return CSA_LENGTH;
+  }
+
+  /** Same as toCsa(int, char[], int), but writes ASCII bytes. */
+  public static final int toCsa(int move, byte buf[], int off) {
+    final int from = from(move);
+    final int to = to(move);
+    buf[off] = (byte)(from < 0 ? '0' : CSA_FILES[from]);
+    buf[off + 1] = (byte)(from < 0 ? '0' : CSA_RANKS[from]);
+    buf[off + 2] = (byte)CSA_FILES[to];
+    buf[off + 3] = (byte)CSA_RANKS[to];
+    final String name = Piece.csaNames[Math.abs(piece(move))];
+    buf[off + 4] = (byte)name.charAt(0);
+    buf[off + 5] = (byte)name.charAt(1);
+    return CSA_LENGTH;
+  }
+
+  /**
+   * Parse the CSA move at s[off, off + CSA_LENGTH), made by "player". Returns NONE if it
+   * isn't a well-formed move. The legality of the move is not checked.
+   */
+  public static final int fromCsa(CharSequence s, int off, Player player) {
+    if (off < 0 || off + CSA_LENGTH > s.length()) return NONE;
+    final int to = csaSquare(s.charAt(off + 2), s.charAt(off + 3));
+    int from = -1;  // dropping a captured piece
+    if (s.charAt(off) != '0' || s.charAt(off + 1) != '0') {
+      from = csaSquare(s.charAt(off), s.charAt(off + 1));
+      if (from < 0) return NONE;
+    }
+    int piece = Piece.fromCsaName(s, off + 4);
+    if (to < 0 || piece == Piece.EMPTY) return NONE;
+    if (player == Player.WHITE) piece = -piece;
+    return encode(piece, from, to, false);
+  }
+
+  // Return the square for CSA file and rank digits, or -1.
+  private static final int csaSquare(char file, char rank) {
+    if (file < '1' || file > '9' || rank < '1' || rank > '9') return -1;
+    return ('9' - file) + (rank - '1') * Board.DIM;
+  }
+
+  // The CSA file and rank digit of each square.
+  private static final char CSA_FILES[] = new char[Board.DIM * Board.DIM];
+  private static final char CSA_RANKS[] = new char[Board.DIM * Board.DIM];
+  static {
+    for (int sq = 0; sq < Board.DIM * Board.DIM; ++sq) {
+      CSA_FILES[sq] = (char)('9' - sq % Board.DIM);
+      CSA_RANKS[sq] = (char)('1' + sq / Board.DIM);
+    }
+  }
+}
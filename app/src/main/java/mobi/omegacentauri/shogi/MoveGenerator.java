@@ -0,0 +1,239 @@
+package mobi.omegacentauri.shogi;
+
+/**
+ * Legal move generator. Moves are packed ints; see Move.
+ *
+ * Implements all the rules that restrict the moves of a player:
+ *  - a move must not leave the player's own king in check,
+ *  - a piece must promote if it couldn't move any further otherwise (FU and KYO on
+ *    the last rank, KEI on the last two ranks), and such a piece cannot be dropped there,
+ *  - a FU cannot be dropped on a file that already has an unpromoted FU of the same player (nifu),
+ *  - a FU drop must not checkmate the opponent (uchifuzume).
+ *
+ * Repetition (sennichite) is a property of the game history, not of the position, and
+ * is not handled here.
+ */
+public final class MoveGenerator {
+  // Upper bound of the number of legal moves in any position. The known maximum is 593.
+  public static final int MAX_MOVES = 600;
+
+  private static final int DIM = Board.DIM;
+
+  private MoveGenerator() { }
+
+  /**
+   * Store the legal moves of the player to move (Board.nextPlayer()) in "out[0..n)",
+   * where n is the return value. "out" must have room for MAX_MOVES entries.
+   */
+  public static final int generate(Board board, int[] out) {
+    return generate(board, board.nextPlayer(), out);
+  }
+
+  /**
+   * Store the legal moves of player "p" in "out[0..n)", where n is the return value.
+   * "out" must have room for MAX_MOVES entries. The board is modified during the call,
+   * but restored before returning.
+   */
+  public static final int generate(Board board, Player p, int[] out) {
+    final int numPseudoLegal = generatePseudoLegal(board, p, out);
+    int n = 0;
+    for (int i = 0; i < numPseudoLegal; ++i) {
+      if (isSafe(board, out[i])) out[n++] = out[i];
+    }
+    return n;
+  }
+
+  /**
+   * Return true if "move" is legal for the owner of Move.piece(move). The move need
+   * not be generated by this class; e.g., Move.fromPlay() of a human play is fine.
+   */
+  public static final boolean isLegal(Board board, int move) {
+    final int piece = Move.piece(move);
+    final Player p = Move.player(move);
+    final int to = Move.to(move);
+    if (Board.player(board.pieceAt(to)) == p) return false;
+    if (Board.type(board.pieceAt(to)) == Piece.OU) return false;
+
+    if (Move.isDrop(move)) {
+      if (board.pieceAt(to) != Piece.EMPTY) return false;
+      final int type = Board.type(piece);
+      if (type < Piece.FU || type > Piece.HI) return false;
+      if (board.numCaptured(p, type) == 0) return false;
+      if (!canDrop(piece, to / DIM)) return false;
+      if (type == Piece.FU && hasFuOnFile(board, piece, to % DIM)) return false;
+    } else {
+      final int from = Move.from(move);
+      final int oldPiece = board.pieceAt(from);
+      if (Board.player(oldPiece) != p) return false;
+      if (oldPiece != piece) {
+        if (!canPromote(oldPiece, from, to) || Board.promote(oldPiece) != piece) return false;
+      } else if (mustPromote(piece, to / DIM)) {
+        return false;
+      }
+      final SquareSet dests = new SquareSet();
+      board.getMoveDestinations(from % DIM, from / DIM, dests);
+      if (!dests.contains(to)) return false;
+    }
+    return isSafe(board, move);
+  }
+
+  /**
+   * Store in "out" the squares that the piece at <fromX, fromY> can legally move to,
+   * with or without promotion. Unlike Board.getMoveDestinations(), this excludes the
+   * moves that leave the king in check and the moves that strand a non-promoting piece.
+   */
+  public static final void getLegalDestinations(Board board, int fromX, int fromY, SquareSet out) {
+    board.getMoveDestinations(fromX, fromY, out);
+    final int from = fromX + fromY * DIM;
+    final int piece = board.pieceAt(from);
+    for (SquareSet s = new SquareSet(out); !s.isEmpty(); ) {
+      final int to = s.pop();
+      final boolean promote = mustPromote(piece, to / DIM);
+      if (Board.type(board.pieceAt(to)) == Piece.OU || (promote && !canPromote(piece, from, to))) {
+        out.remove(to);
+        continue;
+      }
+      if (!isSafe(board, Move.encode(promote ? Board.promote(piece) : piece, from, to, promote))) {
+        out.remove(to);
+      }
+    }
+  }
+
+  /** Return true if the king of player "p" is attacked. Same as Board.isInCheck(). */
+  public static final boolean isInCheck(Board board, Player p) {
+    return board.isInCheck(p);
+  }
+
+  /** Return true if player "p" is in check and has no legal move. */
+  public static final boolean isCheckmated(Board board, Player p) {
+    return isInCheck(board, p) && generate(board, p, new int[MAX_MOVES]) == 0;
+  }
+
+  /**
+   * Return true if a piece moving from "from" to "to" may promote. "piece" is the piece
+   * before the move.
+   */
+  public static final boolean canPromote(int piece, int from, int to) {
+    final int type = Board.type(piece);
+    if (type == Piece.KIN || type == Piece.OU || Board.isPromoted(piece)) return false;
+    final Player p = Board.player(piece);
+    return inPromotionZone(p, from / DIM) || inPromotionZone(p, to / DIM);
+  }
+
+  /**
+   * Return true if "piece" (unpromoted) could never move again once it reaches row "y",
+   * so that it must promote.
+   */
+  public static final boolean mustPromote(int piece, int y) {
+    final int type = Board.type(piece);
+    if (type != Piece.FU && type != Piece.KYO && type != Piece.KEI) return false;
+    final int rank = (piece > 0 ? y : DIM - 1 - y);  // 0 is the last rank for the mover
+    return rank == 0 || (type == Piece.KEI && rank == 1);
+  }
+
+  private static final boolean inPromotionZone(Player p, int y) {
+    return p == Player.BLACK ? y <= 2 : y >= DIM - 3;
+  }
+
+  private static final boolean canDrop(int piece, int y) {
+    return !mustPromote(piece, y);
+  }
+
+  private static final boolean hasFuOnFile(Board board, int fu, int x) {
+    for (int y = 0; y < DIM; ++y) {
+      if (board.pieceAt(x + y * DIM) == fu) return true;
+    }
+    return false;
+  }
+
+  // Store the moves that obey all the rules except the ones about checks (see isSafe)
+  // in "out", and return the number of moves.
+  private static final int generatePseudoLegal(Board board, Player p, int[] out) {
+    int n = 0;
+    final int[] dests = new int[DIM * DIM];
+    final SquareSet pieces = new SquareSet();
+    board.getOccupied(p, pieces);
+    for (int from = pieces.pop(); from >= 0; from = pieces.pop()) {
+      final int piece = board.pieceAt(from);
+      final int numDests = board.getMoveDestinations(from % DIM, from / DIM, dests);
+      for (int i = 0; i < numDests; ++i) {
+        final int to = dests[i];
+        if (Board.type(board.pieceAt(to)) == Piece.OU) continue;
+        if (canPromote(piece, from, to)) {
+          out[n++] = Move.encode(Board.promote(piece), from, to, true);
+        }
+        if (!mustPromote(piece, to / DIM)) {
+          out[n++] = Move.encode(piece, from, to, false);
+        }
+      }
+    }
+
+    final int sign = (p == Player.BLACK ? 1 : -1);
+    boolean fuFiles[] = null;
+    for (int type = Piece.FU; type <= Piece.HI; ++type) {
+      if (board.numCaptured(p, type) == 0) continue;
+      final int piece = type * sign;
+      if (type == Piece.FU) {
+        fuFiles = new boolean[DIM];
+        for (int x = 0; x < DIM; ++x) fuFiles[x] = hasFuOnFile(board, piece, x);
+      }
+      for (int to = 0; to < DIM * DIM; ++to) {
+        if (board.pieceAt(to) != Piece.EMPTY) continue;
+        if (!canDrop(piece, to / DIM)) continue;
+        if (type == Piece.FU && fuFiles[to % DIM]) continue;
+        out[n++] = Move.encode(piece, -1, to, false);
+      }
+    }
+    return n;
+  }
+
+  // Return true if the pseudo-legal "move" doesn't leave the mover's king in check,
+  // and isn't a checkmating FU drop.
+  private static final boolean isSafe(Board board, int move) {
+    final Player p = Move.player(move);
+    final boolean fuDrop = Move.isDrop(move) && Board.type(Move.piece(move)) == Piece.FU;
+    if (!fuDrop && !board.isInCheck(p)) {
+      // Answer from the attack maps without trying the move. A king that isn't in check
+      // can't be on the line of a sliding attacker, so it may move to any unattacked
+      // square. Another piece can only expose the king if it is pinned.
+      final int from = Move.from(move);
+      if (from < 0) return true;
+      final int to = Move.to(move);
+      if (from == board.kingSquare(p)) return !board.isAttacked(to % DIM, to / DIM, p.opponent());
+      if (!board.isPinned(from)) return true;
+    }
+    board.applyMove(move);
+    boolean safe = !board.isInCheck(p);
+    if (safe && fuDrop) safe = !isUchifuzume(board, p.opponent(), Move.to(move));
+    board.undoPly();
+    return safe;
+  }
+
+  // Return true if the FU just dropped at "fu" checkmates player "p". Only the king
+  // moves and the captures of the FU can answer a check by an adjacent FU.
+  private static final boolean isUchifuzume(Board board, Player p, int fu) {
+    final int king = board.kingSquare(p);
+    if (king < 0 || king != fu + (p == Player.WHITE ? -DIM : DIM)) return false;
+
+    final int kingPiece = board.pieceAt(king);
+    final SquareSet s = new SquareSet();
+    board.getMoveDestinations(king % DIM, king / DIM, s);
+    for (int to = s.pop(); to >= 0; to = s.pop()) {
+      board.applyMove(Move.encode(kingPiece, king, to, false));
+      final boolean escaped = !board.isInCheck(p);
+      board.undoPly();
+      if (escaped) return false;
+    }
+
+    board.getAttackers(fu % DIM, fu / DIM, p, s);
+    s.remove(king);
+    for (int from = s.pop(); from >= 0; from = s.pop()) {
+      // Promotion doesn't change whether the king is left in check.
+      board.applyMove(Move.encode(board.pieceAt(from), from, fu, false));
+      final boolean escaped = !board.isInCheck(p);
+      board.undoPly();
+      if (escaped) return false;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,192 @@
+package mobi.omegacentauri.shogi;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A growable list of moves packed into ints (see Move), with optional start and end
+ * times for each move. This is how GameLog stores its plays: four bytes per move, plus
+ * sixteen when the log has timings, instead of one Play object per move.
+ */
+@SuppressWarnings("serial")
+public final class MoveList implements Serializable {
+  private static final int INITIAL_CAPACITY = 64;
+
+  // mMoves[0, mSize) are valid.
+  private transient int mMoves[];
+  private transient int mSize;
+
+  // <start time, end time> of each move, in milliseconds, at mTimes[2 * i] and
+  // mTimes[2 * i + 1]. -1 if unknown. null if no move has a time.
+  private transient long mTimes[];
+
+  // The digest of the moves [0, mNumDigested), see digest(). null if it is to be
+  // recomputed from the first move.
+  private transient LogDigest mDigest;
+  private transient int mNumDigested;
+
+  public MoveList() {
+    mMoves = new int[INITIAL_CAPACITY];
+  }
+
+  public MoveList(MoveList src) {
+    mMoves = Arrays.copyOf(src.mMoves, Math.max(src.mSize, INITIAL_CAPACITY));
+    mSize = src.mSize;
+    if (src.mTimes != null) mTimes = Arrays.copyOf(src.mTimes, mMoves.length * 2);
+    if (src.mDigest != null) {
+      mDigest = new LogDigest(src.mDigest);
+      mNumDigested = src.mNumDigested;
+    }
+  }
+
+  /** Create a list of the moves and the times of "plays". */
+  public static final MoveList fromPlays(List<Play> plays) {
+    MoveList l = new MoveList();
+    for (int i = 0; i < plays.size(); ++i) l.add(plays.get(i));
+    return l;
+  }
+
+  public final int size() { return mSize; }
+  public final boolean isEmpty() { return mSize == 0; }
+
+  /** The i'th move, packed as in Move. */
+  public final int move(int i) {
+    checkIndex(i);
+    return mMoves[i];
+  }
+
+  public final Player player(int i) { return Move.player(move(i)); }
+
+  public final boolean hasTimes() { return mTimes != null; }
+
+  public final long startTime(int i) {
+    checkIndex(i);
+    return mTimes != null ? mTimes[i * 2] : -1;
+  }
+
+  public final long endTime(int i) {
+    checkIndex(i);
+    return mTimes != null ? mTimes[i * 2 + 1] : -1;
+  }
+
+  public final long playTime(int i) { return endTime(i) - startTime(i); }
+
+  /** Return a new Play object for the i'th move, with its times. */
+  public final Play play(int i) {
+    Play p = new Play(move(i));
+    if (mTimes != null) p.setTime(mTimes[i * 2], mTimes[i * 2 + 1]);
+    return p;
+  }
+
+  /** Return a new list of Play objects for all the moves. */
+  public final ArrayList<Play> toPlays() {
+    ArrayList<Play> plays = new ArrayList<Play>(mSize);
+    for (int i = 0; i < mSize; ++i) plays.add(play(i));
+    return plays;
+  }
+
+  /**
+   * Return a new LogDigest fed with the moves, as GameLog.digest() identifies them: the
+   * identity of each move (see Move.identity()), and the start time and the play time,
+   * rounded to the second, of those with a start time. The list keeps the digest of the
+   * moves fed so far, so only the moves added since the last call are hashed.
+   */
+  public final LogDigest digest() {
+    if (mDigest == null) {
+      mDigest = new LogDigest();
+      mNumDigested = 0;
+    }
+    for (; mNumDigested < mSize; ++mNumDigested) {
+      final int i = mNumDigested;
+      final long start = mTimes != null ? mTimes[i * 2] : -1;
+      if (start < 0) {
+        mDigest.update(Move.identity(mMoves[i]) & 0xffffffffL);
+      } else {
+        mDigest.update((Move.identity(mMoves[i]) & 0xffffffffL) | (1L << 32));
+        final long startSec = (start + 500) / 1000;
+        final long playSec = (mTimes[i * 2 + 1] - start + 500) / 1000;
+        mDigest.update((startSec << 32) | (playSec & 0xffffffffL));
+      }
+    }
+    return new LogDigest(mDigest);
+  }
+
+  public final void add(int move) {
+    if (mSize == mMoves.length) grow();
+    mMoves[mSize] = move;
+    if (mTimes != null) {
+      mTimes[mSize * 2] = -1;
+      mTimes[mSize * 2 + 1] = -1;
+    }
+    ++mSize;
+  }
+
+  public final void add(int move, long startTimeMs, long endTimeMs) {
+    add(move);
+    if (startTimeMs >= 0 || endTimeMs >= 0) setTime(mSize - 1, startTimeMs, endTimeMs);
+  }
+
+  /** Append the move and the times of "p". */
+  public final void add(Play p) {
+    add(p.move(), p.startTime(), p.endTime());
+  }
+
+  public final void setTime(int i, long startTimeMs, long endTimeMs) {
+    checkIndex(i);
+    if (mTimes == null) {
+      mTimes = new long[mMoves.length * 2];
+      Arrays.fill(mTimes, -1);
+    }
+    mTimes[i * 2] = startTimeMs;
+    mTimes[i * 2 + 1] = endTimeMs;
+    if (i < mNumDigested) mDigest = null;
+  }
+
+  /** Remove the moves at [n, size()). */
+  public final void truncate(int n) {
+    if (n < 0 || n > mSize) throw new IndexOutOfBoundsException("truncate " + n + ", size " + mSize);
+    mSize = n;
+    if (n < mNumDigested) mDigest = null;
+  }
+
+  public final void clear() { truncate(0); }
+
+  private final void grow() {
+    mMoves = Arrays.copyOf(mMoves, mMoves.length * 2);
+    if (mTimes != null) mTimes = Arrays.copyOf(mTimes, mMoves.length * 2);
+  }
+
+  private final void checkIndex(int i) {
+    if (i < 0 || i >= mSize) throw new IndexOutOfBoundsException("index " + i + ", size " + mSize);
+  }
+
+  // Serialized form: the number of moves, the moves, a flag that tells whether the times
+  // follow, and the times.
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    out.writeInt(mSize);
+    for (int i = 0; i < mSize; ++i) out.writeInt(mMoves[i]);
+    out.writeBoolean(mTimes != null);
+    if (mTimes != null) {
+      for (int i = 0; i < mSize * 2; ++i) out.writeLong(mTimes[i]);
+    }
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    final int size = in.readInt();
+    if (size < 0) throw new IOException("Invalid move list size: " + size);
+    mMoves = new int[Math.max(size, INITIAL_CAPACITY)];
+    for (int i = 0; i < size; ++i) mMoves[i] = in.readInt();
+    mSize = size;
+    if (in.readBoolean()) {
+      mTimes = new long[mMoves.length * 2];
+      for (int i = 0; i < size * 2; ++i) mTimes[i] = in.readLong();
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package mobi.omegacentauri.shogi;
+
+/**
+ * Converts the plays of a game to traditional notation, one after another. The renderer
+ * keeps its own board, so each play costs one notation lookup and one applyMove() no
+ * matter how long the game is, and undo() takes back the last play in constant time.
+ *
+ * Usage:
+ *   NotationRenderer r = new NotationRenderer(initialBoard);
+ *   for (...) { Play.TraditionalNotation n = r.next(move); ... }
+ */
+public final class NotationRenderer {
+  // The board after the plays in mMoves.
+  private final Board mBoard;
+  private final MoveList mMoves;
+
+  // Scratch space for Play.toTraditionalNotation.
+  private final SquareSet mOthers = new SquareSet();
+  private final SquareSet mTmp = new SquareSet();
+
+  /** Start rendering from "initialBoard". The board is copied, not modified. */
+  public NotationRenderer(Board initialBoard) {
+    mBoard = new Board(initialBoard);
+    mMoves = new MoveList();
+  }
+
+  /** Render a whole game: the plays in "moves", made from "initialBoard". */
+  public static final Play.TraditionalNotation[] renderAll(Board initialBoard, MoveList moves) {
+    NotationRenderer r = new NotationRenderer(initialBoard);
+    Play.TraditionalNotation[] n = new Play.TraditionalNotation[moves.size()];
+    for (int i = 0; i < n.length; ++i) n[i] = r.next(moves.move(i));
+    return n;
+  }
+
+  /** The number of plays rendered so far, minus the ones undone. */
+  public final int numPlays() { return mMoves.size(); }
+
+  /** The i'th play rendered, packed as in Move. */
+  public final int move(int i) { return mMoves.move(i); }
+
+  /** The board after the plays rendered so far. The caller must not modify it. */
+  public final Board board() { return mBoard; }
+
+  /** Render "move" (packed as in Move), then make it on the board. */
+  public final Play.TraditionalNotation next(int move) {
+    final int n = mMoves.size();
+    final int prevTo = (n > 0 ? Move.to(mMoves.move(n - 1)) : -1);
+    Play.TraditionalNotation t = Play.toTraditionalNotation(mBoard, move, prevTo, mOthers, mTmp);
+    mBoard.applyMove(move);
+    mMoves.add(move);
+    return t;
+  }
+
+  /** Take back the last play rendered. Returns false if there is none. */
+  public final boolean undo() {
+    final int n = mMoves.size();
+    if (n == 0) return false;
+    mBoard.undoPly();
+    mMoves.truncate(n - 1);
+    return true;
+  }
+}
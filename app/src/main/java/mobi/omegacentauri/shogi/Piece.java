@@ -31,6 +31,19 @@ public class Piece {
           "TO", "NY", "NK", "NG", null, "UM", "RY"
   };
   
+  // SFEN (USI) letter of each unpromoted piece, for Player.BLACK. Player.WHITE uses
+  // the lower case, and promoted pieces are prefixed by '+'.
+  public static final char sfenLetters[] = {
+    0, 'P', 'L', 'N', 'S', 'G', 'B', 'R', 'K' };
+
+  /** Return the unpromoted piece type for an upper-case SFEN letter, or EMPTY. */
+  public static int fromSfenLetter(char c) {
+    for (int i = FU; i <= OU; ++i) {
+      if (sfenLetters[i] == c) return i;
+    }
+    return EMPTY;
+  }
+
   public static final String japaneseNames[] = {
     null, "歩", "香","桂","銀","金","角","飛", "王",
         "と", "成香", "成桂", "成銀", null, "馬", "龍" };
@@ -41,12 +54,34 @@ public class Piece {
     alternateJapaneseNames.put("竜", "龍");
   }
   
-  public static int fromCsaName(String s) {
+  // Piece type of each two-letter CSA name, indexed by csaNameIndex(). EMPTY for the
+  // letter pairs that don't name a piece.
+  private static final byte csaNameTable[] = new byte[26 * 26];
+  static {
     for (int i = 0; i < csaNames.length; ++i) {
       String n = csaNames[i];
-      if (n != null && n.equals(s)) return i;
+      if (n != null) csaNameTable[csaNameIndex(n.charAt(0), n.charAt(1))] = (byte)i;
     }
-    throw new AssertionError("Illegal piece name: " + s);
+  }
+
+  private static int csaNameIndex(int c0, int c1) {
+    c0 -= 'A';
+    c1 -= 'A';
+    if (c0 < 0 || c0 >= 26 || c1 < 0 || c1 >= 26) return -1;
+    return c0 * 26 + c1;
+  }
+
+  /** Return the piece type of the CSA name at s[off, off + 2), or EMPTY if there is none. */
+  public static int fromCsaName(CharSequence s, int off) {
+    if (off < 0 || off + 2 > s.length()) return EMPTY;
+    final int i = csaNameIndex(s.charAt(off), s.charAt(off + 1));
+    return i < 0 ? EMPTY : csaNameTable[i];
+  }
+
+  public static int fromCsaName(String s) {
+    final int p = (s.length() == 2 ? fromCsaName(s, 0) : EMPTY);
+    if (p == EMPTY) throw new AssertionError("Illegal piece name: " + s);
+    return p;
   }
   
 }
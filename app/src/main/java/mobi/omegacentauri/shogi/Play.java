@@ -2,17 +2,19 @@
 
 package mobi.omegacentauri.shogi;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
- * A class representing a single play
+ * A class representing a single play: a move packed as in Move, plus the time it was made.
  */
-@SuppressWarnings("serial")
 public class Play implements Serializable {
+  // Kept from the format in which the move was stored in five ints (mPiece, mFromX, mFromY,
+  // mToX, mToY), so that the logs saved in that format can still be read. See readObject().
+  private static final long serialVersionUID = 3512069185727334104L;
+
   // Japanese move display support
   public static final String japaneseNumbers[] = {
     null, "一", "二", "三", "四", "五", "六", "七", "八", "九",    
@@ -21,33 +23,39 @@ public class Play implements Serializable {
     null, "１", "２", "３", "４", "５", "６", "７", "８", "９",    
   };
   
-  // The piece to move. The value is positive if player==BLACK, negative if player==WHITE.
-  // The absolute value of mPiece is one of the constants define in Piece (e.g., Piece.FU).
-  private final int mPiece;
-
-  // The source and destination coordinates. When moving a piece on the board, each value is in range
-  // [0, Board.DIM). When dropping a captured piece on the board, fromX = fromY = -1.
-  private final int mFromX, mFromY, mToX, mToY;
+  // The move, packed as in Move. Move.piece() is the piece after the move: positive if
+  // player==BLACK, negative if player==WHITE. The squares are x + y * Board.DIM.
+  private int mMove;
 
   private long mStartTimeInMs; // player's start time
   private long mEndTimeInMs;  // player's end time
 
+  /**
+   * @param p The piece after the move. Positive for Player.BLACK, negative for Player.WHITE.
+   * @param fx, fy The source coordinates, each in range [0, Board.DIM). Both are -1 when
+   *   dropping a captured piece.
+   * @param tx, ty The destination coordinates.
+   */
   public Play(int p, int fx, int fy, int tx, int ty) {
-    mPiece = p;
-    mFromX = fx;
-    mFromY = fy;
-    mToX = tx;
-    mToY = ty;
+    this(Move.encode(p, fx < 0 ? -1 : fx + fy * Board.DIM, tx + ty * Board.DIM, false));
+  }
+
+  /** Create a play for "move", packed as in Move. */
+  public Play(int move) {
+    mMove = move;
     mStartTimeInMs = -1;
     mEndTimeInMs = -1;
   }
 
-  public final boolean isDroppingPiece() { return mFromX < 0; }
-  public final int piece() { return mPiece; }
-  public final int fromX() { return mFromX; }
-  public final int fromY() { return mFromY; }  
-  public final int toX() { return mToX; }
-  public final int toY() { return mToY; }
+  /** The move packed as in Move. */
+  public final int move() { return mMove; }
+
+  public final boolean isDroppingPiece() { return Move.isDrop(mMove); }
+  public final int piece() { return Move.piece(mMove); }
+  public final int fromX() { return isDroppingPiece() ? -1 : Move.from(mMove) % Board.DIM; }
+  public final int fromY() { return isDroppingPiece() ? -1 : Move.from(mMove) / Board.DIM; }
+  public final int toX() { return Move.to(mMove) % Board.DIM; }
+  public final int toY() { return Move.to(mMove) / Board.DIM; }
   public final long startTime() { return mStartTimeInMs; }
   public final long endTime() { return mEndTimeInMs; }
   public final long playTime() { return mEndTimeInMs-mStartTimeInMs; }
@@ -58,23 +66,19 @@ public class Play implements Serializable {
   }
 
   public Player player() {
-    return mPiece < 0 ? Player.WHITE : Player.BLACK;
+    return Move.player(mMove);
   }
 
   @Override public boolean equals(Object o) {
     if (o instanceof Play) {
-      Play m = (Play)o;
-      return (
-          m.mPiece == mPiece &&
-          m.mFromX == mFromX && m.mFromY == mFromY &&
-          m.mToX == mToX && m.mToY == mToY);
+      return Move.identity(((Play)o).mMove) == Move.identity(mMove);
     } else {
       return false;
     }
   }
   
   @Override public int hashCode() {
-    return mPiece + mFromX + mFromY + mToX;
+    return Move.identity(mMove);
   }
   
   @Override public String toString() {
@@ -88,160 +92,224 @@ public class Play implements Serializable {
       int playMin = play % 60;
       play /= 60;
       int playHr = play;
-      return String.format("%d%d%d%d:%d (%2d:%02d/%2d:%02d:%02d)", mFromX, mFromY, mToX, mToY, mPiece, startMin, startSec, playHr, playMin, playSec);
+      return String.format("%d%d%d%d:%d (%2d:%02d/%2d:%02d:%02d)", fromX(), fromY(), toX(), toY(), piece(), startMin, startSec, playHr, playMin, playSec);
     }
     else {
-      return String.format("%d%d%d%d:%d", mFromX, mFromY, mToX, mToY, mPiece);
+      return String.format("%d%d%d%d:%d", fromX(), fromY(), toX(), toY(), piece());
     }
   }
-  
-  // Return the CSA-format string for this move. 
-  public final String toCsaString() {
-    // This program uses defines the upper left corner of the board to be <0,0>, whereas CSA defines
-    // the upper right corner to be <1, 1>. 
-    // Translate the coordinate accordingly.
-    int cFromX = 0;
-    int cFromY = 0;
-    if (mFromX >= 0) {
-      // Moving a piece on board
-      cFromX = 9 - mFromX;
-      cFromY = mFromY + 1;
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    ObjectInputStream.GetField f = in.readFields();
+    ObjectStreamClass c = f.getObjectStreamClass();
+    if (c.getField("mMove") != null) {
+      mMove = f.get("mMove", 0);
     } else {
-      // Dropping a captured piece
+      final int fromX = f.get("mFromX", -1);
+      final int fromY = f.get("mFromY", -1);
+      final int to = f.get("mToX", 0) + f.get("mToY", 0) * Board.DIM;
+      mMove = Move.encode(f.get("mPiece", 0), fromX < 0 ? -1 : fromX + fromY * Board.DIM, to, false);
     }
-    int cToX = 9 - mToX;
-    int cToY = mToY + 1;
-    int p = mPiece >= 0 ? mPiece : -mPiece;
-    return String.format("%d%d%d%d%s", 
-        cFromX, cFromY, cToX, cToY,
-        Piece.csaNames[p]);
+    mStartTimeInMs = f.get("mStartTimeInMs", -1L);
+    mEndTimeInMs = f.get("mEndTimeInMs", -1L);
   }
   
-  public static Play fromCsaString(String csa, Player player) {
-    int tmp = csa.charAt(0) - '0';
-    int fromX, fromY;
-    if (tmp > 0) {
-      // Moving a piece on board
-      fromX = 9 - tmp;
-      fromY = csa.charAt(1) - '0' - 1;
-    } else {
-      // Dropping a captured piece
-      fromX = fromY = -1;
-    }
-    int toX = 9 - (csa.charAt(2) - '0');
-    int toY = csa.charAt(3) - '0' - 1;
-    
-    int piece = Piece.fromCsaName(csa.substring(4));
-    if (player == Player.WHITE) piece = -piece;
-    
-    return new Play(
-        piece, fromX, fromY, toX, toY);
+  // Return the CSA-format string for this move. See Move.toCsa().
+  public final String toCsaString() {
+    char buf[] = new char[Move.CSA_LENGTH];
+    Move.toCsa(mMove, buf, 0);
+    return new String(buf);
   }
   
+  public static Play fromCsaString(String csa, Player player) {
+    final int move = (csa.length() == Move.CSA_LENGTH ? Move.fromCsa(csa, 0, player) : Move.NONE);
+    if (move == Move.NONE) throw new AssertionError("Illegal CSA move: " + csa);
+    return new Play(move);
+  }
   
-  //private static final Pattern KIF_MOVE_PATTERN = Pattern.compile("([1-9１-９])([一二三四五六七八九])(.+)\\((.)(.)\\)");
-  private static final Pattern KIF_MOVE_PATTERN = Pattern.compile("([1-9１-９])(.)(.+)\\((.)(.)\\)\\s*");
-  private static final Pattern KIF_MOVE2_PATTERN = Pattern.compile("同[　\\s]*(.+)\\((.)(.)\\)\\s*");
-  private static final Pattern KIF_DROP_PATTERN = Pattern.compile("([1-9１-９])([一二三四五六七八九])(.*)");
-  private static final Pattern KIF_TIME_PATTERN = Pattern.compile("\\s+\\(\\s*([0-9]+):([0-9]+)\\/\\s*([0-9]+):([0-9]+):([0-9]+)\\)");
   
-  // Parse a KIF-format string. It looks like
-  // "８四歩(83)" (move FU at 83 to 84). Returns null if the play is a noop.
+  // Words that end a game instead of a play, e.g., "中断" or "千日手". "投了" is handled by
+  // the caller.
+  private static final String[] KIF_GAME_END_WORDS = {
+    "千日手", "中断", "持将棋", "詰み", "切れ負け", "反則勝ち", "反則負け", "入玉勝ち", "不戦勝", "不戦敗",
+  };
+
+  /**
+   * Parse a KIF-format play. It looks like "８四歩(83)" (move FU at 83 to 84), "同　角成(88)",
+   * "５五角打" or "２二角不成(88)", optionally followed by the time in the form
+   * "( 0:12/00:01:30)" (the time of this play / the total time of the player). Returns null
+   * if the string ends the game (e.g., "千日手").
+   *
+   * The string is scanned once, left to right, without regular expressions.
+   */
   public static final Play fromKifString(Play prevMove, Player player, String kifMove) throws ParseException {
-    Matcher m = KIF_MOVE_PATTERN.matcher(kifMove);
-    try {
-      m = KIF_TIME_PATTERN.matcher(kifMove);
-      if (m.matches()) {
-        try {
+    final String s = kifMove;
+    final int n = s.length();
+    int i = skipKifSpaces(s, 0);
 
+    // Destination: a file and a rank, or "同" for the destination of the previous play.
+    int toX, toY;
+    if (i < n && s.charAt(i) == '同') {
+      if (prevMove == null) throw kifError(kifMove, "no previous play for 同");
+      toX = prevMove.toX();
+      toY = prevMove.toY();
+      i = skipKifSpaces(s, i + 1);
+    } else {
+      final int file = (i < n ? kifDigit(s.charAt(i)) : -1);
+      final int rank = (i + 1 < n ? kifRank(s.charAt(i + 1)) : -1);
+      if (file < 0 || rank < 0) {
+        for (String word : KIF_GAME_END_WORDS) {
+          if (s.startsWith(word, i)) return null;  // TODO(saito) Display the game outcome
         }
-        catch(NumberFormatException e) {
-        }
+        throw kifError(kifMove, "illegal play string");
       }
-      Play p = null;
-      if (m.matches()) {
-        p = new Play(japaneseToPiece(player, m.group(3)),
-            arabicToXCoord(m.group(4)), arabicToYCoord(m.group(5)),
-            arabicToXCoord(m.group(1)), japaneseToYCoord(m.group(2)));
+      toX = 9 - file;
+      toY = rank - 1;
+      i += 2;
+    }
+
+    // Piece: one character, or "成" followed by 香, 桂 or 銀.
+    int type = Piece.EMPTY;
+    if (i + 1 < n && s.charAt(i) == '成') {
+      type = kifPieceType(s.charAt(i + 1));
+      if (type != Piece.KYO && type != Piece.KEI && type != Piece.GIN) {
+        throw kifError(kifMove, "unknown piece");
       }
-      else if (prevMove != null) {
-        m = KIF_MOVE2_PATTERN.matcher(kifMove);
-        if (m.matches()) {
-          p = new Play(japaneseToPiece(player, m.group(1)),
-              arabicToXCoord(m.group(2)), arabicToYCoord(m.group(3)),
-              prevMove.mToX, prevMove.mToY);
-        }
+      type = Board.promote(type);
+      i += 2;
+    } else if (i < n) {
+      type = kifPieceType(s.charAt(i++));
+    }
+    if (type == Piece.EMPTY) throw kifError(kifMove, "unknown piece");
+
+    // Modifiers. "不成" (explicitly not promoting) and the relative position and
+    // movement words ("右", "上", etc.) don't change the play.
+    boolean promote = false;
+    boolean drop = false;
+    for (; i < n; ++i) {
+      final char ch = s.charAt(i);
+      if (ch == '成') {
+        if (promote) throw kifError(kifMove, "duplicate 成");
+        promote = true;
+      } else if (ch == '不' && i + 1 < n && s.charAt(i + 1) == '成') {
+        ++i;
+      } else if (ch == '打') {
+        drop = true;
+      } else if ("右左直上引寄行入".indexOf(ch) < 0) {
+        break;
       }
-      if (p == null) {
-        m = KIF_DROP_PATTERN.matcher(kifMove);
-        if (m.matches()) {
-          p = new Play(japaneseToPiece(player, m.group(3)),
-                  -1, -1, arabicToXCoord(m.group(1)), japaneseToYCoord(m.group(2)));
-        }
+    }
+    if (promote) {
+      if (type == Piece.KIN || type == Piece.OU || Board.isPromoted(type)) {
+        throw kifError(kifMove, "the piece can't promote");
       }
+      type = Board.promote(type);
+    }
+
+    // Source: "(xy)". A play without a source drops a captured piece.
+    int fromX = -1, fromY = -1;
+    if (!drop && i + 3 < n && s.charAt(i) == '(' && s.charAt(i + 3) == ')') {
+      final int file = kifDigit(s.charAt(i + 1));
+      final int rank = kifDigit(s.charAt(i + 2));
+      if (file < 0 || rank < 0) throw kifError(kifMove, "illegal source square");
+      fromX = 9 - file;
+      fromY = rank - 1;
+      i += 4;
+    }
+    if (fromX < 0 && (promote || Board.isPromoted(type) || type == Piece.OU)) {
+      throw kifError(kifMove, "illegal drop");
+    }
+
+    Play p = new Play(player == Player.BLACK ? type : -type, fromX, fromY, toX, toY);
 
-      if (p != null) {
-        m = KIF_TIME_PATTERN.matcher(kifMove);
-        if (m.matches()) {
-          long delta = (Long.parseLong(m.group(1)) * 60 + Long.parseLong(m.group(2))) * 1000l;
-          long start = ((Long.parseLong(m.group(3)) * 60 + Long.parseLong(m.group(4))) * 60 + Long.parseLong(m.group(5))) * 1000l;
-          p.setTime(start, start+delta);
+    // Optional time: "(mm:ss/hh:mm:ss)", with any spaces around the numbers. A malformed
+    // time is ignored.
+    i = skipKifSpaces(s, i);
+    if (i < n && s.charAt(i) == '(') {
+      // Fields 0-1 are the minutes and seconds of this play, 2-4 the total hours, minutes
+      // and seconds.
+      long playSec = 0, totalSec = 0, value = 0;
+      int numFields = 0;
+      int j = i + 1;
+      for (; j < n && numFields < 5; ++j) {
+        final char ch = s.charAt(j);
+        if (ch == ' ') continue;
+        if (ch >= '0' && ch <= '9') {
+          value = value * 10 + (ch - '0');
+          if (j + 1 < n && s.charAt(j + 1) >= '0' && s.charAt(j + 1) <= '9') continue;
+          if (numFields < 2) {
+            playSec = playSec * 60 + value;
+          } else {
+            totalSec = totalSec * 60 + value;
+          }
+          value = 0;
+          ++numFields;
+        } else if (!(ch == ':' && numFields != 2) && !(ch == '/' && numFields == 2)) {
+          break;
         }
-        return p;
       }
-
-      if (kifMove.startsWith("千日手")) {
-        // Ignore
-        // TODO(saito) Display the game outcome
-        return null;
+      j = skipKifSpaces(s, j);
+      if (numFields == 5 && j < n && s.charAt(j) == ')') {
+        p.setTime((totalSec - playSec) * 1000, totalSec * 1000);
       }
-      throw new ParseException("Illegal play string: \"" + kifMove + "\"");
-    } catch (NumberFormatException e) {
-      throw new ParseException("Failed to parse " + kifMove + ": " + e.getMessage()); 
     }
+    return p;
   }
 
-  private static int arabicToXCoord(String s) throws NumberFormatException {
-    char ch = s.charAt(0);
-    final int n = (ch >= '０' ? ch - '０' : ch - '0');
-    return 9 - n;
+  private static final ParseException kifError(String kifMove, String message) {
+    return new ParseException("Failed to parse \"" + kifMove + "\": " + message);
   }
 
-  private static int arabicToYCoord(String s) throws NumberFormatException {
-    char ch = s.charAt(0);
-    final int n = (ch >= '０' ? ch - '０' : ch - '0');
-    return n - 1;
+  private static final int skipKifSpaces(String s, int i) {
+    while (i < s.length() && (s.charAt(i) == ' ' || s.charAt(i) == '　' || s.charAt(i) == '\t')) ++i;
+    return i;
   }
 
-  private static int japaneseToYCoord(String s) throws NumberFormatException {
-    for (int i = 0; i < japaneseNumbers.length; ++i) {
-      if (s.equals(japaneseNumbers[i])) return i - 1;
-    }
-    throw new NumberFormatException(s + ": is not a japanese numeric string");
+  // Return the value of a half- or full-width digit 1-9, or -1.
+  private static final int kifDigit(char ch) {
+    if (ch >= '1' && ch <= '9') return ch - '0';
+    if (ch >= '１' && ch <= '９') return ch - '０';
+    return -1;
   }
 
-  private static int japaneseToPiece(Player player, String s) throws NumberFormatException {
-    final boolean promoted = (s.indexOf("成") >= 0);
-    for (Map.Entry<String, String> e: Piece.alternateJapaneseNames.entrySet()) {
-      if (e.getKey().equals(s)) {
-        s = e.getValue();
-        break;
-      }
+  // Return the value of a kanji rank 一-九, or -1.
+  private static final int kifRank(char ch) {
+    switch (ch) {
+    case '一': return 1;
+    case '二': return 2;
+    case '三': return 3;
+    case '四': return 4;
+    case '五': return 5;
+    case '六': return 6;
+    case '七': return 7;
+    case '八': return 8;
+    case '九': return 9;
+    default: return -1;
     }
-    for (int i = 0; i < Piece.japaneseNames.length; ++i) {
-      final String pieceName = Piece.japaneseNames[i];
-      if (pieceName != null && s.indexOf(pieceName) >= 0) {
-        int piece = i;
-        if (promoted) {
-          if (Board.isPromoted(piece)) {
-            throw new NumberFormatException(s + ": already promoted");
-          }
-          piece = Board.promote(piece);
-        }
-        return (player == Player.BLACK) ? piece : -piece;
-      }
+  }
+
+  // Return the piece type named by a single character, or Piece.EMPTY. "成香", "成桂" and
+  // "成銀" are two characters; see fromKifString.
+  private static final int kifPieceType(char ch) {
+    switch (ch) {
+    case '歩': return Piece.FU;
+    case '香': return Piece.KYO;
+    case '桂': return Piece.KEI;
+    case '銀': return Piece.GIN;
+    case '金': return Piece.KIN;
+    case '角': return Piece.KAKU;
+    case '飛': return Piece.HI;
+    case '王':
+    case '玉': return Piece.OU;
+    case 'と': return Piece.TO;
+    case '杏': return Piece.NARI_KYO;
+    case '圭': return Piece.NARI_KEI;
+    case '全': return Piece.NARI_GIN;
+    case '馬': return Piece.UMA;
+    case '龍':
+    case '竜': return Piece.RYU;
+    default: return Piece.EMPTY;
     }
-    throw new NumberFormatException(s + ": Failed to parse as a japanese Shogi piece name");
   }
 
   // Modifier bits. Used by TraditionalNotation.modifier.
@@ -310,136 +378,111 @@ public class Play implements Serializable {
   }
   
   public final TraditionalNotation toTraditionalNotation(Board board, Play prevPlay) {
+    return toTraditionalNotation(board, mMove, prevPlay == null ? -1 : Move.to(prevPlay.mMove),
+        new SquareSet(), new SquareSet());
+  }
+
+  /**
+   * Compute the traditional notation of "move" (packed as in Move), made on "board".
+   * "prevTo" is the destination square of the previous move, or -1. "others" and "tmp"
+   * are scratch space, so that a caller rendering many moves (see NotationRenderer) need
+   * not allocate them for each one.
+   */
+  static final TraditionalNotation toTraditionalNotation(
+      Board board, int move, int prevTo, SquareSet others, SquareSet tmp) {
+    final int piece = Move.piece(move);
+    final int to = Move.to(move);
+    final int toX = to % Board.DIM;
+    final int toY = to / Board.DIM;
+    final boolean drop = Move.isDrop(move);
+    final int from = drop ? -1 : Move.from(move);
     int modifier = 0;
 
-    if (prevPlay != null && prevPlay.toX() == mToX && prevPlay.toY() == mToY) {
+    if (prevTo == to) {
       modifier |= CAPTURED_PREVIOUS_PIECE;
     }
-    
-    int pieceBeforeMove = mPiece;
-    if (isNewlyPromoted(board)) {
+
+    int pieceBeforeMove = piece;
+    if (!drop && Board.isPromoted(piece) && !Board.isPromoted(board.getPiece(from % Board.DIM, from / Board.DIM))) {
       modifier |= PROMOTE;
-      pieceBeforeMove = Board.unpromote(mPiece);
+      pieceBeforeMove = Board.unpromote(piece);
+    }
+
+    // Find pieces other than the one at "from" that can move to "to". We need
+    // disambiguation only when there are two pieces of the same type that can move to the
+    // same spot. Both the promoted and unpromoted forms count as the same type.
+    final int basePiece = maybeUnpromote(piece);
+    board.getSources(basePiece, toX, toY, others);
+    final int baseType = Board.type(basePiece);
+    if (baseType != Piece.KIN && baseType != Piece.OU) {
+      board.getSources(Board.promote(basePiece), toX, toY, tmp);
+      others.or(tmp);
     }
-    ArrayList<Board.Position> others = listOtherMoveSources(board);
-    if (others.isEmpty()) {
+    if (from >= 0) others.remove(from);
+
+    if (others.isEmpty() && !canDropInstead(board, piece, to, drop)) {
       ;
-    } else if (isDroppingCapturedPiece()) {
+    } else if (drop) {
       modifier |= DROP;
     } else {
-      int myMoveDir = moveDirection(board, mFromX, mFromY, mToX, mToY);
+      final int fromX = from % Board.DIM;
+      final int fromY = from / Board.DIM;
+      final Player me = Board.player(piece);
+      int myMoveDir = moveDirection(me, fromX, fromY, toX, toY);
       modifier |= myMoveDir;
-      
-      boolean hasPieceWithSameMoveDir = false;
-      for (Board.Position p: others) {
-        int dir = moveDirection(board, p.x, p.y, mToX, mToY);
-        if (dir == myMoveDir) {
-          hasPieceWithSameMoveDir = true;
-        } 
-      }
-      
-      if (!hasPieceWithSameMoveDir) {
-        // There's no piece that moves in the same direction to reach <tox,toy>.
-        // Thus, the modifier can just specify the move direction of my piece to
-        // disambiguate it from other legit moves.
-      } else {
-        // There are pieces that move in the same direction.
-        // Determine the location of this piece relative to them.
-        //
-        // There are only three possibilites --- the piece is to the right,
-        // to the left, or in the center of other pieces.
-        int relPos = 0;
-        for (Board.Position p: others) {
-          if (moveDirection(board, p.x, p.y, mToX, mToY) == myMoveDir) {
-            relPos |= relativePosition(mFromX, mFromY, p.x, p.y);
-          }
+
+      // If other pieces move in the same direction to reach <tox,toy>, determine the
+      // location of this piece relative to them. There are only three possibilites ---
+      // the piece is to the right, to the left, or in the center of other pieces.
+      // Otherwise the modifier can just specify the move direction of my piece to
+      // disambiguate it from other legit moves.
+      int relPos = 0;
+      for (int sq = others.pop(); sq >= 0; sq = others.pop()) {
+        final int x = SquareSet.x(sq);
+        if (moveDirection(me, x, SquareSet.y(sq), toX, toY) == myMoveDir) {
+          relPos |= relativePosition(me, fromX, x);
         }
-        if (relPos == (LEFT | RIGHT)) relPos = CENTER;
-        modifier |= relPos;
       }
+      if (relPos == (LEFT | RIGHT)) relPos = CENTER;
+      modifier |= relPos;
     }
-    return new TraditionalNotation(pieceBeforeMove, 9 - mToX, mToY + 1, modifier);
+    return new TraditionalNotation(pieceBeforeMove, 9 - toX, toY + 1, modifier);
   }
-  
-  private final boolean isDroppingCapturedPiece() { return mFromX < 0; }
-  
-  private final boolean isNewlyPromoted(Board board) {
-    if (isDroppingCapturedPiece()) return false; 
-    boolean fromPromoted = Board.isPromoted(board.getPiece(mFromX, mFromY)); 
-    boolean toPromoted = Board.isPromoted(mPiece);
-    return toPromoted && !fromPromoted;
+
+  // Return true if, instead of moving "piece" to the empty square "to", its player could
+  // drop a captured piece of the same type there.
+  private static final boolean canDropInstead(Board board, int piece, int to, boolean drop) {
+    final int x = to % Board.DIM;
+    if (drop || board.getPiece(x, to / Board.DIM) != 0) return false;
+    final Player me = Board.player(piece);
+    final int type = Board.type(piece);
+    if (type < Piece.FU || type > Piece.HI || board.numCaptured(me, type) == 0) return false;
+    if (type == Piece.FU) {
+      // Don't allow double pawns
+      for (int y = 0; y < Board.DIM; ++y) {
+        if (board.getPiece(x, y) == piece) return false;
+      }
+    }
+    return true;
   }
-  
-  private static final int moveDirection(Board b, int fx, int fy, int tx, int ty) {
-    if (fx < 0) return DROP;
+
+  private static final int moveDirection(Player me, int fx, int fy, int tx, int ty) {
     if (fy == ty) return SIDEWAYS;
-    final int piece = b.getPiece(fx, fy);
-    if (Board.player(piece) == Player.BLACK) {
+    if (me == Player.BLACK) {
       return (ty < fy) ? FORWARD : BACKWARD; 
     } else {
       return (ty < fy) ? BACKWARD : FORWARD;
     }
   }
 
-  private final int relativePosition(int x1, int y1, int x2, int y2) {
-    if (Board.player(mPiece) == Player.BLACK) {
+  private static final int relativePosition(Player me, int x1, int x2) {
+    if (me == Player.BLACK) {
       return(x1 < x2) ? LEFT : RIGHT; 
     } else {
       return(x1 < x2) ? RIGHT : LEFT;
     }
   }
-  
-  // Find pieces other than the one at <fromX, fromX> 
-  // that can move or can be dropped at<toX, toY>. 
-  // For captured pieces, Position.x and Position.y
-  // are both -1. 
-  private final ArrayList<Board.Position> listOtherMoveSources(Board board) {
-    ArrayList<Board.Position> list = new ArrayList<Board.Position>();
-    for (int x = 0; x < Board.DIM; ++x) {
-      for (int y = 0; y < Board.DIM; ++y) {
-        if (x == mFromX && y == mFromY) continue;  // exclude this piece.
-        int otherPiece = board.getPiece(x, y);
-
-        // We need disambiguation only when there are two pieces of the same type that
-        // can move to the same spot. 
-        if (maybeUnpromote(otherPiece) != maybeUnpromote(mPiece)) continue;
-
-        // If otherPiece can move to <fromX,  fromY>, then we need disambiguation
-        for (Board.Position p : board.possibleMoveDestinations(x, y)) {
-          if (p.x == mToX && p.y == mToY) {
-            list.add(new Board.Position(x, y));
-            break;
-          }
-        }
-      }
-    }
-    
-    if (board.getPiece(mToX, mToY) == 0 && !isDroppingCapturedPiece()) {
-      // The destination is empty now, so we need to check if
-      // there's a captured piece that can be dropped to <tox,toy>.
-      Player me = Board.player(mPiece);
-      for (Board.CapturedPiece cp: board.getCapturedPieces(me)) {
-        boolean dropAllowed = true;
-        if (Board.type(cp.piece) == Piece.FU) {
-          // Don't allow double pawns
-          for (int y = 0; y < Board.DIM; ++y) {
-            int piece = board.getPiece(mToX, y);
-            if (Board.player(piece) == me &&
-                Board.type(piece) == Piece.FU) {
-              dropAllowed = false;
-              break;
-            }
-          }
-        }
-        if (dropAllowed && cp.piece == mPiece) {
-          list.add(new Board.Position(-1, -1));
-          break;
-        }
-      }
-    }
-    return list;
-  }
-  
+
   static final int maybeUnpromote(int piece) {
     if (Board.isPromoted(piece)) return Board.unpromote(piece);
     return piece;
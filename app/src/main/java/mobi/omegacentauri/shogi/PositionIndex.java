@@ -0,0 +1,550 @@
+package mobi.omegacentauri.shogi;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * An index of the positions reached by the game logs: for each position, identified by
+ * its Zobrist key (Board.hashKey()), the logs that reached it, the ply at which they did,
+ * and the move they made next. A log is indexed by replaying its plays on a Board.
+ *
+ * The index is a file holding a table of 16-byte entries sorted by the key, which is
+ * memory-mapped, so a lookup is a binary search that reads a few pages and the index
+ * takes no heap. The file is
+ *
+ *   int MAGIC, int VERSION, int number of logs, int number of entries
+ *   the digest of each log, two longs (see LogDigest.high() and low()); the index of a
+ *     digest is the log id of the entries
+ *   the entries, each a long key and a long (log id << 32 | ply << 21 | next move)
+ *
+ * The next move is Move.NONE at the end of a log. Positions after MAX_PLY plies aren't
+ * indexed.
+ *
+ * The file is immutable. The logs added since it was written are indexed in memory,
+ * and those removed are filtered out of the lookups; merge() writes a new file with the
+ * changes, when they have grown to a good fraction of the file (see maybeMerge()). The
+ * changes not merged are lost when the process ends, but a Sync recovers them: it
+ * compares the logs in the file with those in LogStore, and indexes only the
+ * difference, so the file needn't be rewritten for each change.
+ *
+ * This class is MT safe. A Sync replays the logs without holding the lock of the index,
+ * so add() and remove() don't wait for it; find() does.
+ */
+public final class PositionIndex {
+  private static final String TAG = "PositionIndex";
+
+  private static final int MAGIC = 0x5347504c;  // "SGPL"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+  private static final int DIGEST_SIZE = 16;
+  private static final int ENTRY_SIZE = 16;
+
+  public static final int MAX_PLY = (1 << 11) - 1;
+  private static final int PLY_SHIFT = 21;
+  private static final int MOVE_MASK = (1 << PLY_SHIFT) - 1;
+
+  // The changes are merged into the file when they involve more logs than this fraction
+  // of those in the file, and at least MIN_MERGE_LOGS.
+  private static final int MERGE_RATIO = 8;
+  private static final int MIN_MERGE_LOGS = 16;
+
+  /** A log that reached a position. */
+  public static final class Hit {
+    public final String digest;
+    public final int ply;  // the number of plays made to reach the position
+    public final int nextMove;  // packed as in Move; Move.NONE if the log ends there
+
+    Hit(String d, int p, int m) {
+      digest = d;
+      ply = p;
+      nextMove = m;
+    }
+  }
+
+  // A growable array of entries, two longs each as in the file: pairs[0, size * 2).
+  private static final class Entries {
+    long pairs[] = new long[1024];
+    int size;
+
+    final void add(long key, long value) {
+      if ((size + 1) * 2 > pairs.length) pairs = Arrays.copyOf(pairs, pairs.length * 2);
+      pairs[size * 2] = key;
+      pairs[size * 2 + 1] = value;
+      ++size;
+    }
+
+    final void addAll(Entries e) {
+      if ((size + e.size) * 2 > pairs.length) {
+        pairs = Arrays.copyOf(pairs, Math.max(pairs.length * 2, (size + e.size) * 2));
+      }
+      System.arraycopy(e.pairs, 0, pairs, size * 2, e.size * 2);
+      size += e.size;
+    }
+  }
+
+  private final File mFile;
+
+  // The fields below are guarded by "this".
+
+  // The table in mFile. null if there is no file.
+  private MappedByteBuffer mTable;
+  private int mNumTableLogs;
+  private int mNumTableEntries;
+
+  // mDigests[id] is the digest of the log with the id. The ids [0, mNumTableLogs) are
+  // those in the file. mIds maps the digests of the logs indexed to their ids; an id
+  // without a digest in mIds has been removed.
+  private final ArrayList<String> mDigests = new ArrayList<String>();
+  private final HashMap<String, Integer> mIds = new HashMap<String, Integer>();
+  private final BitSet mRemoved = new BitSet();
+  private int mNumRemovedFromTable;
+
+  // The entries of the logs added since the file was written. Sorted by sortAdded()
+  // before a lookup.
+  private Entries mAdded = new Entries();
+  private boolean mAddedSorted = true;
+  private int mNumAddedLogs;
+
+  // The number of Syncs begun whose run() hasn't returned.
+  private int mNumSyncs;
+
+  /**
+   * Open the index in "file". If the file doesn't exist, or can't be read, the index
+   * starts empty, and a Sync indexes all the logs.
+   */
+  public PositionIndex(File file) {
+    mFile = file;
+    new File(file.getPath() + ".tmp").delete();  // left by an interrupted merge()
+    if (!file.exists()) return;
+    try {
+      mapTable();
+    } catch (IOException e) {
+      Log.d(TAG, mFile + ": " + e.getMessage());
+      mTable = null;
+      mNumTableLogs = mNumTableEntries = 0;
+      mDigests.clear();
+      mIds.clear();
+    }
+  }
+
+  /** The number of logs indexed. */
+  public synchronized int size() { return mIds.size(); }
+
+  /**
+   * The logs missing from the index, replayed by run(). Until run() returns, find()
+   * waits, and merge() does nothing, since it would renumber the logs being replayed.
+   */
+  public final class Sync {
+    private final ArrayList<String> mMissing;
+    private final int mFirstId;  // the id of mMissing.get(0); the rest follow
+
+    private Sync(ArrayList<String> missing, int firstId) {
+      mMissing = missing;
+      mFirstId = firstId;
+    }
+
+    /**
+     * Replay the missing logs, reading their plays from "store", on several threads.
+     * The caller shouldn't hold any lock. The logs removed meanwhile are filtered out
+     * of the lookups, like any other removed log. The logs that couldn't be replayed,
+     * e.g., because their records can't be read, are removed, so that the next Sync
+     * tries them again.
+     */
+    public void run(final LogStore store) {
+      Entries added = new Entries();
+      try {
+        if (!mMissing.isEmpty()) added = replayAll(store);
+      } finally {
+        synchronized (PositionIndex.this) {
+          mAdded.addAll(added);
+          mAddedSorted = false;
+          // A log replayed has at least the entry of its initial position.
+          BitSet replayed = new BitSet(mMissing.size());
+          for (int i = 0; i < added.size; ++i) {
+            replayed.set((int)(added.pairs[i * 2 + 1] >>> 32) - mFirstId);
+          }
+          for (int i = replayed.nextClearBit(0); i < mMissing.size(); i = replayed.nextClearBit(i + 1)) {
+            final Integer id = mIds.get(mMissing.get(i));
+            if (id != null && id == mFirstId + i) remove(mMissing.get(i));
+          }
+          --mNumSyncs;
+          PositionIndex.this.notifyAll();
+        }
+      }
+    }
+
+    // Each thread takes the next log to replay, and collects the entries on its own.
+    private Entries replayAll(final LogStore store) {
+      final AtomicInteger next = new AtomicInteger();
+      final int numThreads = Math.max(1, Math.min(Util.numberOfCores(), mMissing.size()));
+      ExecutorService threads = Executors.newFixedThreadPool(numThreads);
+      ArrayList<Future<Entries>> results = new ArrayList<Future<Entries>>();
+      Entries added = new Entries();
+      try {
+        for (int t = 0; t < numThreads; ++t) {
+          results.add(threads.submit(new Callable<Entries>() {
+            @Override
+            public Entries call() {
+              Entries entries = new Entries();
+              for (int i; (i = next.getAndIncrement()) < mMissing.size(); ) {
+                final String digest = mMissing.get(i);
+                try {
+                  GameLog log = store.load(digest);
+                  if (log != null) {
+                    replay(log, mFirstId + i, entries);
+                  } else {
+                    Log.d(TAG, digest + ": can't read the plays");
+                  }
+                } catch (Throwable e) {
+                  Log.d(TAG, digest + ": replay: " + e);
+                }
+              }
+              return entries;
+            }
+          }));
+        }
+        for (Future<Entries> r : results) {
+          try {
+            added.addAll(r.get());
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+          } catch (ExecutionException e) {
+            Log.d(TAG, "replay: " + e.getCause());
+          }
+        }
+      } finally {
+        threads.shutdownNow();
+      }
+      return added;
+    }
+  }
+
+  /**
+   * Start making the index hold "logs", the logs in LogStore: remove those that are no
+   * longer there, and return a Sync whose run() indexes those the index lacks. This
+   * doesn't read any log, so it may be called under the lock that guards the store.
+   */
+  public synchronized Sync beginSync(Collection<GameLog> logs) {
+    HashSet<String> digests = new HashSet<String>();
+    ArrayList<String> missing = new ArrayList<String>();
+    for (GameLog log : logs) {
+      digests.add(log.digest());
+      if (!mIds.containsKey(log.digest())) missing.add(log.digest());
+    }
+    for (String digest : new ArrayList<String>(mIds.keySet())) {
+      if (!digests.contains(digest)) remove(digest);
+    }
+    // The ids are taken now, so add() skips the logs, and remove() filters them out.
+    final int firstId = mDigests.size();
+    for (String digest : missing) newId(digest);
+    mNumAddedLogs += missing.size();
+    ++mNumSyncs;
+    return new Sync(missing, firstId);
+  }
+
+  /** Index "log", which must have the plays, unless it is already indexed. */
+  public synchronized void add(GameLog log) {
+    if (mIds.containsKey(log.digest())) return;
+    replay(log, newId(log.digest()), mAdded);
+    ++mNumAddedLogs;
+    mAddedSorted = false;
+  }
+
+  /** Remove the log with "digest", if it is indexed. */
+  public synchronized void remove(String digest) {
+    Integer id = mIds.remove(digest);
+    if (id == null) return;
+    mRemoved.set(id);
+    if (id < mNumTableLogs) {
+      ++mNumRemovedFromTable;
+    } else {
+      --mNumAddedLogs;
+    }
+  }
+
+  /**
+   * Return the logs that reached the position with "hashKey" (see Board.hashKey()).
+   * Waits for the Syncs begun to run.
+   */
+  public synchronized ArrayList<Hit> find(long hashKey) throws InterruptedException {
+    while (mNumSyncs > 0) wait();
+    ArrayList<Hit> hits = new ArrayList<Hit>();
+    if (mTable != null) {
+      final int entriesOffset = HEADER_SIZE + mNumTableLogs * DIGEST_SIZE;
+      int lo = 0;
+      int hi = mNumTableEntries;
+      while (lo < hi) {
+        final int mid = (lo + hi) >>> 1;
+        if (mTable.getLong(entriesOffset + mid * ENTRY_SIZE) < hashKey) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      for (int i = lo; i < mNumTableEntries; ++i) {
+        final int offset = entriesOffset + i * ENTRY_SIZE;
+        if (mTable.getLong(offset) != hashKey) break;
+        addHit(mTable.getLong(offset + 8), hits);
+      }
+    }
+    sortAdded();
+    final long added[] = mAdded.pairs;
+    int lo = 0;
+    int hi = mAdded.size;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (added[mid * 2] < hashKey) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    for (int i = lo; i < mAdded.size && added[i * 2] == hashKey; ++i) addHit(added[i * 2 + 1], hits);
+    return hits;
+  }
+
+  /**
+   * Merge the changes into the file if they involve more than 1/MERGE_RATIO of the logs
+   * in the file. The rest are recomputed by a Sync when the index is next opened.
+   */
+  public synchronized void maybeMerge() {
+    final int changed = mNumAddedLogs + mNumRemovedFromTable;
+    if (changed >= MIN_MERGE_LOGS && changed * MERGE_RATIO > mNumTableLogs) merge();
+  }
+
+  /** Write a new file with the logs indexed, and map it. Does nothing during a Sync. */
+  public synchronized void merge() {
+    if (mNumSyncs > 0) return;
+    sortAdded();
+    // The ids are renumbered densely, in the same order, so the entries stay sorted.
+    int newIds[] = new int[mDigests.size()];
+    int numLogs = 0;
+    for (int id = 0; id < newIds.length; ++id) newIds[id] = mRemoved.get(id) ? -1 : numLogs++;
+    File tmp = new File(mFile.getPath() + ".tmp");
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(numLogs);
+        out.writeInt(0);  // the number of entries, filled in below
+        for (int id = 0; id < newIds.length; ++id) {
+          if (newIds[id] < 0) continue;
+          out.writeLong(LogDigest.high(mDigests.get(id)));
+          out.writeLong(LogDigest.low(mDigests.get(id)));
+        }
+        final int entriesOffset = HEADER_SIZE + mNumTableLogs * DIGEST_SIZE;
+        final long added[] = mAdded.pairs;
+        final int numAdded = mAdded.size;
+        int numEntries = 0;
+        int i = 0;  // in the table
+        int j = 0;  // in mAdded
+        long key = 0;
+        long value = 0;
+        while (true) {
+          // Take the smaller of the next entries of the table and mAdded.
+          boolean fromTable;
+          if (i < mNumTableEntries && j < numAdded) {
+            final long tableKey = mTable.getLong(entriesOffset + i * ENTRY_SIZE);
+            fromTable = tableKey < added[j * 2] ||
+                (tableKey == added[j * 2] &&
+                 mTable.getLong(entriesOffset + i * ENTRY_SIZE + 8) < added[j * 2 + 1]);
+          } else if (i < mNumTableEntries) {
+            fromTable = true;
+          } else if (j < numAdded) {
+            fromTable = false;
+          } else {
+            break;
+          }
+          if (fromTable) {
+            key = mTable.getLong(entriesOffset + i * ENTRY_SIZE);
+            value = mTable.getLong(entriesOffset + i * ENTRY_SIZE + 8);
+            ++i;
+          } else {
+            key = added[j * 2];
+            value = added[j * 2 + 1];
+            ++j;
+          }
+          final int newId = newIds[(int)(value >>> 32)];
+          if (newId < 0) continue;
+          out.writeLong(key);
+          out.writeLong(((long)newId << 32) | (value & 0xffffffffL));
+          ++numEntries;
+        }
+        out.close();
+        out = null;
+        RandomAccessFile f = new RandomAccessFile(tmp, "rw");
+        try {
+          f.seek(12);
+          f.writeInt(numEntries);
+        } finally {
+          f.close();
+        }
+      } finally {
+        if (out != null) out.close();
+      }
+      if (!tmp.renameTo(mFile)) throw new IOException("can't rename " + tmp);
+    } catch (IOException e) {
+      Log.d(TAG, mFile + ": merge: " + e.getMessage());
+      tmp.delete();
+      return;
+    }
+
+    mTable = null;
+    mNumTableLogs = mNumTableEntries = 0;
+    mDigests.clear();
+    mIds.clear();
+    mRemoved.clear();
+    mNumRemovedFromTable = 0;
+    mAdded = new Entries();
+    mNumAddedLogs = 0;
+    try {
+      mapTable();
+    } catch (IOException e) {
+      Log.d(TAG, mFile + ": " + e.getMessage());
+      mTable = null;
+      mNumTableLogs = mNumTableEntries = 0;
+      mDigests.clear();
+      mIds.clear();
+    }
+  }
+
+  // Map mFile, and read the digests of the logs in it.
+  private final void mapTable() throws IOException {
+    RandomAccessFile f = new RandomAccessFile(mFile, "r");
+    try {
+      final long length = f.length();
+      if (length < HEADER_SIZE) throw new IOException("truncated header");
+      MappedByteBuffer table = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+      if (table.getInt(0) != MAGIC || table.getInt(4) != VERSION) throw new IOException("unknown format");
+      final int numLogs = table.getInt(8);
+      final int numEntries = table.getInt(12);
+      if (numLogs < 0 || numEntries < 0 ||
+          length != HEADER_SIZE + (long)numLogs * DIGEST_SIZE + (long)numEntries * ENTRY_SIZE) {
+        throw new IOException("invalid size");
+      }
+      for (int id = 0; id < numLogs; ++id) {
+        final int offset = HEADER_SIZE + id * DIGEST_SIZE;
+        newId(LogDigest.toString(table.getLong(offset), table.getLong(offset + 8)));
+      }
+      mTable = table;
+      mNumTableLogs = numLogs;
+      mNumTableEntries = numEntries;
+    } finally {
+      f.close();  // the mapping stays valid
+    }
+  }
+
+  private final int newId(String digest) {
+    final int id = mDigests.size();
+    mDigests.add(digest);
+    mIds.put(digest, id);
+    return id;
+  }
+
+  private final void addHit(long value, ArrayList<Hit> hits) {
+    final int id = (int)(value >>> 32);
+    if (mRemoved.get(id)) return;
+    hits.add(new Hit(mDigests.get(id), (int)(value >>> PLY_SHIFT) & MAX_PLY, (int)value & MOVE_MASK));
+  }
+
+  private final void sortAdded() {
+    if (mAddedSorted) return;
+    sortPairs(mAdded.pairs, 0, mAdded.size);
+    mAddedSorted = true;
+  }
+
+  // Add the entries of "log", whose id is "id", to "entries".
+  private static void replay(GameLog log, int id, Entries entries) {
+    Board board = new Board();
+    board.initialize(log.handicap());
+    final int numPlays = log.numPlays();
+    try {
+      for (int ply = 0; ply <= numPlays && ply <= MAX_PLY; ++ply) {
+        final int move = ply < numPlays ? log.move(ply) : Move.NONE;
+        entries.add(board.hashKey(), ((long)id << 32) | ((long)ply << PLY_SHIFT) | (move & MOVE_MASK));
+        if (move != Move.NONE) board.applyMove(move);
+      }
+    } catch (Throwable e) {
+      // An invalid move; index the positions before it.
+      Log.d(TAG, log.digest() + ": replay: " + e);
+    }
+  }
+
+  // Sort the pairs a[from * 2, to * 2) by the first long, then by the second.
+  private static void sortPairs(long a[], int from, int to) {
+    while (to - from > 16) {
+      // Quicksort, with the median of three as the pivot; recurse into the smaller half.
+      final int mid = (from + to) >>> 1;
+      int p = medianOfThree(a, from, mid, to - 1);
+      final long pk = a[p * 2];
+      final long pv = a[p * 2 + 1];
+      int i = from;
+      int j = to - 1;
+      while (i <= j) {
+        while (compare(a, i, pk, pv) < 0) ++i;
+        while (compare(a, j, pk, pv) > 0) --j;
+        if (i <= j) {
+          swap(a, i++, j--);
+        }
+      }
+      if (j - from < to - i) {
+        sortPairs(a, from, j + 1);
+        from = i;
+      } else {
+        sortPairs(a, i, to);
+        to = j + 1;
+      }
+    }
+    for (int i = from + 1; i < to; ++i) {
+      for (int j = i; j > from && compare(a, j, a[(j - 1) * 2], a[(j - 1) * 2 + 1]) < 0; --j) {
+        swap(a, j, j - 1);
+      }
+    }
+  }
+
+  private static int compare(long a[], int i, long key, long value) {
+    if (a[i * 2] != key) return a[i * 2] < key ? -1 : 1;
+    if (a[i * 2 + 1] != value) return a[i * 2 + 1] < value ? -1 : 1;
+    return 0;
+  }
+
+  private static int medianOfThree(long a[], int i, int j, int k) {
+    if (compare(a, i, a[j * 2], a[j * 2 + 1]) < 0) {
+      if (compare(a, j, a[k * 2], a[k * 2 + 1]) < 0) return j;
+      return compare(a, i, a[k * 2], a[k * 2 + 1]) < 0 ? k : i;
+    }
+    if (compare(a, i, a[k * 2], a[k * 2 + 1]) < 0) return i;
+    return compare(a, j, a[k * 2], a[k * 2 + 1]) < 0 ? k : j;
+  }
+
+  private static void swap(long a[], int i, int j) {
+    long t = a[i * 2];
+    a[i * 2] = a[j * 2];
+    a[j * 2] = t;
+    t = a[i * 2 + 1];
+    a[i * 2 + 1] = a[j * 2 + 1];
+    a[j * 2 + 1] = t;
+  }
+}
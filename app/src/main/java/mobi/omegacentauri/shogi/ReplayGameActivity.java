@@ -1,11 +1,13 @@
 package mobi.omegacentauri.shogi;
 
 import java.util.ArrayList;
+import java.util.Calendar;
 
 import android.app.ActionBar;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
+import android.app.ProgressDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -24,11 +26,14 @@ import android.widget.CheckBox;
 import android.widget.ImageButton;
 import android.widget.SeekBar;
 import android.widget.TextView;
+import android.widget.Toast;
 
 /**
  * Activity for replaying a saved game
  */
 public class ReplayGameActivity extends Activity {
+    private static final String TAG = "ReplayGame";
+
     // View components
     private BoardView mBoardView;
     private GameStatusView mStatusView;
@@ -42,11 +47,13 @@ public class ReplayGameActivity extends Activity {
 
     // State of the game
     private Board mBoard;            // current state of the board
+    private Board mLastBoard;        // state of the board before the last play in mPlays
     private ArrayList<Play> mPlays;  // plays made up to mBoard.
     private Player mNextPlayer;   // the next player to make a move
     private GameState mGameState;    // is the game is active or finished?
 
-    private GameLog mLog;
+    private GameLog mLog;            // null until LoadMovesTask reads the plays
+    private LoadMovesTask mLoadMovesTask;
 
     // Number of moves made so far. 0 means the beginning of the game.
     private int mNextPlay;
@@ -75,7 +82,65 @@ public class ReplayGameActivity extends Activity {
         }
         setContentView(R.layout.replay_game);
 
-        mLog = (GameLog) getIntent().getSerializableExtra("gameLog");
+        // The log list passes only the header of the log; read the plays off the UI
+        // thread, and set up the board once they arrive. Until then mLog is null.
+        mLoadMovesTask = new LoadMovesTask(savedInstanceState);
+        mLoadMovesTask.execute((GameLog) getIntent().getSerializableExtra("gameLog"));
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (mLoadMovesTask != null) mLoadMovesTask.abandon();
+        super.onDestroy();
+    }
+
+    private class LoadMovesTask extends AsyncTask<GameLog, String, GameLog> {
+        private final Bundle mSavedInstanceState;
+        private ProgressDialog mProgress;
+
+        LoadMovesTask(Bundle savedInstanceState) {
+            mSavedInstanceState = savedInstanceState;
+        }
+
+        @Override
+        protected void onPreExecute() {
+            mProgress = new ProgressDialog(mActivity);
+            mProgress.setMessage(getResources().getString(R.string.loading_log));
+            mProgress.setIndeterminate(true);
+            mProgress.setOnCancelListener(new DialogInterface.OnCancelListener() {
+                public void onCancel(DialogInterface dialog) {
+                    finish();
+                }
+            });
+            mProgress.show();
+        }
+
+        @Override
+        protected GameLog doInBackground(GameLog... logs) {
+            return mGameLogList.loadMoves(mActivity, logs[0]);
+        }
+
+        // Drop the result; the activity is going away.
+        void abandon() {
+            cancel(false);
+            mProgress.dismiss();
+        }
+
+        @Override
+        protected void onPostExecute(GameLog log) {
+            mLoadMovesTask = null;
+            mProgress.dismiss();
+            if (log == null) {
+                Log.d(TAG, "Failed to read the plays of the log");
+                finish();
+                return;
+            }
+            mLog = log;
+            startReplay(mSavedInstanceState);
+        }
+    }
+
+    private final void startReplay(Bundle savedInstanceState) {
         Assert.isTrue(mLog.numPlays() > 0);
 
         initializeInstanceState(savedInstanceState);
@@ -83,6 +148,7 @@ public class ReplayGameActivity extends Activity {
         mGameState = GameState.ACTIVE;
         mNextPlay = 0;
         mBoard = new Board();
+        mLastBoard = new Board();
         mPlays = new ArrayList<Play>();
         mBoard.initialize(mLog.handicap());
         mNextPlayer = Player.BLACK;
@@ -90,7 +156,7 @@ public class ReplayGameActivity extends Activity {
         mStatusView = (GameStatusView) findViewById(R.id.gamestatusview);
         mStatusView.initialize(
                 mLog.attr(GameLog.ATTR_BLACK_PLAYER),
-                mLog.attr(GameLog.ATTR_WHITE_PLAYER), mFlipScreen);
+                mLog.attr(GameLog.ATTR_WHITE_PLAYER), mFlipScreen, mBoard);
 
         mBoardView = (BoardView) findViewById(R.id.boardview);
         mBoardView.initialize(mViewListener,
@@ -136,43 +202,54 @@ public class ReplayGameActivity extends Activity {
                 Player.INVALID, // Disallow board manipulation by the user
                 null, false);
 
-        replayUpTo(mLog.numPlays());
-        mSeekBar.setProgress(mLog.numPlays());
+        // findSamePosition() opens a log at the ply that reached the position.
+        final int ply = Math.min(getIntent().getIntExtra("ply", mLog.numPlays()), mLog.numPlays());
+        replayUpTo(ply);
+        mSeekBar.setProgress(ply);
 
         registerForContextMenu(findViewById(R.id.menu_button));
     }
 
     private final void replayUpTo(int numPlays) {
-        mBoard.initialize(mLog.handicap());
-        mNextPlayer = Player.BLACK;
-        mPlays.clear();
+        // Walk mBoard back or forth to the state before the last play, then
+        // make the last play. mBoard keeps the undo history of all the plays
+        // made so far, so no replay from the beginning is needed.
+        final int lastPlay = Math.max(numPlays - 1, 0);
+        while (mNextPlay > lastPlay) {
+            mBoard.undoPly();
+            mPlays.remove(mPlays.size() - 1);
+            --mNextPlay;
+        }
+        while (mNextPlay < lastPlay) {
+            applyNextPlay();
+        }
+        mLastBoard.copyFrom(mBoard);
 
         Play play = null;
-        Board lastBoard = mBoard;
-
-        // Compute the state of the game @ numMoves
-        for (int i = 0; i < numPlays; ++i) {
-            play = mLog.play(i);
-            if (i == numPlays - 1) {
-                lastBoard = new Board(mBoard);
-            }
-            mBoard.applyPly(mNextPlayer, play);
-            mNextPlayer = mNextPlayer.opponent();
-            mPlays.add(play);
+        if (numPlays > 0) {
+            play = mLog.play(mNextPlay);
+            applyNextPlay();
         }
-        mNextPlay = numPlays;
-        mStatusView.update(mGameState, lastBoard, mBoard, mPlays, mNextPlayer, null);
+        mNextPlayer = mBoard.nextPlayer();
+        mStatusView.update(mGameState, mLastBoard, mBoard, mPlays, mNextPlayer, null);
 
         long[] times = new long[2];
-        Util.getTimesFromPlays(mPlays, numPlays, times);
+        Util.getTimesFromPlays(mLog.moves(), numPlays, times);
         mStatusView.updateThinkTimes(times);
 
-        mBoardView.update(mGameState, lastBoard, mBoard,
+        mBoardView.update(mGameState, mLastBoard, mBoard,
                 Player.INVALID,  // Disallow board manipulation by the user
                 play, false);
         mSeekBar.setProgress(mNextPlay);
     }
 
+    private final void applyNextPlay() {
+        Play play = mLog.play(mNextPlay);
+        mBoard.applyPly(mBoard.nextPlayer(), play);
+        mPlays.add(play);
+        ++mNextPlay;
+    }
+
     private static final int DIALOG_RESUME_GAME = 1;
     private static final int DIALOG_LOG_PROPERTIES = 2;
     private StartGameDialog mStartGameDialog;
@@ -181,8 +258,8 @@ public class ReplayGameActivity extends Activity {
         Intent intent = new Intent(this, GameActivity.class);
         Board initialBoard = new Board();
         initialBoard.initialize(mLog.handicap());
-        intent.putExtra("initial_board", initialBoard);
-        intent.putExtra("saved_board", mBoard);
+        intent.putExtra("initial_board", initialBoard.toSnapshot());
+        intent.putExtra("saved_board", mBoard.toSnapshot());
         intent.putExtra("moves", mPlays);
         Log.v("shogilog", "resuming");
         for (Play p : mPlays) Log.v("shogilog", p.toString());
@@ -228,6 +305,7 @@ public class ReplayGameActivity extends Activity {
 
     @Override
     public void onSaveInstanceState(Bundle bundle) {
+        if (mLog == null) return;  // still loading; mFlipScreen isn't set yet
         bundle.putBoolean("flipped",mFlipScreen);
     }
 
@@ -262,6 +340,7 @@ public class ReplayGameActivity extends Activity {
     };
 
     public void flipClick(View view) {
+        if (mLog == null) return;  // still loading
         flipScreen();
         mBoardView.requestFocus();
     }
@@ -306,6 +385,72 @@ public class ReplayGameActivity extends Activity {
         mStartGameDialog.getDialog().show();
     }
 
+    // List the other logs that reached the position on the board, and open the one
+    // chosen at that position.
+    public void findSamePosition() {
+        final Board board = new Board(mBoard);
+        new AsyncTask<Long, String, ArrayList<GameLogListManager.PositionMatch>>() {
+            @Override
+            protected ArrayList<GameLogListManager.PositionMatch> doInBackground(Long... keys) {
+                ArrayList<GameLogListManager.PositionMatch> matches =
+                        new ArrayList<GameLogListManager.PositionMatch>();
+                for (GameLogListManager.PositionMatch m : mGameLogList.findPosition(mActivity, keys[0])) {
+                    if (!m.log.digest().equals(mLog.digest())) matches.add(m);
+                }
+                return matches;
+            }
+
+            @Override
+            protected void onPostExecute(final ArrayList<GameLogListManager.PositionMatch> matches) {
+                if (isFinishing()) return;
+                if (matches.isEmpty()) {
+                    Toast.makeText(getBaseContext(), R.string.no_same_position, Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                String labels[] = new String[matches.size()];
+                for (int i = 0; i < labels.length; ++i) labels[i] = samePositionLabel(board, matches.get(i));
+                new AlertDialog.Builder(mActivity)
+                        .setTitle(R.string.same_position)
+                        .setItems(labels, new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int which) {
+                                GameLogListManager.PositionMatch m = matches.get(which);
+                                Intent intent = new Intent(mActivity, ReplayGameActivity.class);
+                                intent.putExtra("gameLog", m.log);
+                                intent.putExtra("ply", m.ply);
+                                startActivity(intent);
+                            }
+                        })
+                        .show();
+            }
+        }.execute(mBoard.hashKey());
+    }
+
+    // The label of "m" in the list of findSamePosition(): the date, the players, the ply,
+    // and the move made next from "board".
+    private final String samePositionLabel(Board board, GameLogListManager.PositionMatch m) {
+        StringBuilder b = new StringBuilder();
+        long date = m.log.getDate();
+        if (date > 0) {
+            Calendar c = Calendar.getInstance();
+            c.setTimeInMillis(date);
+            b.append(String.format("%04d/%02d/%02d ",
+                    c.get(Calendar.YEAR),
+                    c.get(Calendar.MONTH) - Calendar.JANUARY + 1,
+                    c.get(Calendar.DAY_OF_MONTH)));
+        }
+        String v = m.log.attr(GameLog.ATTR_BLACK_PLAYER);
+        if (v != null) b.append(v);
+        b.append("/");
+        v = m.log.attr(GameLog.ATTR_WHITE_PLAYER);
+        if (v != null) b.append(v);
+        b.append("/").append(m.ply);
+        b.append(getResources().getString(R.string.plays_suffix));
+        if (m.nextMove != Move.NONE) {
+            b.append(" ").append(new NotationRenderer(board).next(m.nextMove).toJapaneseString());
+        }
+        return b.toString();
+    }
+
     public void toSD() {
         new AsyncTask<GameLog, String, String>() {
             @Override
@@ -344,12 +489,16 @@ public class ReplayGameActivity extends Activity {
             case R.id.menu_log_properties:
                 info();
                 return true;
+            case R.id.menu_same_position:
+                findSamePosition();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
     }
 
     public void menuButtonClick(View view) {
+        if (mLog == null) return;  // still loading
         openContextMenu(view);
     }
 }
\ No newline at end of file
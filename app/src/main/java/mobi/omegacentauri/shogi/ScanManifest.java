@@ -0,0 +1,128 @@
+package mobi.omegacentauri.shogi;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers each game log file seen by the last sdcard scan, keyed by the path: the size
+ * and the modification time of the file, the digest of its bytes, and the digest of the
+ * log parsed from it. A rescan then parses only the files whose size or modification time
+ * changed, notices the files that went away, and recognizes a file moved to a new path by
+ * the digest of its bytes, without parsing it.
+ *
+ * This class is not MT safe. GameLogListManager loads it from and saves it to the
+ * application's private storage.
+ */
+public final class ScanManifest {
+  private static final int VERSION = 1;
+
+  public static final class Entry {
+    public final long size;
+    public final long mtimeMs;
+    public final byte[] contentDigest;  // see contentDigest()
+    public final String logDigest;  // GameLog.digest(), or null if the file didn't parse
+
+    public Entry(long s, long m, byte[] c, String l) {
+      size = s;
+      mtimeMs = m;
+      contentDigest = c;
+      logDigest = l;
+    }
+
+    /** Whether the file is unchanged, as far as stat() can tell. */
+    public final boolean matches(long s, long m) { return size == s && mtimeMs == m; }
+  }
+
+  private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+  private boolean mDirty;
+
+  public Entry get(String path) { return mEntries.get(path); }
+
+  public void put(String path, Entry e) {
+    mEntries.put(path, e);
+    mDirty = true;
+  }
+
+  public void remove(String path) {
+    if (mEntries.remove(path) != null) mDirty = true;
+  }
+
+  public void clear() {
+    if (mEntries.isEmpty()) return;
+    mEntries.clear();
+    mDirty = true;
+  }
+
+  /** Return a copy of the entries, keyed by the paths. */
+  public HashMap<String, Entry> entries() { return new HashMap<String, Entry>(mEntries); }
+
+  /**
+   * Return a new map from the content digest (wrapped in a ByteBuffer, to compare by
+   * value) to the log digest, for the files that parsed.
+   */
+  public HashMap<ByteBuffer, String> logDigestsByContent() {
+    HashMap<ByteBuffer, String> m = new HashMap<ByteBuffer, String>();
+    for (Entry e : mEntries.values()) {
+      if (e.logDigest != null) m.put(ByteBuffer.wrap(e.contentDigest), e.logDigest);
+    }
+    return m;
+  }
+
+  /** Whether the contents changed since the last read() or write(). */
+  public boolean isDirty() { return mDirty; }
+
+  /** The digest of contents[0, length) that identifies a file, the MD5 of the bytes. */
+  public static byte[] contentDigest(byte contents[], int length) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      md.update(contents, 0, length);
+      return md.digest();
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError("MessageDigest.NoSuchAlgorithmException: " + e.getMessage());
+    }
+  }
+
+  /** Replace the contents with those saved by write(). */
+  public void read(InputStream in) throws IOException {
+    DataInputStream din = new DataInputStream(in);
+    if (din.readInt() != VERSION) throw new IOException("ScanManifest: unknown version");
+    final int n = din.readInt();
+    mEntries.clear();
+    for (int i = 0; i < n; ++i) {
+      final String path = din.readUTF();
+      final long size = din.readLong();
+      final long mtimeMs = din.readLong();
+      byte contentDigest[] = new byte[din.readUnsignedByte()];
+      din.readFully(contentDigest);
+      final String logDigest = din.readBoolean() ? din.readUTF() : null;
+      mEntries.put(path, new Entry(size, mtimeMs, contentDigest, logDigest));
+    }
+    mDirty = false;
+  }
+
+  public void write(OutputStream out) throws IOException {
+    DataOutputStream dout = new DataOutputStream(out);
+    dout.writeInt(VERSION);
+    dout.writeInt(mEntries.size());
+    for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+      final Entry v = e.getValue();
+      dout.writeUTF(e.getKey());
+      dout.writeLong(v.size);
+      dout.writeLong(v.mtimeMs);
+      dout.writeByte(v.contentDigest.length);
+      dout.write(v.contentDigest);
+      dout.writeBoolean(v.logDigest != null);
+      if (v.logDigest != null) dout.writeUTF(v.logDigest);
+    }
+    dout.flush();
+    mDirty = false;
+  }
+}
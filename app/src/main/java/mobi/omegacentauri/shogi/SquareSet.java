@@ -0,0 +1,132 @@
+package mobi.omegacentauri.shogi;
+
+/**
+ * A mutable set of board squares stored as an 81-bit mask.
+ *
+ * Square "sq" is the index x + y * Board.DIM, i.e., the same index used by
+ * Board.mSquares. Squares [0, 64) are stored in "lo", squares [64, 81) in "hi".
+ *
+ * Board methods that compute a set of squares fill a caller-supplied SquareSet,
+ * so a single object can be reused across many queries without allocation.
+ */
+public final class SquareSet {
+  public static final int NUM_SQUARES = Board.DIM * Board.DIM;
+
+  // Valid bits of "hi".
+  public static final long HI_MASK = (1L << (NUM_SQUARES - 64)) - 1;
+
+  public long lo;
+  public long hi;
+
+  public SquareSet() { }
+
+  public SquareSet(SquareSet src) {
+    lo = src.lo;
+    hi = src.hi;
+  }
+
+  public final void clear() {
+    lo = 0;
+    hi = 0;
+  }
+
+  public final void set(SquareSet src) {
+    lo = src.lo;
+    hi = src.hi;
+  }
+
+  public final void set(long l, long h) {
+    lo = l;
+    hi = h;
+  }
+
+  public final boolean isEmpty() { return (lo | hi) == 0; }
+
+  public final int size() { return Long.bitCount(lo) + Long.bitCount(hi); }
+
+  public final boolean contains(int sq) {
+    if (sq < 64) return (lo & (1L << sq)) != 0;
+    return (hi & (1L << (sq - 64))) != 0;
+  }
+
+  public final void add(int sq) {
+    if (sq < 64) {
+      lo |= (1L << sq);
+    } else {
+      hi |= (1L << (sq - 64));
+    }
+  }
+
+  public final void remove(int sq) {
+    if (sq < 64) {
+      lo &= ~(1L << sq);
+    } else {
+      hi &= ~(1L << (sq - 64));
+    }
+  }
+
+  public final void or(SquareSet s) {
+    lo |= s.lo;
+    hi |= s.hi;
+  }
+
+  public final void and(SquareSet s) {
+    lo &= s.lo;
+    hi &= s.hi;
+  }
+
+  public final void andNot(SquareSet s) {
+    lo &= ~s.lo;
+    hi &= ~s.hi;
+  }
+
+  /** Return the smallest square in the set, or -1 if the set is empty. */
+  public final int first() {
+    if (lo != 0) return Long.numberOfTrailingZeros(lo);
+    if (hi != 0) return 64 + Long.numberOfTrailingZeros(hi);
+    return -1;
+  }
+
+  /** Remove the smallest square from the set and return it. Return -1 if the set is empty. */
+  public final int pop() {
+    if (lo != 0) {
+      final int sq = Long.numberOfTrailingZeros(lo);
+      lo &= lo - 1;
+      return sq;
+    }
+    if (hi != 0) {
+      final int sq = 64 + Long.numberOfTrailingZeros(hi);
+      hi &= hi - 1;
+      return sq;
+    }
+    return -1;
+  }
+
+  public static final int square(int x, int y) { return x + y * Board.DIM; }
+  public static final int x(int sq) { return sq % Board.DIM; }
+  public static final int y(int sq) { return sq / Board.DIM; }
+
+  @Override public boolean equals(Object o) {
+    if (o instanceof SquareSet) {
+      SquareSet s = (SquareSet)o;
+      return s.lo == lo && s.hi == hi;
+    }
+    return false;
+  }
+
+  @Override public int hashCode() {
+    final long h = lo * 31 + hi;
+    return (int)(h ^ (h >>> 32));
+  }
+
+  @Override public String toString() {
+    StringBuilder b = new StringBuilder();
+    for (int y = 0; y < Board.DIM; ++y) {
+      for (int x = 0; x < Board.DIM; ++x) {
+        b.append(contains(square(x, y)) ? 'x' : '.');
+      }
+      b.append('\n');
+    }
+    return b.toString();
+  }
+}
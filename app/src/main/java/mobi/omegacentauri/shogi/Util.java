@@ -18,7 +18,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.util.ArrayList;
 import java.util.regex.Pattern;
 
 /**
@@ -33,9 +32,31 @@ public class Util {
   };
 
   public static Reader inputStreamToReader(InputStream in, String defaultEncoding) throws IOException {
+    return inputStreamToReader(in, defaultEncoding, null);
+  }
+
+  /**
+   * Same as above, but "in" has the contents of the file "path". The encoding detected is
+   * remembered in EncodingCache, so it isn't detected again while the file is unchanged.
+   * "path" may be null.
+   */
+  public static Reader inputStreamToReader(InputStream in, String defaultEncoding, File path) throws IOException {
     byte[] contents = Util.streamToBytes(in);
-    String encoding = Util.detectEncoding(contents, defaultEncoding);
-    return new InputStreamReader(new ByteArrayInputStream(contents), encoding);
+    String encoding = null;
+    long mtimeMs = 0;
+    if (path != null) {
+      mtimeMs = path.lastModified();
+      encoding = EncodingCache.getInstance().get(path.getPath(), contents.length, mtimeMs);
+    }
+    if (encoding == null) {
+      encoding = Util.detectEncoding(contents, defaultEncoding);
+      if (path != null) {
+        EncodingCache.getInstance().put(path.getPath(), contents.length, mtimeMs, encoding);
+      }
+    }
+    final int bom = EncodingClassifier.bomLength(contents, contents.length, encoding);
+    return new InputStreamReader(
+        new ByteArrayInputStream(contents, bom, contents.length - bom), encoding);
   }
   
   /** Read the contents of @p into a byte array */
@@ -53,6 +74,12 @@ public class Util {
   public static String detectEncoding(
       byte[] contents,
       String defaultEncoding) {
+    // Most files are settled by a strict check of the bytes; only the rest need the
+    // statistical detector.
+    String classified = EncodingClassifier.classify(
+        contents, contents.length, defaultEncoding != null ? defaultEncoding : "SHIFT-JIS");
+    if (classified != null) return classified;
+
     UniversalDetector encodingDetector = new UniversalDetector(null);
     
     encodingDetector.reset();
@@ -201,7 +228,7 @@ public class Util {
     }
   }
 
-    public static void getTimesFromPlays(ArrayList<Play> plays, int size, long[] thinkTimeMs) {
+    public static void getTimesFromPlays(MoveList plays, int size, long[] thinkTimeMs) {
       thinkTimeMs[0] = 0;
       thinkTimeMs[1] = 0;
 
@@ -210,12 +237,11 @@ public class Util {
       }
 
       if (size == 1) {
-        thinkTimeMs[Player.BLACK.toIndex()] = plays.get(0).endTime();
+        thinkTimeMs[Player.BLACK.toIndex()] = plays.endTime(0);
       }
       else {
         for (int i = size - 2 ; i < size ; i++) {
-            Play p = plays.get(i);
-            thinkTimeMs[p.player().toIndex()] = p.endTime();
+            thinkTimeMs[plays.player(i).toIndex()] = plays.endTime(i);
         }
       }
 
@@ -0,0 +1,85 @@
+package mobi.omegacentauri.shogi;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Deterministic corpus of games shared by the benchmarks. The games are played by
+ * picking uniformly random legal moves with a fixed seed, so every run measures the
+ * same positions. Every game has exactly MAX_PLIES plies; a game that ends earlier is
+ * discarded and played again.
+ */
+final class BenchmarkGames {
+  static final int NUM_GAMES = 16;
+  static final int MAX_PLIES = 160;
+  private static final long SEED = 20120908L;
+
+  static final class Game {
+    final Board initialBoard;
+    final ArrayList<Play> plays = new ArrayList<Play>();
+
+    // boards[i] is the position before plays[i].
+    final ArrayList<Board> boards = new ArrayList<Board>();
+
+    // Notation of each play.
+    final ArrayList<String> csaStrings = new ArrayList<String>();
+    final ArrayList<String> kifStrings = new ArrayList<String>();
+
+    Game(Board initial) { initialBoard = new Board(initial); }
+
+    final int numPlies() { return plays.size(); }
+    final Play prevPlay(int i) { return i > 0 ? plays.get(i - 1) : null; }
+  }
+
+  private BenchmarkGames() { }
+
+  static Game[] create() {
+    Random random = new Random(SEED);
+    Game[] games = new Game[NUM_GAMES];
+    for (int g = 0; g < NUM_GAMES; ++g) {
+      Handicap h = Handicap.values()[g % Handicap.values().length];
+      do {
+        games[g] = play(h, random);
+      } while (games[g] == null);
+    }
+    return games;
+  }
+
+  // Play a random game of MAX_PLIES plies. Returns null if the game ends earlier.
+  private static Game play(Handicap h, Random random) {
+    int[] moves = new int[MoveGenerator.MAX_MOVES];
+    Board board = new Board();
+    board.initialize(h);
+    Game game = new Game(board);
+    for (int ply = 0; ply < MAX_PLIES; ++ply) {
+      final int n = MoveGenerator.generate(board, moves);
+      if (n == 0) return null;
+      Play play = Move.toPlay(moves[random.nextInt(n)]);
+      game.boards.add(new Board(board));
+      game.csaStrings.add(play.toCsaString());
+      game.kifStrings.add(toKifString(board, game.prevPlay(ply), play));
+      game.plays.add(play);
+      board.applyPly(board.nextPlayer(), play);
+    }
+    return game;
+  }
+
+  // The move part of a KIF record line, e.g., "７六歩(77)", "同　角成(88)" or "５五角打".
+  private static String toKifString(Board board, Play prevPlay, Play play) {
+    Play.TraditionalNotation n = play.toTraditionalNotation(board, prevPlay);
+    StringBuilder b = new StringBuilder();
+    if ((n.modifier & Play.CAPTURED_PREVIOUS_PIECE) != 0) {
+      b.append("同　");
+    } else {
+      b.append(Play.japaneseRomanNumbers[n.x]).append(Play.japaneseNumbers[n.y]);
+    }
+    b.append(Piece.japaneseNames[Board.type(n.piece)]);
+    if ((n.modifier & Play.PROMOTE) != 0) b.append("成");
+    if (play.isDroppingPiece()) {
+      b.append("打");
+    } else {
+      b.append('(').append(9 - play.fromX()).append(1 + play.fromY()).append(')');
+    }
+    return b.toString();
+  }
+}
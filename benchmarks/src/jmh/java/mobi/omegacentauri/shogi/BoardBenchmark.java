@@ -0,0 +1,114 @@
+package mobi.omegacentauri.shogi;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of the board model: applying plays and computing move destinations.
+ * Each operation is one ply, or one position of the corpus (see BenchmarkGames).
+ *
+ *   gradle :benchmarks:jmh -PjmhInclude=BoardBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BoardBenchmark {
+  private static final int NUM_POSITIONS = BenchmarkGames.NUM_GAMES * BenchmarkGames.MAX_PLIES;
+
+  private BenchmarkGames.Game[] mGames;
+  private Board mBoard;
+
+  // All the positions of the corpus, and the squares of the pieces of the player to
+  // move in each position.
+  private Board[] mPositions;
+  private int[][] mSources;
+
+  private final SquareSet mSquares = new SquareSet();
+  private final int[] mMoves = new int[MoveGenerator.MAX_MOVES];
+
+  @Setup public void setup() {
+    mGames = BenchmarkGames.create();
+    mBoard = new Board();
+    mPositions = new Board[NUM_POSITIONS];
+    mSources = new int[NUM_POSITIONS][];
+    int n = 0;
+    for (BenchmarkGames.Game g : mGames) {
+      for (Board b : g.boards) {
+        final SquareSet s = new SquareSet();
+        b.getOccupied(b.nextPlayer(), s);
+        final int[] sources = new int[s.size()];
+        for (int i = 0; i < sources.length; ++i) sources[i] = s.pop();
+        mPositions[n] = b;
+        mSources[n] = sources;
+        ++n;
+      }
+    }
+  }
+
+  /** Replay every game of the corpus from its initial position. */
+  @Benchmark @OperationsPerInvocation(NUM_POSITIONS)
+  public void applyPly(Blackhole bh) {
+    for (BenchmarkGames.Game g : mGames) {
+      mBoard.copyFrom(g.initialBoard);
+      final ArrayList<Play> plays = g.plays;
+      for (int i = 0; i < plays.size(); ++i) {
+        mBoard.applyPly(mBoard.nextPlayer(), plays.get(i));
+      }
+      bh.consume(mBoard.hashCode());
+    }
+  }
+
+  /** Apply and take back each play in its position. */
+  @Benchmark @OperationsPerInvocation(NUM_POSITIONS)
+  public void applyAndUndoPly(Blackhole bh) {
+    for (BenchmarkGames.Game g : mGames) {
+      for (int i = 0; i < g.numPlies(); ++i) {
+        final Board b = g.boards.get(i);
+        b.applyPly(b.nextPlayer(), g.plays.get(i));
+        b.undoPly();
+      }
+      bh.consume(g.boards.size());
+    }
+  }
+
+  /** The destinations of every piece of the player to move, as a list of Positions. */
+  @Benchmark @OperationsPerInvocation(NUM_POSITIONS)
+  public void possibleMoveDestinations(Blackhole bh) {
+    for (int i = 0; i < mPositions.length; ++i) {
+      final Board b = mPositions[i];
+      for (int sq : mSources[i]) {
+        bh.consume(b.possibleMoveDestinations(sq % Board.DIM, sq / Board.DIM));
+      }
+    }
+  }
+
+  /** Same as possibleMoveDestinations, into a reused SquareSet. */
+  @Benchmark @OperationsPerInvocation(NUM_POSITIONS)
+  public void getMoveDestinations(Blackhole bh) {
+    for (int i = 0; i < mPositions.length; ++i) {
+      final Board b = mPositions[i];
+      for (int sq : mSources[i]) {
+        b.getMoveDestinations(sq % Board.DIM, sq / Board.DIM, mSquares);
+        bh.consume(mSquares.size());
+      }
+    }
+  }
+
+  /** All the legal moves of the player to move. */
+  @Benchmark @OperationsPerInvocation(NUM_POSITIONS)
+  public void generateLegalMoves(Blackhole bh) {
+    for (int i = 0; i < mPositions.length; ++i) {
+      bh.consume(MoveGenerator.generate(mPositions[i], mMoves));
+    }
+  }
+}
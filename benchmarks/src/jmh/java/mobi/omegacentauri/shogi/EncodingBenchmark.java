@@ -0,0 +1,64 @@
+package mobi.omegacentauri.shogi;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.universalchardet.UniversalDetector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of the character encoding detection of game log files: the byte-level
+ * EncodingClassifier against juniversalchardet. Each operation is one KIF file of the
+ * corpus (see BenchmarkGames), encoded in Shift_JIS, UTF-8 or EUC-JP.
+ *
+ *   gradle :benchmarks:jmh -PjmhInclude=EncodingBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EncodingBenchmark {
+  private static final String ENCODINGS[] = {
+    EncodingClassifier.SHIFT_JIS, EncodingClassifier.UTF_8, EncodingClassifier.EUC_JP,
+  };
+  private static final int NUM_FILES = BenchmarkGames.NUM_GAMES * 3;
+
+  private byte[][] mFiles;
+
+  @Setup public void setup() throws UnsupportedEncodingException {
+    mFiles = new byte[NUM_FILES][];
+    int n = 0;
+    for (BenchmarkGames.Game g : BenchmarkGames.create()) {
+      StringBuilder b = new StringBuilder();
+      b.append("先手：先手\n後手：後手\n手数----指手---------消費時間--\n");
+      for (int i = 0; i < g.numPlies(); ++i) {
+        b.append(String.format("%4d %s\n", i + 1, g.kifStrings.get(i)));
+      }
+      for (String encoding : ENCODINGS) mFiles[n++] = b.toString().getBytes(encoding);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_FILES)
+  public void classify(Blackhole bh) {
+    for (byte[] f : mFiles) bh.consume(EncodingClassifier.classify(f, f.length, "SHIFT-JIS"));
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_FILES)
+  public void chardet(Blackhole bh) {
+    for (byte[] f : mFiles) {
+      UniversalDetector d = new UniversalDetector(null);
+      d.handleData(f, 0, f.length);
+      d.dataEnd();
+      bh.consume(d.getDetectedCharset());
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package mobi.omegacentauri.shogi;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of the move notations: traditional (Japanese) notation for display, CSA
+ * for the engine and the CSA files, and KIF for the game logs. Each operation is one
+ * play of the corpus (see BenchmarkGames).
+ *
+ *   gradle :benchmarks:jmh -PjmhInclude=NotationBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NotationBenchmark {
+  private static final int NUM_PLAYS = BenchmarkGames.NUM_GAMES * BenchmarkGames.MAX_PLIES;
+
+  // Flattened corpus. prevPlays[i] is the play before plays[i] in the same game, or null.
+  private Board[] mBoards;
+  private Play[] mPlays;
+  private Play[] mPrevPlays;
+  private String[] mCsaStrings;
+  private String[] mKifStrings;
+
+  // Reused by toCsaBuffer.
+  private final char[] mCsaBuffer = new char[Move.CSA_LENGTH];
+
+  // The games of the corpus, for the whole-game benchmarks.
+  private Board[] mInitialBoards;
+  private MoveList[] mGameMoves;
+
+  @Setup public void setup() {
+    mBoards = new Board[NUM_PLAYS];
+    mPlays = new Play[NUM_PLAYS];
+    mPrevPlays = new Play[NUM_PLAYS];
+    mCsaStrings = new String[NUM_PLAYS];
+    mKifStrings = new String[NUM_PLAYS];
+    mInitialBoards = new Board[BenchmarkGames.NUM_GAMES];
+    mGameMoves = new MoveList[BenchmarkGames.NUM_GAMES];
+    int n = 0;
+    int game = 0;
+    for (BenchmarkGames.Game g : BenchmarkGames.create()) {
+      mInitialBoards[game] = g.initialBoard;
+      mGameMoves[game] = MoveList.fromPlays(g.plays);
+      ++game;
+      for (int i = 0; i < g.numPlies(); ++i) {
+        mBoards[n] = g.boards.get(i);
+        mPlays[n] = g.plays.get(i);
+        mPrevPlays[n] = g.prevPlay(i);
+        mCsaStrings[n] = g.csaStrings.get(i);
+        mKifStrings[n] = g.kifStrings.get(i);
+        ++n;
+      }
+    }
+  }
+
+  @Benchmark @OperationsPerInvocation(NUM_PLAYS)
+  public void toTraditionalNotation(Blackhole bh) {
+    for (int i = 0; i < NUM_PLAYS; ++i) {
+      bh.consume(mPlays[i].toTraditionalNotation(mBoards[i], mPrevPlays[i]));
+    }
+  }
+
+  /** toTraditionalNotation followed by the conversion to the displayed string. */
+  @Benchmark @OperationsPerInvocation(NUM_PLAYS)
+  public void toJapaneseString(Blackhole bh) {
+    for (int i = 0; i < NUM_PLAYS; ++i) {
+      bh.consume(mPlays[i].toTraditionalNotation(mBoards[i], mPrevPlays[i]).toJapaneseString());
+    }
+  }
+
+  /** NotationRenderer over each whole game. */
+  @Benchmark @OperationsPerInvocation(NUM_PLAYS)
+  public void renderGames(Blackhole bh) {
+    for (int i = 0; i < mGameMoves.length; ++i) {
+      bh.consume(NotationRenderer.renderAll(mInitialBoards[i], mGameMoves[i]));
+    }
+  }
+
+  @Benchmark @OperationsPerInvocation(NUM_PLAYS)
+  public void toCsaString(Blackhole bh) {
+    for (int i = 0; i < NUM_PLAYS; ++i) {
+      bh.consume(mPlays[i].toCsaString());
+    }
+  }
+
+  /** Move.toCsa into a reused buffer, as done for the engine and the CSA files. */
+  @Benchmark @OperationsPerInvocation(NUM_PLAYS)
+  public void toCsaBuffer(Blackhole bh) {
+    for (int i = 0; i < NUM_PLAYS; ++i) {
+      Move.toCsa(mPlays[i].move(), mCsaBuffer, 0);
+      bh.consume(mCsaBuffer);
+    }
+  }
+
+  @Benchmark @OperationsPerInvocation(NUM_PLAYS)
+  public void fromCsaString(Blackhole bh) {
+    for (int i = 0; i < NUM_PLAYS; ++i) {
+      bh.consume(Play.fromCsaString(mCsaStrings[i], mPlays[i].player()));
+    }
+  }
+
+  /** Move.fromCsa, which returns the packed move instead of a Play. */
+  @Benchmark @OperationsPerInvocation(NUM_PLAYS)
+  public void fromCsaPacked(Blackhole bh) {
+    for (int i = 0; i < NUM_PLAYS; ++i) {
+      bh.consume(Move.fromCsa(mCsaStrings[i], 0, mPlays[i].player()));
+    }
+  }
+
+  @Benchmark @OperationsPerInvocation(NUM_PLAYS)
+  public void fromKifString(Blackhole bh) throws ParseException {
+    for (int i = 0; i < NUM_PLAYS; ++i) {
+      bh.consume(Play.fromKifString(mPrevPlays[i], mPlays[i].player(), mKifStrings[i]));
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package mobi.omegacentauri.shogi;
+
+/**
+ * Perft: count the leaf nodes of the legal move tree to a fixed depth. Used to verify
+ * MoveGenerator and Board.applyMove()/undoPly() against known values; PerftBenchmark
+ * times it.
+ *
+ * Run the check, for every handicap, with
+ *
+ *   gradle :benchmarks:perft
+ *   gradle :benchmarks:perft -PperftDepth=5
+ */
+public class Perft {
+  // EXPECTED[handicap.ordinal()][depth - 1]. The values for Handicap.NONE are the
+  // well-known counts for the shogi initial position. The others were computed by an
+  // independent, naive generator built on Board.possibleMoveDestinations().
+  // In handicap games, Player.BLACK (the side giving the handicap) moves first.
+  static final long[][] EXPECTED = {
+    { 30, 900, 25470, 719731, 19861490 },  // NONE
+    { 30, 900, 25530, 721433 },  // KYO
+    { 33, 990, 29910, 846566 },  // KAKU
+    { 25, 750, 18570, 524461 },  // HI
+    { 25, 750, 18570, 524465 },  // HI_KYO
+    { 26, 780, 19740, 558731 },  // HI_KAKU
+    { 24, 720, 16800, 475521 },  // FOUR
+    { 24, 720, 16740, 473823 },  // SIX
+  };
+
+  private final Board mBoard;
+  private final int[][] mMoves;  // move buffer for each remaining depth
+
+  public Perft(Board board, int maxDepth) {
+    mBoard = new Board(board);
+    mMoves = new int[maxDepth + 1][MoveGenerator.MAX_MOVES];
+  }
+
+  /** Return the number of leaf nodes "depth" plies below the board. */
+  public final long run(int depth) {
+    if (depth >= mMoves.length) throw new IllegalArgumentException("depth too large: " + depth);
+    return perft(depth);
+  }
+
+  private final long perft(int depth) {
+    if (depth == 0) return 1;
+    final int[] moves = mMoves[depth];
+    final int n = MoveGenerator.generate(mBoard, moves);
+    if (depth == 1) return n;
+    long count = 0;
+    for (int i = 0; i < n; ++i) {
+      mBoard.applyMove(moves[i]);
+      count += perft(depth - 1);
+      mBoard.undoPly();
+    }
+    return count;
+  }
+
+  public static void main(String[] args) {
+    final int maxDepth = (args.length > 0 ? Integer.parseInt(args[0]) : 4);
+    boolean ok = true;
+    for (Handicap h : Handicap.values()) {
+      Board board = new Board();
+      board.initialize(h);
+      Perft perft = new Perft(board, maxDepth);
+      for (int depth = 1; depth <= maxDepth; ++depth) {
+        final long start = System.nanoTime();
+        final long count = perft.run(depth);
+        final long ms = (System.nanoTime() - start) / 1000000;
+        final long[] expected = EXPECTED[h.ordinal()];
+        String status = "";
+        if (depth <= expected.length) {
+          if (count == expected[depth - 1]) {
+            status = "ok";
+          } else {
+            status = "MISMATCH, expected " + expected[depth - 1];
+            ok = false;
+          }
+        }
+        System.out.println(h + " depth " + depth + ": " + count + " (" + ms + "ms) " + status);
+      }
+    }
+    if (!ok) System.exit(1);
+  }
+}
@@ -0,0 +1,46 @@
+package mobi.omegacentauri.shogi;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmark of move generation with applyMove()/undoPly(): a perft of the initial
+ * position of each handicap. Each operation is a whole perft, whose count is checked
+ * against Perft.EXPECTED in setup().
+ *
+ *   gradle :benchmarks:jmh -PjmhInclude=PerftBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PerftBenchmark {
+  private static final int DEPTH = 3;
+
+  @Param({"NONE", "KAKU", "HI_KAKU"})
+  public Handicap handicap;
+
+  private Perft mPerft;
+
+  @Setup public void setup() {
+    Board board = new Board();
+    board.initialize(handicap);
+    mPerft = new Perft(board, DEPTH);
+    final long count = mPerft.run(DEPTH);
+    if (count != Perft.EXPECTED[handicap.ordinal()][DEPTH - 1]) {
+      throw new IllegalStateException(handicap + " depth " + DEPTH + ": " + count);
+    }
+  }
+
+  @Benchmark
+  public long perft() {
+    return mPerft.run(DEPTH);
+  }
+}